@@ -0,0 +1,157 @@
+package com.yyztom.backdown;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of 5-50 KB files from a local server, with the bulk engine against a job per file.
+ *
+ * The DownloadManager can't run here, so a job per file is the parts of it that
+ * happen in this process and on the wire: a connection of its own for every file,
+ * written to a cache file and then copied into place as onReceive does. Its
+ * database rows and broadcasts only add to that. Both get the same number of
+ * connections at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BulkDownloadBenchmark {
+  @Param({ "100", "1000" })
+  public int files;
+
+  private RangeServer mServer;
+  private ExecutorService mExecutor;
+  private File mDir;
+  private List<URL> mUrls;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mServer = new RangeServer();
+    mExecutor = Executors.newCachedThreadPool();
+    mDir = File.createTempFile("backdown", "");
+    mDir.delete();
+    mDir.mkdirs();
+
+    Random random = new Random(7);
+    mUrls = new ArrayList<>();
+    for (int i = 0; i < files; i++) {
+      byte[] body = new byte[5 * 1024 + random.nextInt(45 * 1024)];
+      random.nextBytes(body);
+      mUrls.add(mServer.put("/files/" + i + ".bin", body));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mExecutor.shutdownNow();
+    mServer.stop();
+    for (File file : mDir.listFiles()) {
+      file.delete();
+    }
+    mDir.delete();
+  }
+
+  @Benchmark
+  public long bulk() throws InterruptedException {
+    List<BulkDownloader.Item> items = new ArrayList<>();
+    for (int i = 0; i < files; i++) {
+      items.add(new BulkDownloader.Item(String.valueOf(i), mUrls.get(i), new File(mDir, i + ".bin"), null));
+    }
+
+    final CountDownLatch done = new CountDownLatch(1);
+    BulkDownloader batch = new BulkDownloader("batch", items, BulkDownloader.DEFAULT_CONNECTIONS, mExecutor,
+            new BulkDownloader.Listener() {
+              @Override
+              public void onFileFailed(BulkDownloader batch, String downloadId, String errorMsg) {
+                throw new IllegalStateException(downloadId + ": " + errorMsg);
+              }
+
+              @Override
+              public void onComplete(BulkDownloader batch) {
+                done.countDown();
+              }
+            });
+    batch.start();
+    done.await();
+    return batch.getBytes();
+  }
+
+  @Benchmark
+  public long jobPerFile() throws Exception {
+    List<Future<Long>> futures = new ArrayList<>();
+    ExecutorService jobs = Executors.newFixedThreadPool(BulkDownloader.DEFAULT_CONNECTIONS);
+    try {
+      for (int i = 0; i < files; i++) {
+        final int index = i;
+        futures.add(jobs.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws IOException {
+            return downloadAsJob(mUrls.get(index), index);
+          }
+        }));
+      }
+      long bytes = 0;
+      for (Future<Long> future : futures) {
+        bytes += future.get();
+      }
+      return bytes;
+    } finally {
+      jobs.shutdown();
+    }
+  }
+
+  private long downloadAsJob(URL url, int index) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    // every job has a connection of its own.
+    conn.setRequestProperty("Connection", "close");
+    File cached = new File(mDir, index + ".cache");
+    InputStream in = conn.getInputStream();
+    FileOutputStream out = new FileOutputStream(cached);
+    try {
+      byte[] buffer = new byte[16 * 1024];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      out.close();
+      in.close();
+      conn.disconnect();
+    }
+
+    long copied = FileFinalizer.copy(new FileInputStream(cached), mDir, index + ".bin", null).bytesCopied;
+    cached.delete();
+    return copied;
+  }
+}
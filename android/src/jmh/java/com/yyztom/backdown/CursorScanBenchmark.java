@@ -0,0 +1,41 @@
+package com.yyztom.backdown;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cancelling a download that isn't in the index, which scans every DownloadManager row.
+ */
+@State(Scope.Thread)
+public class CursorScanBenchmark {
+  @Param({ "10000" })
+  public int rows;
+
+  private FakeCursor mCursor;
+  private String mLast;
+  private String mMissing;
+
+  @Setup
+  public void setUp() {
+    String[] urls = new String[rows];
+    for (int i = 0; i < rows; i++) {
+      urls[i] = "https://cdn.example.com/files/" + i + ".bin";
+    }
+    mCursor = new FakeCursor(urls);
+    mLast = DownloadIds.fromUrl(urls[rows - 1]);
+    mMissing = DownloadIds.fromUrl("https://cdn.example.com/missing.bin");
+  }
+
+  @Benchmark
+  public long findLast() {
+    return BackdownPlugin.findManagerId(mCursor, mLast);
+  }
+
+  @Benchmark
+  public long findMissing() {
+    return BackdownPlugin.findManagerId(mCursor, mMissing);
+  }
+}
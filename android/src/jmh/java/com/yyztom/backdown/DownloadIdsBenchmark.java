@@ -0,0 +1,38 @@
+package com.yyztom.backdown;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Turning urls into download ids, for a url that was just seen and for one
+ * that has to be hashed.
+ */
+@State(Scope.Thread)
+public class DownloadIdsBenchmark {
+  private static final String URL = "https://cdn.example.com/media/season-1/episode-01.mp4";
+
+  private String[] mUrls;
+  private int mNext;
+
+  @Setup
+  public void setUp() {
+    // more than the cache holds, so each one is hashed.
+    mUrls = new String[4096];
+    for (int i = 0; i < mUrls.length; i++) {
+      mUrls[i] = URL + "?part=" + i;
+    }
+  }
+
+  @Benchmark
+  public String cached() {
+    return DownloadIds.fromUrl(URL);
+  }
+
+  @Benchmark
+  public String hashed() {
+    mNext = (mNext + 1) % mUrls.length;
+    return DownloadIds.fromUrl(mUrls[mNext]);
+  }
+}
@@ -0,0 +1,111 @@
+package com.yyztom.backdown;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.StandardMethodCodec;
+
+/**
+ * Enqueueing downloads as the channel sees it: a createDownload and an
+ * enqueueDownload for each one, against one createDownloads and one
+ * enqueueDownloads for them all. Every call is encoded and decoded both ways,
+ * with the reply the plugin sends. The database work is the same either way
+ * and needs a device, so it isn't here.
+ */
+@State(Scope.Thread)
+public class EnqueueCallsBenchmark {
+  @Param({ "1", "100", "1000" })
+  public int downloads;
+
+  private List<HashMap<String, Object>> mRequests;
+
+  @Setup
+  public void setUp() {
+    mRequests = new ArrayList<>();
+    for (int i = 0; i < downloads; i++) {
+      HashMap<String, Object> args = new HashMap<>();
+      args.put("DOWNLOAD_URL", "https://cdn.example.com/pack/file-" + i + ".bin");
+      args.put("TITLE", "title");
+      args.put("DESCRIPTION", "description");
+      args.put("WIFI_ONLY", false);
+      args.put("REQUIRED_CHARGING", false);
+      args.put("REQUIRES_DEVICE_IDLE", false);
+      args.put("SHOW_NOTIFICATION", false);
+      mRequests.add(args);
+    }
+  }
+
+  @Benchmark
+  public int oneByOne() {
+    int bytes = 0;
+    for (HashMap<String, Object> request : mRequests) {
+      MethodCall create = call("createDownload", request);
+      String downloadId = DownloadIds.fromUrl((String) create.argument("DOWNLOAD_URL"));
+      bytes += reply(downloadId);
+
+      HashMap<String, Object> args = new HashMap<>();
+      args.put("DOWNLOAD_ID", downloadId);
+      call("enqueueDownload", args);
+      HashMap<String, Object> result = new HashMap<>();
+      result.put("SUCCESS", true);
+      bytes += reply(result);
+    }
+    return bytes;
+  }
+
+  @Benchmark
+  public int batched() {
+    HashMap<String, Object> args = new HashMap<>();
+    args.put("REQUESTS", mRequests);
+    MethodCall create = call("createDownloads", args);
+    List<?> requests = create.argument("REQUESTS");
+    ArrayList<String> downloadIds = new ArrayList<>();
+    ArrayList<Boolean> results = new ArrayList<>();
+    for (Object request : requests) {
+      downloadIds.add(DownloadIds.fromUrl((String) ((Map<?, ?>) request).get("DOWNLOAD_URL")));
+      results.add(true);
+    }
+    HashMap<String, Object> created = new HashMap<>();
+    created.put("DOWNLOAD_IDS", downloadIds);
+    created.put("RESULTS", results);
+    int bytes = reply(created);
+
+    args = new HashMap<>();
+    args.put("DOWNLOAD_IDS", downloadIds);
+    call("enqueueDownloads", args);
+    HashMap<String, Object> enqueued = new HashMap<>();
+    enqueued.put("RESULTS", results);
+    return bytes + reply(enqueued);
+  }
+
+  /**
+   * @return the call as the plugin receives it from dart.
+   */
+  private static MethodCall call(String method, Object arguments) {
+    ByteBuffer message = StandardMethodCodec.INSTANCE.encodeMethodCall(new MethodCall(method, arguments));
+    message.flip();
+    return StandardMethodCodec.INSTANCE.decodeMethodCall(message);
+  }
+
+  /**
+   * Sends result back to dart.
+   * @return how many bytes it took.
+   */
+  private static int reply(Object result) {
+    ByteBuffer envelope = StandardMethodCodec.INSTANCE.encodeSuccessEnvelope(result);
+    int bytes = envelope.position();
+    envelope.flip();
+    StandardMethodCodec.INSTANCE.decodeEnvelope(envelope);
+    return bytes;
+  }
+}
@@ -0,0 +1,240 @@
+package com.yyztom.backdown;
+
+import android.app.DownloadManager;
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * DownloadManager rows with just an id and a url, the row's id is its position.
+ * Works on the plain JVM, where android's own cursors are stubs.
+ */
+class FakeCursor implements Cursor {
+  private static final String[] COLUMNS = { DownloadManager.COLUMN_ID, DownloadManager.COLUMN_URI };
+  private static final int ID = 0;
+  private static final int URI = 1;
+
+  private final String[] mUrls;
+  private int mPosition = -1;
+
+  FakeCursor(String[] urls) {
+    mUrls = urls;
+  }
+
+  @Override
+  public int getCount() {
+    return mUrls.length;
+  }
+
+  @Override
+  public int getPosition() {
+    return mPosition;
+  }
+
+  @Override
+  public boolean move(int offset) {
+    return moveToPosition(mPosition + offset);
+  }
+
+  @Override
+  public boolean moveToPosition(int position) {
+    mPosition = Math.max(-1, Math.min(mUrls.length, position));
+    return mPosition >= 0 && mPosition < mUrls.length;
+  }
+
+  @Override
+  public boolean moveToFirst() {
+    return moveToPosition(0);
+  }
+
+  @Override
+  public boolean moveToLast() {
+    return moveToPosition(mUrls.length - 1);
+  }
+
+  @Override
+  public boolean moveToNext() {
+    return moveToPosition(mPosition + 1);
+  }
+
+  @Override
+  public boolean moveToPrevious() {
+    return moveToPosition(mPosition - 1);
+  }
+
+  @Override
+  public boolean isFirst() {
+    return mPosition == 0 && mUrls.length > 0;
+  }
+
+  @Override
+  public boolean isLast() {
+    return mPosition == mUrls.length - 1 && mUrls.length > 0;
+  }
+
+  @Override
+  public boolean isBeforeFirst() {
+    return mPosition < 0;
+  }
+
+  @Override
+  public boolean isAfterLast() {
+    return mPosition >= mUrls.length;
+  }
+
+  @Override
+  public int getColumnIndex(String columnName) {
+    for (int i = 0; i < COLUMNS.length; i++) {
+      if ( COLUMNS[i].equals(columnName) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int getColumnIndexOrThrow(String columnName) {
+    int index = getColumnIndex(columnName);
+    if ( index < 0 ) {
+      throw new IllegalArgumentException(columnName);
+    }
+    return index;
+  }
+
+  @Override
+  public String getColumnName(int columnIndex) {
+    return COLUMNS[columnIndex];
+  }
+
+  @Override
+  public String[] getColumnNames() {
+    return COLUMNS.clone();
+  }
+
+  @Override
+  public int getColumnCount() {
+    return COLUMNS.length;
+  }
+
+  @Override
+  public byte[] getBlob(int columnIndex) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public String getString(int columnIndex) {
+    return columnIndex == URI ? mUrls[mPosition] : String.valueOf(mPosition);
+  }
+
+  @Override
+  public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public short getShort(int columnIndex) {
+    return (short) getLong(columnIndex);
+  }
+
+  @Override
+  public int getInt(int columnIndex) {
+    return (int) getLong(columnIndex);
+  }
+
+  @Override
+  public long getLong(int columnIndex) {
+    if ( columnIndex != ID ) {
+      throw new UnsupportedOperationException();
+    }
+    return mPosition;
+  }
+
+  @Override
+  public float getFloat(int columnIndex) {
+    return getLong(columnIndex);
+  }
+
+  @Override
+  public double getDouble(int columnIndex) {
+    return getLong(columnIndex);
+  }
+
+  @Override
+  public int getType(int columnIndex) {
+    return columnIndex == ID ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+  }
+
+  @Override
+  public boolean isNull(int columnIndex) {
+    return false;
+  }
+
+  @Override
+  @Deprecated
+  public void deactivate() {
+  }
+
+  @Override
+  @Deprecated
+  public boolean requery() {
+    return true;
+  }
+
+  @Override
+  public void close() {
+    // scanned again by the next call.
+  }
+
+  @Override
+  public boolean isClosed() {
+    return false;
+  }
+
+  @Override
+  public void registerContentObserver(ContentObserver observer) {
+  }
+
+  @Override
+  public void unregisterContentObserver(ContentObserver observer) {
+  }
+
+  @Override
+  public void registerDataSetObserver(DataSetObserver observer) {
+  }
+
+  @Override
+  public void unregisterDataSetObserver(DataSetObserver observer) {
+  }
+
+  @Override
+  public void setNotificationUri(ContentResolver cr, Uri uri) {
+  }
+
+  @Override
+  public Uri getNotificationUri() {
+    return null;
+  }
+
+  @Override
+  public boolean getWantsAllOnMoveCalls() {
+    return false;
+  }
+
+  @Override
+  public void setExtras(Bundle extras) {
+  }
+
+  @Override
+  public Bundle getExtras() {
+    return Bundle.EMPTY;
+  }
+
+  @Override
+  public Bundle respond(Bundle extras) {
+    return Bundle.EMPTY;
+  }
+}
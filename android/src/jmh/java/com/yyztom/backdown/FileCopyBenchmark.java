@@ -0,0 +1,66 @@
+package com.yyztom.backdown;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying a finished download out of the DownloadManager's cache, with transferTo.
+ * Needs twice the largest size free in java.io.tmpdir.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileCopyBenchmark {
+  @Param({ "1048576", "67108864", "2147483648" })
+  public long size;
+
+  private File mDir;
+  private File mSource;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mDir = File.createTempFile("backdown", "");
+    mDir.delete();
+    mDir.mkdirs();
+    mSource = new File(mDir, "source");
+    RandomAccessFile file = new RandomAccessFile(mSource, "rw");
+    try {
+      // the bytes themselves don't matter, only how many are moved.
+      file.setLength(size);
+    } finally {
+      file.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    new File(mDir, "copy").delete();
+    mSource.delete();
+    mDir.delete();
+  }
+
+  @Benchmark
+  public long copy() throws IOException {
+    return FileFinalizer.copy(new FileInputStream(mSource), mDir, "copy", null).bytesCopied;
+  }
+}
@@ -0,0 +1,63 @@
+package com.yyztom.backdown;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.StandardMethodCodec;
+
+/**
+ * One progress tick with downloads running, as the maps it is built into and
+ * the bytes the channel's codec makes of them. Either a PROGRESS_EVENT per
+ * download, or one PROGRESS_BATCH_EVENT for them all.
+ */
+@State(Scope.Thread)
+public class ProgressEventBenchmark {
+  @Param({ "1", "10", "100" })
+  public int downloads;
+
+  private String[] mDownloadIds;
+
+  @Setup
+  public void setUp() {
+    mDownloadIds = new String[downloads];
+    for (int i = 0; i < downloads; i++) {
+      mDownloadIds[i] = DownloadIds.fromUrl("https://cdn.example.com/files/" + i);
+    }
+  }
+
+  @Benchmark
+  public int buildMaps() {
+    int size = 0;
+    for (int i = 0; i < downloads; i++) {
+      size += BackdownPlugin.progressArgs(mDownloadIds[i], i * 1024L, 1 << 30, 1 << 20, 60000).size();
+    }
+    return size;
+  }
+
+  @Benchmark
+  public int encodeMaps() {
+    int bytes = 0;
+    for (int i = 0; i < downloads; i++) {
+      ByteBuffer message = StandardMethodCodec.INSTANCE.encodeMethodCall(new MethodCall("PROGRESS_EVENT",
+              BackdownPlugin.progressArgs(mDownloadIds[i], i * 1024L, 1 << 30, 1 << 20, 60000)));
+      bytes += message.position();
+    }
+    return bytes;
+  }
+
+  @Benchmark
+  public int encodeBatch() {
+    ProgressBatch batch = new ProgressBatch();
+    for (int i = 0; i < downloads; i++) {
+      batch.add(mDownloadIds[i], i * 1024L, 1 << 30, 1 << 20, 60000);
+    }
+    ByteBuffer message = StandardMethodCodec.INSTANCE.encodeMethodCall(new MethodCall("PROGRESS_BATCH_EVENT", batch.toArgs()));
+    return message.position();
+  }
+}
@@ -0,0 +1,151 @@
+package com.yyztom.backdown;
+
+/**
+ * Backs downloads off when the network is struggling or costs money.
+ *
+ * Every update is a sample of the overall throughput. When it falls well below
+ * what we've recently seen for a few samples in a row, something else (e.g. the
+ * app streaming video) probably needs the bandwidth. We then take away a download
+ * slot and cap the rate under what we're getting. Once throughput recovers,
+ * slots come back one at a time and the cap is lifted.
+ *
+ * A capped download can't go faster than its cap, so the peak starts again from
+ * the cap. Only samples well below it count as slow, and ones that reach it count
+ * as recovered.
+ *
+ * On a metered network the metered limits apply on top.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class AdaptivePolicy {
+  static final long UNLIMITED = 0;
+
+  // samples in a row before we react.
+  private static final int SLOW_SAMPLES = 3;
+  private static final int FAST_SAMPLES = 5;
+  // how quickly the peak forgets, per sample.
+  private static final double PEAK_DECAY = 0.95;
+
+  private boolean isEnabled;
+  private boolean isMetered;
+  private long mMeteredRate = UNLIMITED;
+  private int mMeteredConcurrent = (int) UNLIMITED;
+
+  private double mPeak;
+  private int mSlow;
+  private int mFast;
+  // what we've cut things back to, UNLIMITED if we haven't.
+  private int mConcurrentCap = (int) UNLIMITED;
+  private long mRateCap = UNLIMITED;
+
+  void setEnabled(boolean enabled) {
+    isEnabled = enabled;
+    if ( !enabled ) {
+      reset();
+    }
+  }
+
+  boolean isEnabled() {
+    return isEnabled;
+  }
+
+  /**
+   * @param bytesPerSecond - the limit on a metered network, or UNLIMITED.
+   * @param maxConcurrent - how many may run at once on a metered network, or UNLIMITED.
+   */
+  void setMeteredLimits(long bytesPerSecond, int maxConcurrent) {
+    mMeteredRate = Math.max(UNLIMITED, bytesPerSecond);
+    mMeteredConcurrent = Math.max((int) UNLIMITED, maxConcurrent);
+  }
+
+  /**
+   * @param metered - whether the active network is metered.
+   * @param bytesPerSecond - the combined rate of every running download.
+   * @param running - how many downloads are running.
+   * @return true if the limits have changed.
+   */
+  boolean update(boolean metered, long bytesPerSecond, int running) {
+    if ( !isEnabled ) {
+      return false;
+    }
+
+    boolean changed = metered != isMetered;
+    isMetered = metered;
+    if ( running == 0 || bytesPerSecond <= 0 ) {
+      // nothing to measure.
+      return changed;
+    }
+
+    mPeak = Math.max(bytesPerSecond, mPeak * PEAK_DECAY);
+    // under a cap, the cap is the most we could see.
+    double reference = mRateCap == UNLIMITED ? mPeak : mRateCap;
+    if ( bytesPerSecond < reference / 2 ) {
+      mFast = 0;
+      if ( ++mSlow >= SLOW_SAMPLES ) {
+        mSlow = 0;
+        int current = mConcurrentCap == UNLIMITED ? running : mConcurrentCap;
+        mConcurrentCap = Math.max(1, current - 1);
+        // leave some room for whatever else is using the network.
+        mRateCap = Math.max(1, bytesPerSecond * 3 / 4);
+        // the old peak can't be reached under the cap, start again from it.
+        mPeak = mRateCap;
+        changed = true;
+      }
+    } else if ( bytesPerSecond >= reference * 0.9 ) {
+      mSlow = 0;
+      if ( ++mFast >= FAST_SAMPLES && (mConcurrentCap != UNLIMITED || mRateCap != UNLIMITED) ) {
+        mFast = 0;
+        mRateCap = UNLIMITED;
+        mConcurrentCap = mConcurrentCap + 1 > running ? (int) UNLIMITED : mConcurrentCap + 1;
+        changed = true;
+      }
+    } else {
+      mSlow = 0;
+      mFast = 0;
+    }
+    return changed;
+  }
+
+  /**
+   * @param configured - the rate the app asked for, or UNLIMITED.
+   * @return the rate to use.
+   */
+  long getRate(long configured) {
+    if ( !isEnabled ) {
+      return configured;
+    }
+    long rate = min(configured, mRateCap);
+    return isMetered ? min(rate, mMeteredRate) : rate;
+  }
+
+  /**
+   * @param configured - the concurrency the app asked for, or UNLIMITED.
+   * @return the concurrency to use.
+   */
+  int getMaxConcurrent(int configured) {
+    if ( !isEnabled ) {
+      return configured;
+    }
+    int concurrent = (int) min(configured, mConcurrentCap);
+    return isMetered ? (int) min(concurrent, mMeteredConcurrent) : concurrent;
+  }
+
+  private void reset() {
+    isMetered = false;
+    mPeak = 0;
+    mSlow = 0;
+    mFast = 0;
+    mConcurrentCap = (int) UNLIMITED;
+    mRateCap = UNLIMITED;
+  }
+
+  /**
+   * @return the smaller limit, where UNLIMITED is bigger than anything.
+   */
+  private static long min(long a, long b) {
+    if ( a == UNLIMITED ) {
+      return b;
+    }
+    return b == UNLIMITED ? a : Math.min(a, b);
+  }
+}
@@ -0,0 +1,161 @@
+package com.yyztom.backdown;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Owns the plugin's own database, kept next to the app's other databases
+ * so it survives process death.
+ */
+class BackdownDbHelper extends SQLiteOpenHelper {
+  private static final String DATABASE_NAME = "backdown.db";
+  private static final int DATABASE_VERSION = 10;
+
+  // download_index: backdown download id <-> DownloadManager id.
+  static final String TABLE_DOWNLOAD_INDEX = "download_index";
+  static final String COLUMN_DOWNLOAD_ID = "download_id";
+  static final String COLUMN_MANAGER_ID = "manager_id";
+
+  // requests: every DownloadRequest that hasn't finished yet.
+  static final String TABLE_REQUESTS = "requests";
+  static final String COLUMN_URI = "uri";
+  static final String COLUMN_TITLE = "title";
+  static final String COLUMN_DESCRIPTION = "description";
+  static final String COLUMN_WIFI_ONLY = "wifi_only";
+  static final String COLUMN_REQUIRES_CHARGING = "requires_charging";
+  static final String COLUMN_REQUIRES_DEVICE_IDLE = "requires_device_idle";
+  static final String COLUMN_SHOW_NOTIFICATION = "show_notification";
+  static final String COLUMN_ENGINE = "engine";
+  static final String COLUMN_CONNECTIONS = "connections";
+  static final String COLUMN_ENQUEUED = "enqueued";
+  static final String COLUMN_PRIORITY = "priority";
+  static final String COLUMN_SHA256 = "sha256";
+  static final String COLUMN_SIZE = "size";
+  static final String COLUMN_POST_PROCESS = "post_process";
+  static final String COLUMN_PROGRESS_INTERVAL = "progress_interval_ms";
+  static final String COLUMN_PROGRESS_MIN_BYTES = "progress_min_bytes";
+  static final String COLUMN_PROGRESS_MIN_PERCENT = "progress_min_percent";
+  static final String COLUMN_REPORT_PENDING = "report_pending";
+  static final String COLUMN_MAX_BYTES_PER_SECOND = "max_bytes_per_second";
+  // newline separated.
+  static final String COLUMN_MIRRORS = "mirrors";
+  static final String COLUMN_PATCH_URL = "patch_url";
+  static final String COLUMN_BASE_PATH = "base_path";
+
+  // resume_state: how far the chunked engine got with a download.
+  static final String TABLE_RESUME_STATE = "resume_state";
+  static final String COLUMN_VALIDATOR = "validator";
+  static final String COLUMN_TOTAL = "total";
+  static final String COLUMN_RANGES = "ranges";
+
+  // cache: finished files, by the download id they came from. Also has size and sha256.
+  static final String TABLE_CACHE = "cache";
+  static final String COLUMN_PATH = "path";
+  static final String COLUMN_LAST_ACCESS = "last_access";
+
+  BackdownDbHelper(Context context) {
+    super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_DOWNLOAD_INDEX + " ("
+            + COLUMN_DOWNLOAD_ID + " TEXT PRIMARY KEY, "
+            + COLUMN_MANAGER_ID + " INTEGER NOT NULL UNIQUE)");
+    createRequestTables(db);
+    createCacheTable(db);
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if ( oldVersion < 2 ) {
+      createRequestTables(db);
+    } else if ( oldVersion < 3 ) {
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0");
+    }
+    if ( oldVersion < 4 ) {
+      createCacheTable(db);
+    }
+    if ( oldVersion >= 2 && oldVersion < 5 ) {
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_SHA256 + " TEXT");
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_SIZE + " INTEGER NOT NULL DEFAULT -1");
+    }
+    if ( oldVersion >= 2 && oldVersion < 6 ) {
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_POST_PROCESS + " TEXT");
+    }
+    if ( oldVersion >= 2 && oldVersion < 7 ) {
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_PROGRESS_INTERVAL + " INTEGER NOT NULL DEFAULT 0");
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_PROGRESS_MIN_BYTES + " INTEGER NOT NULL DEFAULT 0");
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_PROGRESS_MIN_PERCENT + " INTEGER NOT NULL DEFAULT 0");
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_REPORT_PENDING + " INTEGER NOT NULL DEFAULT 1");
+    }
+    if ( oldVersion >= 2 && oldVersion < 8 ) {
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_MAX_BYTES_PER_SECOND + " INTEGER NOT NULL DEFAULT 0");
+    }
+    if ( oldVersion >= 2 && oldVersion < 9 ) {
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_MIRRORS + " TEXT");
+    }
+    if ( oldVersion >= 2 && oldVersion < 10 ) {
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_PATCH_URL + " TEXT");
+      db.execSQL("ALTER TABLE " + TABLE_REQUESTS + " ADD COLUMN " + COLUMN_BASE_PATH + " TEXT");
+    }
+  }
+
+  /**
+   * Runs work as a single transaction, much cheaper than one per write when
+   * there are a lot of them.
+   */
+  void runInTransaction(Runnable work) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      work.run();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void createCacheTable(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_CACHE + " ("
+            + COLUMN_DOWNLOAD_ID + " TEXT PRIMARY KEY, "
+            + COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+            + COLUMN_SIZE + " INTEGER NOT NULL, "
+            + COLUMN_SHA256 + " TEXT, "
+            + COLUMN_LAST_ACCESS + " INTEGER NOT NULL)");
+    db.execSQL("CREATE INDEX cache_last_access ON " + TABLE_CACHE + " (" + COLUMN_LAST_ACCESS + ")");
+  }
+
+  private void createRequestTables(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_REQUESTS + " ("
+            + COLUMN_DOWNLOAD_ID + " TEXT PRIMARY KEY, "
+            + COLUMN_URI + " TEXT NOT NULL, "
+            + COLUMN_TITLE + " TEXT, "
+            + COLUMN_DESCRIPTION + " TEXT, "
+            + COLUMN_WIFI_ONLY + " INTEGER NOT NULL, "
+            + COLUMN_REQUIRES_CHARGING + " INTEGER NOT NULL, "
+            + COLUMN_REQUIRES_DEVICE_IDLE + " INTEGER NOT NULL, "
+            + COLUMN_SHOW_NOTIFICATION + " INTEGER NOT NULL, "
+            + COLUMN_ENGINE + " TEXT NOT NULL, "
+            + COLUMN_CONNECTIONS + " INTEGER NOT NULL, "
+            + COLUMN_ENQUEUED + " INTEGER NOT NULL, "
+            + COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_SHA256 + " TEXT, "
+            + COLUMN_SIZE + " INTEGER NOT NULL DEFAULT -1, "
+            + COLUMN_POST_PROCESS + " TEXT, "
+            + COLUMN_PROGRESS_INTERVAL + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_PROGRESS_MIN_BYTES + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_PROGRESS_MIN_PERCENT + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_REPORT_PENDING + " INTEGER NOT NULL DEFAULT 1, "
+            + COLUMN_MAX_BYTES_PER_SECOND + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_MIRRORS + " TEXT, "
+            + COLUMN_PATCH_URL + " TEXT, "
+            + COLUMN_BASE_PATH + " TEXT)");
+    db.execSQL("CREATE TABLE " + TABLE_RESUME_STATE + " ("
+            + COLUMN_DOWNLOAD_ID + " TEXT PRIMARY KEY, "
+            + COLUMN_VALIDATOR + " TEXT NOT NULL, "
+            + COLUMN_TOTAL + " INTEGER NOT NULL, "
+            + COLUMN_RANGES + " TEXT NOT NULL)");
+  }
+}
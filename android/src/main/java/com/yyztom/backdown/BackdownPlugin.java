@@ -3,32 +3,41 @@ package com.yyztom.backdown;
 import android.app.DownloadManager;
 import android.app.DownloadManager.Query;
 import android.app.DownloadManager.Request;
-import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.NotificationManagerCompat;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -47,13 +56,60 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
   private Registrar mRegistrar;
   private MethodChannel mChannel;
   private DownloadManager mDM;
+  // All DownloadManager, database and file work happens on this thread,
+  // state below is only touched from it.
+  private HandlerThread mWorkerThread;
   private Handler mHandler;
+  // Replies and events go back to flutter on the main thread.
+  private Handler mMainHandler;
   private boolean isHandlerRunning;
-  private MessageDigest mMsgDigest;
+  private boolean isObserverRegistered;
+  private boolean isFlushScheduled;
+  private boolean isFullScanPending;
+  private HashSet<Long> mChangedIds = new HashSet<>();
+  private String mProgressMode = PROGRESS_MODE_OBSERVE;
+  private boolean isBatchingProgress;
+  private ProgressBatch mProgressBatch = new ProgressBatch();
+  private ProgressThrottle mProgressThrottle = new ProgressThrottle();
+  private TransferRate mTransferRate = new TransferRate();
+  private Metrics mMetrics = new Metrics();
+  // how often METRICS_EVENT is sent, 0 if it isn't.
+  private long mMetricsIntervalMs;
 
   private HashMap<String, DownloadRequest> requests = new HashMap<>();
-
-  private int mNotificationColor = 0xFF000000;
+  // what every download is doing, so it can be asked without querying the DownloadManager.
+  private DownloadStates mStates = new DownloadStates();
+  private DownloadIndex mIndex;
+  private RequestStore mRequestStore;
+  private BackdownDbHelper mDbHelper;
+  private DownloadScheduler mScheduler;
+  // the limits the app asked for, the network policy can lower them.
+  private int mMaxConcurrent = DownloadScheduler.UNLIMITED;
+  private int mMaxPerHost = DownloadScheduler.UNLIMITED;
+  private long mMaxBytesPerSecond = TokenBucket.UNLIMITED;
+  // shared by every chunked download.
+  private TokenBucket mSharedBucket = new TokenBucket(TokenBucket.UNLIMITED);
+  private AdaptivePolicy mNetworkPolicy = new AdaptivePolicy();
+  private ConnectivityManager mConnectivity;
+  private DownloadCache mCache;
+  private boolean isCacheEnabled;
+  private StorageAdmission mStorage = new StorageAdmission();
+  private boolean isCheckingStorage;
+  // enqueued downloads waiting for room, tried again every DEFERRED_RETRY_MS.
+  private LinkedHashSet<String> mDeferred = new LinkedHashSet<>();
+  // downloads running on the chunked engine, by download id.
+  private HashMap<String, ChunkedDownloader> mChunkedDownloads = new HashMap<>();
+  // downloads being patched rather than downloaded, by download id.
+  private HashMap<String, PatchTask> mPatches = new HashMap<>();
+  // batches of small files, by batch id.
+  private HashMap<String, BulkDownloader> mBulkBatches = new HashMap<>();
+  // connections for the chunked engine.
+  private ExecutorService mTransferExecutor;
+  // serves chunked downloads while they download, started the first time it's asked for.
+  private StreamServer mStreamServer;
+
+  private NotificationRenderer mNotifications;
+  private String mDestination = DESTINATION_INTERNAL;
 
   // Valid methods on the channel.
   private static final String METHOD_READY = "ready";
@@ -61,28 +117,114 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
   private static final String METHOD_ENQUEUE_DOWNLOAD = "enqueueDownload";
   private static final String METHOD_SET_DEFAULTS = "setDefaults";
   private static final String METHOD_CANCEL_DOWNLOAD = "cancelDownload";
+  private static final String METHOD_CREATE_DOWNLOADS = "createDownloads";
+  private static final String METHOD_ENQUEUE_DOWNLOADS = "enqueueDownloads";
+  private static final String METHOD_SET_PRIORITY = "setPriority";
+  private static final String METHOD_GET_METRICS = "getMetrics";
+  private static final String METHOD_SET_BANDWIDTH_LIMIT = "setBandwidthLimit";
+  private static final String METHOD_SET_NETWORK_POLICY = "setNetworkPolicy";
+  private static final String METHOD_ENQUEUE_BULK = "enqueueBulk";
+  private static final String METHOD_GET_STREAM_URL = "getStreamUrl";
+  private static final String METHOD_GET_DOWNLOADS = "getDownloads";
+  private static final String METHOD_GET_DOWNLOAD = "getDownload";
+
+  // setDefaults keys
+  private static final String DEFAULT_COLOR = "color";
+  private static final String DEFAULT_PROGRESS_MODE = "progressMode";
+  private static final String DEFAULT_BATCH_PROGRESS = "batchProgress";
+  private static final String DEFAULT_DESTINATION = "destination";
+  private static final String DEFAULT_MAX_CONCURRENT = "maxConcurrentDownloads";
+  private static final String DEFAULT_MAX_PER_HOST = "maxDownloadsPerHost";
+  private static final String DEFAULT_CACHE = "cache";
+  private static final String DEFAULT_GROUP_NOTIFICATIONS = "groupNotifications";
+  private static final String DEFAULT_METRICS_INTERVAL = "metricsIntervalMs";
+  private static final String DEFAULT_CACHE_MAX_BYTES = "cacheMaxBytes";
+  private static final String DEFAULT_CHECK_STORAGE = "checkStorage";
+
+  // destinations
+  private static final String DESTINATION_INTERNAL = "internal";
+  private static final String DESTINATION_EXTERNAL = "external";
+
+  // progress modes
+  private static final String PROGRESS_MODE_OBSERVE = "observe";
+  private static final String PROGRESS_MODE_POLL = "poll";
+
+  // setNetworkPolicy keys
+  private static final String POLICY_ADAPTIVE = "adaptive";
+  private static final String POLICY_METERED_MAX_BYTES_PER_SECOND = "meteredMaxBytesPerSecond";
+  private static final String POLICY_METERED_MAX_CONCURRENT = "meteredMaxConcurrentDownloads";
+
+  // how often downloads deferred for lack of space are tried again.
+  private static final int DEFERRED_RETRY_MS = 15000;
+
+  // how often the network policy looks at throughput.
+  private static final int NETWORK_POLICY_INTERVAL_MS = 2000;
+
+  // how often progress is reported while downloads are moving.
+  private static final int PROGRESS_INTERVAL_MS = 1000;
+
+  // in progress DownloadManager files, under the backdown folder.
+  private static final String PARTIAL_DIR = ".partial";
+
+  // The DownloadManager notifies this uri (with the row id appended) whenever
+  // one of our downloads changes.
+  private static final Uri DOWNLOADS_CONTENT_URI = Uri.parse("content://downloads/my_downloads");
 
   private static final String CHANNEL_ID = "backdownPluginChannel";
+  // the "Processing..." notification goes by itself if we never get to cancel it.
+  private static final long PROCESSING_TIMEOUT_MS = 5000;
   // event name keys
   private static final String COMPLETE_EVENT = "COMPLETE_EVENT";
   private static final String PROGRESS_EVENT = "PROGRESS_EVENT";
+  private static final String PROGRESS_BATCH_EVENT = "PROGRESS_BATCH_EVENT";
   private static final String READY_EVENT = "READY_EVENT";
+  private static final String METRICS_EVENT = "METRICS_EVENT";
+  private static final String BULK_COMPLETE_EVENT = "BULK_COMPLETE_EVENT";
 
   // args keys
   private static final String DOWNLOAD_URL = "DOWNLOAD_URL";
-  private static final String DOWNLOAD_ID = "DOWNLOAD_ID";
+  static final String DOWNLOAD_ID = "DOWNLOAD_ID";
+  static final String DOWNLOAD_IDS = "DOWNLOAD_IDS";
+  private static final String REQUESTS = "REQUESTS";
+  private static final String BATCH_ID = "BATCH_ID";
+  private static final String FILE_PATHS = "FILE_PATHS";
+  private static final String ERRORS = "ERRORS";
+  private static final String BYTES = "BYTES";
+  private static final String ELAPSED_MS = "ELAPSED_MS";
+  private static final String RESULTS = "RESULTS";
   private static final String TITLE = "TITLE";
   private static final String DESCRIPTION = "DESCRIPTION";
   private static final String WIFI_ONLY = "WIFI_ONLY";
   private static final String REQUIRES_CHARGING = "REQUIRED_CHARGING";
   private static final String REQUIRES_DEVICE_IDLE = "REQUIRES_DEVICE_IDLE";
   private static final String SHOW_NOTIFICATION = "SHOW_NOTIFICATION";
+  private static final String ENGINE = "ENGINE";
+  private static final String CONNECTIONS = "CONNECTIONS";
+  private static final String PRIORITY = "PRIORITY";
 
-  private static final String FILE_PATH = "FILE_PATH";
+  static final String FILE_PATH = "FILE_PATH";
   private static final String SUCCESS = "SUCCESS";
-  private static final String ERROR_MSG = "ERROR_MSG";
-  private static final String TOTAL = "TOTAL";
-  private static final String PROGRESS = "PROGRESS";
+  static final String ERROR_MSG = "ERROR_MSG";
+  static final String TOTAL = "TOTAL";
+  static final String PROGRESS = "PROGRESS";
+  static final String BYTES_PER_SECOND = "BYTES_PER_SECOND";
+  static final String STATUS = "STATUS";
+  static final String ETA_MS = "ETA_MS";
+  private static final String FINALIZE_MS = "FINALIZE_MS";
+  private static final String BYTES_COPIED = "BYTES_COPIED";
+  private static final String CACHED = "CACHED";
+  private static final String SHA256 = "SHA256";
+  private static final String SIZE = "SIZE";
+  private static final String POST_PROCESS = "POST_PROCESS";
+  private static final String PROGRESS_INTERVAL = "PROGRESS_INTERVAL_MS";
+  private static final String PROGRESS_MIN_BYTES = "PROGRESS_MIN_BYTES";
+  private static final String PROGRESS_MIN_PERCENT = "PROGRESS_MIN_PERCENT";
+  private static final String REPORT_PENDING = "REPORT_PENDING";
+  private static final String MAX_BYTES_PER_SECOND = "MAX_BYTES_PER_SECOND";
+  private static final String MIRRORS = "MIRRORS";
+  private static final String PATCH_URL = "PATCH_URL";
+  private static final String BASE_PATH = "BASE_PATH";
+  private static final String STREAM_URL = "STREAM_URL";
 
   /**
    * Plugin registration.
@@ -99,25 +241,70 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
     Context ctx = getActiveContext();
 
     mDM = ( DownloadManager )ctx.getSystemService(Context.DOWNLOAD_SERVICE);
-    mHandler = new Handler();
-    try {
-      mMsgDigest = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {
-      Log.e(TAG, e.getMessage());
-    }
+    mConnectivity = ( ConnectivityManager )ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+    mMainHandler = new Handler(Looper.getMainLooper());
+    mWorkerThread = new HandlerThread("backdown-worker");
+    mWorkerThread.start();
+    mHandler = new Handler(mWorkerThread.getLooper());
+    mTransferExecutor = Executors.newCachedThreadPool();
+    mDbHelper = new BackdownDbHelper(ctx);
+    mIndex = new DownloadIndex(mDbHelper);
+    mRequestStore = new RequestStore(mDbHelper);
+    mCache = new DownloadCache(mDbHelper);
+    mScheduler = new DownloadScheduler(new DownloadScheduler.Dispatcher() {
+      @Override
+      public boolean dispatch(String downloadId) {
+        boolean started = startDownload(downloadId);
+        if ( !started ) {
+          setEnqueued(downloadId, false);
+        }
+        return started;
+      }
+    });
+    downloadsObserver = new DownloadsObserver(mHandler);
 
     createNotificationChannel();
+    mNotifications = new NotificationRenderer(ctx, CHANNEL_ID);
 
     // so we don't leak the receiver that we add below
     registrar.addViewDestroyListener(this);
 
-    if ( countActiveDownloads() > 0 ) {
-      startProgressChecking();
-    }
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        // pick up whatever we were asked to do before the process last died.
+        for (DownloadRequest r : mRequestStore.getAll()) {
+          requests.put(r.getDownloadId(), r);
+          mStates.onCreated(r.getDownloadId(), r.isEnqueued, getResumedBytes(r.getDownloadId()), r.size);
+          // the DownloadManager carried on with these, so they are using a slot.
+          if ( r.isEnqueued && mIndex.getManagerId(r.getDownloadId()) != DownloadIndex.NOT_FOUND ) {
+            mScheduler.attach(r.getDownloadId(), r.uri.getHost(), r.priority);
+          }
+        }
+
+        // watching costs nothing while idle, polling only starts if there is something to poll.
+        if ( !PROGRESS_MODE_POLL.equals(mProgressMode) || countActiveDownloads() > 0 ) {
+          startProgressChecking();
+        }
+      }
+    });
   }
 
   @Override
-  public void onMethodCall(MethodCall call, Result result) {
+  public void onMethodCall(final MethodCall call, Result result) {
+    final Result mainResult = new MainThreadResult(result);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        handleMethodCall(call, mainResult);
+      }
+    });
+  }
+
+  /**
+   * Runs on the worker thread.
+   */
+  private void handleMethodCall(MethodCall call, Result result) {
     switch (call.method) {
       case METHOD_CREATE_DOWNLOAD:
         createDownload(call, result);
@@ -125,13 +312,43 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
       case METHOD_ENQUEUE_DOWNLOAD:
         enqueueDownload(call, result);
         break;
+      case METHOD_CREATE_DOWNLOADS:
+        createDownloads(call, result);
+        break;
+      case METHOD_ENQUEUE_DOWNLOADS:
+        enqueueDownloads(call, result);
+        break;
+      case METHOD_SET_PRIORITY:
+        setPriority(call, result);
+        break;
+      case METHOD_GET_METRICS:
+        result.success(mMetrics.toMap());
+        break;
+      case METHOD_ENQUEUE_BULK:
+        enqueueBulk(call, result);
+        break;
+      case METHOD_GET_STREAM_URL:
+        getStreamUrl(call, result);
+        break;
+      case METHOD_GET_DOWNLOADS:
+        result.success(mStates.toList());
+        break;
+      case METHOD_GET_DOWNLOAD:
+        // null if we know nothing about it.
+        result.success(mStates.toMap((String) call.argument(DOWNLOAD_ID)));
+        break;
+      case METHOD_SET_BANDWIDTH_LIMIT:
+        setBandwidthLimit(call, result);
+        break;
+      case METHOD_SET_NETWORK_POLICY:
+        setNetworkPolicy(call, result);
+        break;
       case METHOD_CANCEL_DOWNLOAD:
         String dId = call.argument(DOWNLOAD_ID);
         cancelDownload(dId, result);
         break;
       case METHOD_SET_DEFAULTS:
-        long color = call.argument("color");
-        mNotificationColor = (int)color;
+        setDefaults(call, result);
         break;
       case METHOD_READY:
         initialise();
@@ -141,26 +358,209 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
     }
   }
 
+  private void setDefaults(MethodCall call, Result result) {
+    long color = call.argument(DEFAULT_COLOR);
+    mNotifications.setColor((int)color);
+
+    Boolean groupNotifications = call.argument(DEFAULT_GROUP_NOTIFICATIONS);
+    if ( groupNotifications != null ) {
+      mNotifications.setGrouped(groupNotifications);
+    }
+
+    Number metricsInterval = call.argument(DEFAULT_METRICS_INTERVAL);
+    if ( metricsInterval != null ) {
+      mMetricsIntervalMs = Math.max(0, metricsInterval.longValue());
+      mHandler.removeCallbacks(metricsReporter);
+      if ( mMetricsIntervalMs > 0 ) {
+        mHandler.postDelayed(metricsReporter, mMetricsIntervalMs);
+      }
+    }
+
+    String progressMode = call.argument(DEFAULT_PROGRESS_MODE);
+    if ( progressMode != null && !progressMode.equals(mProgressMode) ) {
+      // switch over, whatever was running carries on in the new mode.
+      stopProgressChecking(true);
+      mProgressMode = progressMode;
+      startProgressChecking();
+    }
+
+    Boolean batchProgress = call.argument(DEFAULT_BATCH_PROGRESS);
+    if ( batchProgress != null ) {
+      isBatchingProgress = batchProgress;
+    }
+
+    String destination = call.argument(DEFAULT_DESTINATION);
+    if ( destination != null ) {
+      mDestination = destination;
+    }
+
+    Boolean cache = call.argument(DEFAULT_CACHE);
+    if ( cache != null ) {
+      isCacheEnabled = cache;
+    }
+    // ints or longs depending on size.
+    Number cacheMaxBytes = call.argument(DEFAULT_CACHE_MAX_BYTES);
+    if ( cacheMaxBytes != null ) {
+      mCache.setMaxBytes(cacheMaxBytes.longValue());
+    }
+
+    Boolean checkStorage = call.argument(DEFAULT_CHECK_STORAGE);
+    if ( checkStorage != null ) {
+      isCheckingStorage = checkStorage;
+    }
+
+    Integer maxConcurrent = call.argument(DEFAULT_MAX_CONCURRENT);
+    Integer maxPerHost = call.argument(DEFAULT_MAX_PER_HOST);
+    if ( maxConcurrent != null || maxPerHost != null ) {
+      // whichever wasn't sent stays as it was.
+      if ( maxConcurrent != null ) {
+        mMaxConcurrent = maxConcurrent;
+      }
+      if ( maxPerHost != null ) {
+        mMaxPerHost = maxPerHost;
+      }
+      applyLimits();
+    }
+    result.success(null);
+  }
+
+  /**
+   * Limits one download when there is a DOWNLOAD_ID, otherwise all of them together.
+   * Only the chunked engine can be throttled, the DownloadManager goes as fast as it likes.
+   */
+  private void setBandwidthLimit(MethodCall call, Result result) {
+    String downloadId = call.argument(DOWNLOAD_ID);
+    // ints or longs depending on size.
+    Number maxBytesPerSecond = call.argument(MAX_BYTES_PER_SECOND);
+    long limit = maxBytesPerSecond == null ? TokenBucket.UNLIMITED : Math.max(0, maxBytesPerSecond.longValue());
+
+    HashMap<String, Object> args = new HashMap<>();
+    if ( downloadId == null ) {
+      mMaxBytesPerSecond = limit;
+      applyLimits();
+      args.put(SUCCESS, true);
+      result.success(args);
+      return;
+    }
+
+    DownloadRequest r = requests.get(downloadId);
+    if ( r == null ) {
+      args.put(SUCCESS, false);
+      result.success(args);
+      return;
+    }
+
+    r.maxBytesPerSecond = limit;
+    mRequestStore.put(r);
+    ChunkedDownloader downloader = mChunkedDownloads.get(downloadId);
+    if ( downloader != null ) {
+      downloader.setMaxBytesPerSecond(limit);
+    }
+    args.put(SUCCESS, true);
+    result.success(args);
+  }
+
+  /**
+   * Turns adaptive limits on or off, and sets the limits for metered networks.
+   */
+  private void setNetworkPolicy(MethodCall call, Result result) {
+    Number meteredMaxBytesPerSecond = call.argument(POLICY_METERED_MAX_BYTES_PER_SECOND);
+    Integer meteredMaxConcurrent = call.argument(POLICY_METERED_MAX_CONCURRENT);
+    mNetworkPolicy.setMeteredLimits(
+            meteredMaxBytesPerSecond == null ? TokenBucket.UNLIMITED : meteredMaxBytesPerSecond.longValue(),
+            meteredMaxConcurrent == null ? DownloadScheduler.UNLIMITED : meteredMaxConcurrent);
+
+    Boolean adaptive = call.argument(POLICY_ADAPTIVE);
+    mNetworkPolicy.setEnabled(adaptive != null && adaptive);
+    mHandler.removeCallbacks(networkPolicyChecker);
+    if ( mNetworkPolicy.isEnabled() ) {
+      // picks up whether we're metered straight away.
+      networkPolicyChecker.run();
+    }
+    applyLimits();
+    result.success(null);
+  }
+
+  /**
+   * Hands the limits to the scheduler and the shared bucket, after the network policy has had its say.
+   */
+  private void applyLimits() {
+    mScheduler.setLimits(mNetworkPolicy.getMaxConcurrent(mMaxConcurrent), mMaxPerHost);
+    mSharedBucket.setRate(mNetworkPolicy.getRate(mMaxBytesPerSecond));
+  }
+
   private void initialise() {
     IntentFilter filter = new IntentFilter(
             DownloadManager.ACTION_DOWNLOAD_COMPLETE
     );
-    // add the receiver.
-    getActiveContext().registerReceiver(this, filter);
+    // add the receiver, onReceive is called on the worker thread.
+    getActiveContext().registerReceiver(this, filter, null, mHandler);
+
+    // The DownloadManager carried on without us, but chunked downloads and
+    // anything still waiting for a slot died with the process.
+    // Now there is someone to tell, pick them back up.
+    for (DownloadRequest r : requests.values()) {
+      if ( r.isEnqueued && !mScheduler.isRunning(r.getDownloadId()) ) {
+        mScheduler.enqueue(r.getDownloadId(), r.uri.getHost(), r.priority);
+      }
+    }
 
     // tell dart code we're ready to enqueue downloads and broadcast events...
-    this.mChannel.invokeMethod(READY_EVENT, null);
+    invokeMethod(READY_EVENT, null);
   }
 
+  @SuppressWarnings("unchecked")
   private void createDownload(MethodCall call, Result result ) {
-    Uri uri = Uri.parse(call.argument(DOWNLOAD_URL).toString());
-    boolean wifiOnly = call.argument(WIFI_ONLY);
-    boolean requiresCharging = call.argument(REQUIRES_CHARGING);
-    boolean requiresDeviceIdle = call.argument(REQUIRES_DEVICE_IDLE);
-    boolean showNotification = call.argument(SHOW_NOTIFICATION);
-    String title = call.argument(TITLE);
-    String description = call.argument(DESCRIPTION);
+    DownloadRequest request = createRequest((Map<String, Object>) call.arguments);
+    result.success(request.getDownloadId());
+  }
+
+  /**
+   * Creates several downloads at once.
+   * Replies with the DOWNLOAD_IDS, null where one couldn't be created,
+   * and whether each one was created in RESULTS.
+   */
+  private void createDownloads(MethodCall call, Result result) {
+    final List<Map<String, Object>> arguments = call.argument(REQUESTS);
+    final ArrayList<String> downloadIds = new ArrayList<>();
+    final ArrayList<Boolean> results = new ArrayList<>();
+
+    mDbHelper.runInTransaction(new Runnable() {
+      @Override
+      public void run() {
+        for (Map<String, Object> requestArgs : arguments) {
+          try {
+            downloadIds.add(createRequest(requestArgs).getDownloadId());
+            results.add(true);
+          } catch (RuntimeException e) {
+            // a bad request shouldn't take the rest down with it.
+            Log.e(TAG, e.toString());
+            downloadIds.add(null);
+            results.add(false);
+          }
+        }
+      }
+    });
+
+    HashMap<String, Object> args = new HashMap<>();
+    args.put(DOWNLOAD_IDS, downloadIds);
+    args.put(RESULTS, results);
+    result.success(args);
+  }
+
+  /**
+   * Builds a DownloadRequest from the arguments of createDownload and keeps it.
+   */
+  private DownloadRequest createRequest(Map<String, Object> arguments) {
+    Uri uri = Uri.parse(arguments.get(DOWNLOAD_URL).toString());
+    boolean wifiOnly = (Boolean) arguments.get(WIFI_ONLY);
+    boolean requiresCharging = (Boolean) arguments.get(REQUIRES_CHARGING);
+    boolean requiresDeviceIdle = (Boolean) arguments.get(REQUIRES_DEVICE_IDLE);
+    boolean showNotification = (Boolean) arguments.get(SHOW_NOTIFICATION);
+    String title = (String) arguments.get(TITLE);
+    String description = (String) arguments.get(DESCRIPTION);
     DownloadRequest request = new DownloadRequest(
+            DownloadIds.fromUrl(uri.toString()),
             uri,
             title,
             description,
@@ -168,38 +568,222 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
             requiresCharging,
             requiresDeviceIdle,
             showNotification);
+
+    // older clients don't send these.
+    String engine = (String) arguments.get(ENGINE);
+    if ( engine != null ) {
+      request.engine = engine;
+    }
+    Integer connections = (Integer) arguments.get(CONNECTIONS);
+    if ( connections != null ) {
+      request.connections = connections;
+    }
+    Integer priority = (Integer) arguments.get(PRIORITY);
+    if ( priority != null ) {
+      request.priority = priority;
+    }
+    request.sha256 = (String) arguments.get(SHA256);
+    request.postProcess = (String) arguments.get(POST_PROCESS);
+    Number progressInterval = (Number) arguments.get(PROGRESS_INTERVAL);
+    if ( progressInterval != null ) {
+      request.progressIntervalMs = progressInterval.longValue();
+    }
+    Number progressMinBytes = (Number) arguments.get(PROGRESS_MIN_BYTES);
+    if ( progressMinBytes != null ) {
+      request.progressMinBytes = progressMinBytes.longValue();
+    }
+    Integer progressMinPercent = (Integer) arguments.get(PROGRESS_MIN_PERCENT);
+    if ( progressMinPercent != null ) {
+      request.progressMinPercent = progressMinPercent;
+    }
+    Boolean reportPending = (Boolean) arguments.get(REPORT_PENDING);
+    if ( reportPending != null ) {
+      request.reportPending = reportPending;
+    }
+    Number maxBytesPerSecond = (Number) arguments.get(MAX_BYTES_PER_SECOND);
+    if ( maxBytesPerSecond != null ) {
+      request.maxBytesPerSecond = Math.max(0, maxBytesPerSecond.longValue());
+    }
+    request.patchUrl = (String) arguments.get(PATCH_URL);
+    request.basePath = (String) arguments.get(BASE_PATH);
+    @SuppressWarnings("unchecked")
+    List<String> mirrors = (List<String>) arguments.get(MIRRORS);
+    if ( mirrors != null ) {
+      for (String mirror : mirrors) {
+        request.mirrors.add(Uri.parse(mirror));
+      }
+    }
+    // ints or longs depending on size.
+    Number size = (Number) arguments.get(SIZE);
+    if ( size != null ) {
+      request.size = size.longValue();
+    }
     this.requests.put(request.getDownloadId(), request);
-    result.success(request.getDownloadId());
+    mRequestStore.put(request);
+    mStates.onCreated(request.getDownloadId(), false, 0, request.size);
+    return request;
   }
 
+  /**
+   * Replies with a url on 127.0.0.1 the download can be read from while it downloads,
+   * reads wait for bytes that haven't arrived yet. Only the chunked engine knows which
+   * parts of its file have arrived, so DownloadManager downloads can't be streamed.
+   */
+  private void getStreamUrl(MethodCall call, Result result) {
+    String downloadId = call.argument(DOWNLOAD_ID);
+    HashMap<String, Object> args = new HashMap<>();
+    DownloadRequest r = downloadId == null ? null : requests.get(downloadId);
+    // patches are written front to back by PatchTask, which can't be streamed either.
+    if ( r == null || !r.isEnqueued || !DownloadRequest.ENGINE_CHUNKED.equals(r.engine)
+            || (r.patchUrl != null && !r.isPatchFailed) ) {
+      args.put(SUCCESS, false);
+      args.put(ERROR_MSG, "Only enqueued downloads on the chunked engine can be streamed.");
+      result.success(args);
+      return;
+    }
+
+    if ( mStreamServer == null ) {
+      StreamServer server = new StreamServer(mTransferExecutor);
+      try {
+        server.start();
+      } catch (IOException e) {
+        Log.e(TAG, e.toString());
+        args.put(SUCCESS, false);
+        args.put(ERROR_MSG, e.getMessage());
+        result.success(args);
+        return;
+      }
+      mStreamServer = server;
+      // from now on every chunked download is registered as it starts.
+      for (ChunkedDownloader downloader : mChunkedDownloads.values()) {
+        mStreamServer.register(downloader.getDownloadId(), downloader);
+      }
+    }
+
+    // one that hasn't started yet is waited for.
+    args.put(STREAM_URL, mStreamServer.getUrl(downloadId));
+    args.put(SUCCESS, true);
+    result.success(args);
+  }
 
   private void cancelDownload(String downloadId, Result result) {
     HashMap<String, Object> args = new HashMap<>();
+    mMetrics.onCancelled(downloadId);
+
+    BulkDownloader batch = mBulkBatches.remove(downloadId);
+    if ( batch != null ) {
+      // files that are in place stay there.
+      batch.cancel();
+      args.put(SUCCESS, true);
+      result.success(args);
+      return;
+    }
+
+    if ( mScheduler.remove(downloadId) ) {
+      // it never started.
+      setEnqueued(downloadId, false);
+      args.put(SUCCESS, true);
+      result.success(args);
+      return;
+    }
+    if ( mDeferred.remove(downloadId) ) {
+      // waiting for room.
+      setEnqueued(downloadId, false);
+      args.put(SUCCESS, true);
+      result.success(args);
+      return;
+    }
+
+    boolean wasRunning = mScheduler.isRunning(downloadId);
+    mScheduler.finished(downloadId);
+
+    PatchTask patch = mPatches.remove(downloadId);
+    if ( patch != null ) {
+      patch.cancel();
+      setEnqueued(downloadId, false);
+      mNotifications.cancel(downloadId.hashCode());
+      args.put(SUCCESS, true);
+      result.success(args);
+      return;
+    }
+
+    ChunkedDownloader downloader = mChunkedDownloads.remove(downloadId);
+    if ( downloader != null ) {
+      downloader.cancel();
+      unregisterStream(downloadId);
+      mRequestStore.removeResumeState(downloadId);
+      setEnqueued(downloadId, false);
+      mNotifications.cancel(downloadId.hashCode());
+      args.put(SUCCESS, true);
+      result.success(args);
+      return;
+    }
+
+    long id = mIndex.getManagerId(downloadId);
+    if ( id == DownloadIndex.NOT_FOUND ) {
+      // enqueued before we kept an index.
+      id = findManagerId(downloadId);
+    }
+
+    if ( id == DownloadIndex.NOT_FOUND ) {
+      if ( wasRunning ) {
+        // probing its mirrors or waiting to retry, it won't be started now.
+        setEnqueued(downloadId, false);
+      }
+      args.put(SUCCESS, wasRunning);
+      result.success(args);
+      return;
+    }
+
+    int numDeleted = mDM.remove(id);
+    mIndex.remove(downloadId);
+    setEnqueued(downloadId, false);
+    args.put(SUCCESS, numDeleted > 0);
+    result.success(args);
+  }
+
+  /**
+   * Scans every DownloadManager row for the one with a matching url.
+   * Only needed for downloads that aren't in the index.
+   * @return the DownloadManager id, or DownloadIndex.NOT_FOUND
+   */
+  private long findManagerId(String downloadId) {
     Query query = new Query();
     Cursor c = mDM.query(query);
 
-    if (c.moveToFirst())
-    {
+    try {
+      return findManagerId(c, downloadId);
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * @return the id of the first row from c with a matching url, or DownloadIndex.NOT_FOUND
+   */
+  static long findManagerId(Cursor c, String downloadId) {
+    if (c.moveToFirst()) {
       do {
         String url = c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI));
-        if ( getMD5(url).equals(downloadId) ) {
-          long id = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_ID));
-          int numDeleted = mDM.remove(id);
-          if ( numDeleted > 0 ) {
-            args.put(SUCCESS, true);
-          } else {
-            args.put(SUCCESS, false);
-          }
-          result.success(args);
-          return;
+        if ( DownloadIds.fromUrl(url).equals(downloadId) ) {
+          return c.getLong(c.getColumnIndex(DownloadManager.COLUMN_ID));
         }
       } while(c.moveToNext());
     }
+    return DownloadIndex.NOT_FOUND;
+  }
 
-    if( !args.containsKey(SUCCESS) ) {
-      args.put(SUCCESS, false);
-      result.success(args);
+  /**
+   * @return the backdown download id for the DownloadManager row the cursor is on.
+   */
+  private String getDownloadId(Cursor c) {
+    long id = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_ID));
+    String downloadId = mIndex.getDownloadId(id);
+    if ( downloadId == null ) {
+      // enqueued before we kept an index.
+      downloadId = DownloadIds.fromUrl(c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI)));
     }
+    return downloadId;
   }
 
 
@@ -209,69 +793,543 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
   private void enqueueDownload(MethodCall call, Result result) {
     String downloadId = call.argument(DOWNLOAD_ID);
     HashMap<String, Object> args = new HashMap<>();
-    if (!requests.containsKey(downloadId)) {
-      args.put(SUCCESS, false);
-      result.success(args);
-      return;
-    }
+    args.put(SUCCESS, enqueue(downloadId));
+    result.success(args);
+  }
 
-    DownloadRequest r = requests.get(downloadId);
-    Request request = new Request(r.uri);
-    request.setTitle(r.title);
-    request.setDescription(r.description);
-    request.setVisibleInDownloadsUi(false);
-    request.setNotificationVisibility(Request.VISIBILITY_HIDDEN);
+  /**
+   * Enqueues several downloads at once.
+   * Replies with whether each one was enqueued in RESULTS.
+   */
+  private void enqueueDownloads(MethodCall call, Result result) {
+    final List<String> downloadIds = call.argument(DOWNLOAD_IDS);
+    final ArrayList<Boolean> results = new ArrayList<>();
+
+    mDbHelper.runInTransaction(new Runnable() {
+      @Override
+      public void run() {
+        for (String downloadId : downloadIds) {
+          results.add(enqueue(downloadId));
+        }
+      }
+    });
 
-    if (r.wifiOnly) {
-      request.setAllowedNetworkTypes(Request.NETWORK_WIFI);
-    } else {
-      request.setAllowedNetworkTypes(Request.NETWORK_MOBILE|Request.NETWORK_WIFI);
+    HashMap<String, Object> args = new HashMap<>();
+    args.put(RESULTS, results);
+    result.success(args);
+  }
+
+  /**
+   * Hands a created download to the scheduler, it is started once there is room for it.
+   * @return false if there is no such download, or it couldn't be started.
+   */
+  private boolean enqueue(String downloadId) {
+    DownloadRequest r = requests.get(downloadId);
+    if ( r == null ) {
+      return false;
     }
 
-    if (Build.VERSION.SDK_INT >= 24 && r.requiresCharging) {
-      request.setRequiresCharging(true);
+    if ( isCacheEnabled ) {
+      File cached = mCache.get(downloadId, r.sha256, r.size);
+      if ( cached != null ) {
+        // we already have it, no need to go to the network.
+        forgetRequest(downloadId);
+        HashMap<String, Object> args = new HashMap<>();
+        args.put(DOWNLOAD_ID, downloadId);
+        args.put(FILE_PATH, cached.getAbsolutePath());
+        args.put(FINALIZE_MS, 0L);
+        args.put(BYTES_COPIED, 0L);
+        args.put(CACHED, true);
+        args.put(SUCCESS, true);
+        mStates.onComplete(downloadId, cached.getAbsolutePath(), cached.length());
+        invokeMethod(COMPLETE_EVENT, args);
+        mMetrics.onCacheHit();
+        return true;
+      }
     }
 
-    if (Build.VERSION.SDK_INT >= 24 && r.requiresDeviceIdle) {
-      request.setRequiresDeviceIdle(true);
+    // Enqueueing something that's already queued or running joins the
+    // existing transfer rather than starting another.
+    setEnqueued(downloadId, true);
+    if ( !mScheduler.isQueued(downloadId) && !mScheduler.isRunning(downloadId) ) {
+      mMetrics.onEnqueued(downloadId);
+      // a fresh start, every mirror gets its chances again.
+      r.mirror = 0;
+      r.failures = 0;
+      r.isPatchFailed = false;
+      r.isAdmitted = false;
     }
+    return mScheduler.enqueue(downloadId, r.uri.getHost(), r.priority);
+  }
 
-    mDM.enqueue(request);
+  /**
+   * Downloads a batch of small files straight away, outside the scheduler and the database.
+   * Replies with a BATCH_ID and the DOWNLOAD_IDS, null where a url was no good.
+   * Failed files get a COMPLETE_EVENT each, the batch gets one BULK_COMPLETE_EVENT.
+   */
+  private void enqueueBulk(MethodCall call, Result result) {
+    List<Map<String, Object>> arguments = call.argument(REQUESTS);
+    Integer connections = call.argument(CONNECTIONS);
+    String batchId = UUID.randomUUID().toString();
+    ArrayList<String> downloadIds = new ArrayList<>();
+    ArrayList<BulkDownloader.Item> items = new ArrayList<>();
+    HashMap<String, File> cached = new HashMap<>();
+    HashSet<String> destinations = new HashSet<>();
+
+    for (Map<String, Object> requestArgs : arguments) {
+      String url = (String) requestArgs.get(DOWNLOAD_URL);
+      URL parsed;
+      try {
+        parsed = new URL(url);
+      } catch (MalformedURLException e) {
+        Log.e(TAG, e.toString());
+        downloadIds.add(null);
+        continue;
+      }
+      String downloadId = DownloadIds.fromUrl(url);
+      downloadIds.add(downloadId);
+
+      // ints or longs depending on size.
+      Number size = (Number) requestArgs.get(SIZE);
+      String sha256 = (String) requestArgs.get(SHA256);
+      long expectedSize = size == null ? IntegrityCheck.UNKNOWN_SIZE : size.longValue();
+      File file = isCacheEnabled ? mCache.get(downloadId, sha256, expectedSize) : null;
+      if ( file != null ) {
+        cached.put(downloadId, file);
+        continue;
+      }
 
-    startProgressChecking();
+      File destination = getDestination(downloadId, Uri.parse(url).getLastPathSegment());
+      if ( !destinations.add(destination.getPath()) ) {
+        // another file in the batch has the same name.
+        destination = new File(new File(getDownloadsDir(), downloadId), destination.getName());
+      }
+      IntegrityCheck check = IntegrityCheck.create(sha256, expectedSize);
+      items.add(new BulkDownloader.Item(downloadId, parsed, destination, check));
+    }
 
-    args.put(SUCCESS, true);
-    result.success(args);
-  }
+    BulkDownloader batch = new BulkDownloader(batchId, items,
+            connections == null ? BulkDownloader.DEFAULT_CONNECTIONS : connections, mTransferExecutor, bulkListener);
+    for (Map.Entry<String, File> entry : cached.entrySet()) {
+      batch.addCached(entry.getKey(), entry.getValue());
+    }
+    mBulkBatches.put(batchId, batch);
+    batch.start();
 
-  private Context getActiveContext() {
-    return (mRegistrar.activity() != null) ? mRegistrar.activity() : mRegistrar.context();
+    HashMap<String, Object> args = new HashMap<>();
+    args.put(BATCH_ID, batchId);
+    args.put(DOWNLOAD_IDS, downloadIds);
+    result.success(args);
   }
 
-  private int countActiveDownloads() {
-    Query query = new Query();
-    query.setFilterByStatus(DownloadManager.STATUS_RUNNING);
-    Cursor c = mDM.query(query);
-    return c.getCount();
-  }
+  /**
+   * Promotes or demotes a download that is waiting for a slot.
+   */
+  private void setPriority(MethodCall call, Result result) {
+    String downloadId = call.argument(DOWNLOAD_ID);
+    Integer priority = call.argument(PRIORITY);
+    DownloadRequest r = requests.get(downloadId);
 
-  @Override
-  public void onReceive(Context context, Intent intent) {
-    // handle our broadcast actions.
-    // let's see if we were successful...
-    final String action = intent.getAction();
-    if ( action == null ){
+    HashMap<String, Object> args = new HashMap<>();
+    if ( r == null || priority == null ) {
+      args.put(SUCCESS, false);
+      result.success(args);
       return;
     }
 
-    NotificationManagerCompat notificationManager = NotificationManagerCompat.from(getActiveContext());
-
-    if ( action.equals(DownloadManager.ACTION_DOWNLOAD_COMPLETE) ) {
-      long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0);
-
+    r.priority = priority;
+    mRequestStore.put(r);
+    mScheduler.setPriority(downloadId, priority);
+    args.put(SUCCESS, true);
+    result.success(args);
+  }
 
-      Query query = new Query();
-      query.setFilterById(id);
+  /**
+   * Starts the download on its engine, the scheduler calls this once there is room.
+   * @return false if it couldn't be started.
+   */
+  private boolean startDownload(String downloadId) {
+    DownloadRequest r = requests.get(downloadId);
+    if ( r == null ) {
+      return false;
+    }
+    if ( isCheckingStorage && !r.isAdmitted ) {
+      return admit(r);
+    }
+    mMetrics.onStarted(downloadId);
+
+    if ( r.patchUrl != null && r.basePath != null && !r.isPatchFailed ) {
+      if ( startPatch(r) ) {
+        return true;
+      }
+      // nothing to patch, it has to come in full.
+      r.isPatchFailed = true;
+    }
+
+    if ( DownloadRequest.ENGINE_CHUNKED.equals(r.engine) ) {
+      return enqueueChunkedDownload(r);
+    }
+
+    if ( !r.mirrors.isEmpty() && r.failures == 0 ) {
+      probeMirrors(r);
+      return true;
+    }
+    return startManagerDownload(r, r.getUrls().get(r.mirror));
+  }
+
+  /**
+   * Starts the download if there's room for it, asking the server how big it is first if
+   * we don't know. Downloads that would fit once others finish are deferred and keep
+   * their place, ones that won't fit at all fail.
+   * @return false if it was turned away.
+   */
+  private boolean admit(final DownloadRequest r) {
+    final String downloadId = r.getDownloadId();
+    long bytes = r.size >= 0 ? r.size : r.preflightBytes;
+    if ( bytes < 0 && !r.isPreflighted ) {
+      final URL url;
+      try {
+        url = new URL(r.uri.toString());
+      } catch (MalformedURLException e) {
+        Log.e(TAG, e.toString());
+        return false;
+      }
+
+      // it holds its slot while we ask.
+      mTransferExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          final long size = StorageAdmission.preflight(url);
+          mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              r.preflightBytes = size;
+              r.isPreflighted = true;
+              if ( requests.get(downloadId) != r || !mScheduler.isRunning(downloadId) ) {
+                // cancelled while we asked.
+                return;
+              }
+              if ( !startDownload(downloadId) ) {
+                mScheduler.finished(downloadId);
+                setEnqueued(downloadId, false);
+              }
+            }
+          });
+        }
+      });
+      return true;
+    }
+
+    if ( bytes < 0 ) {
+      // the server won't say, all we can do is try.
+      r.isAdmitted = true;
+      return startDownload(downloadId);
+    }
+
+    long required = bytes;
+    if ( !DownloadRequest.ENGINE_CHUNKED.equals(r.engine) && !(Build.VERSION.SDK_INT >= 19 && isExternalDestination()) ) {
+      // the DownloadManager's file is copied, both are there until it's done.
+      required += bytes;
+    }
+    if ( r.postProcess != null ) {
+      // a guess, unpacked is at least as big.
+      required += bytes;
+    }
+
+    File dir = getDownloadsDir();
+    mStorage.releaseFinished(mScheduler);
+    switch (mStorage.check(dir, required)) {
+      case StorageAdmission.ADMIT:
+        mStorage.reserve(downloadId, required);
+        r.isAdmitted = true;
+        return startDownload(downloadId);
+      case StorageAdmission.DEFER:
+        // give up the slot, but not from inside the scheduler.
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            mScheduler.finished(downloadId);
+            if ( mDeferred.isEmpty() ) {
+              mHandler.postDelayed(deferredRetrier, DEFERRED_RETRY_MS);
+            }
+            mDeferred.add(downloadId);
+          }
+        });
+        return true;
+      default:
+        sendFailure(COMPLETE_EVENT, downloadId, "Not enough space, needs " + required + " bytes, "
+                + StorageAdmission.getUsableSpace(dir) + " free.");
+        return false;
+    }
+  }
+
+  /**
+   * Finds the fastest mirror on the transfer threads, then hands the download to
+   * the DownloadManager from it. It holds its slot meanwhile.
+   */
+  private void probeMirrors(final DownloadRequest r) {
+    final String downloadId = r.getDownloadId();
+    final List<Uri> urls = r.getUrls();
+    final ArrayList<URL> candidates = new ArrayList<>();
+    for (Uri uri : urls) {
+      try {
+        candidates.add(new URL(uri.toString()));
+      } catch (MalformedURLException e) {
+        Log.e(TAG, e.toString());
+      }
+    }
+
+    mTransferExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final List<URL> ranked = Mirrors.rank(candidates, mTransferExecutor);
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            if ( requests.get(downloadId) != r || !mScheduler.isRunning(downloadId)
+                    || mIndex.getManagerId(downloadId) != DownloadIndex.NOT_FOUND ) {
+              // cancelled, or already started, while we were probing.
+              return;
+            }
+
+            int fastest = 0;
+            for (int i = 0; !ranked.isEmpty() && i < urls.size(); i++) {
+              if ( urls.get(i).toString().equals(ranked.get(0).toString()) ) {
+                fastest = i;
+                break;
+              }
+            }
+            r.mirror = fastest;
+            if ( !startManagerDownload(r, urls.get(fastest)) ) {
+              mScheduler.finished(downloadId);
+              setEnqueued(downloadId, false);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Enqueues the download with the DownloadManager, from url rather than r.uri if it's a mirror.
+   * @return false if it couldn't be started.
+   */
+  private boolean startManagerDownload(DownloadRequest r, Uri url) {
+    String downloadId = r.getDownloadId();
+    Request request = new Request(url);
+    request.setTitle(r.title);
+    request.setDescription(r.description);
+    request.setVisibleInDownloadsUi(false);
+    request.setNotificationVisibility(Request.VISIBILITY_HIDDEN);
+
+    if (r.wifiOnly) {
+      request.setAllowedNetworkTypes(Request.NETWORK_WIFI);
+    } else {
+      request.setAllowedNetworkTypes(Request.NETWORK_MOBILE|Request.NETWORK_WIFI);
+    }
+
+    if (Build.VERSION.SDK_INT >= 24 && r.requiresCharging) {
+      request.setRequiresCharging(true);
+    }
+
+    if (Build.VERSION.SDK_INT >= 24 && r.requiresDeviceIdle) {
+      request.setRequiresDeviceIdle(true);
+    }
+
+    // Download straight into our own external files dir when that's where it
+    // is going to end up, so it only needs renaming once it's done.
+    // Before 19 writing there needs a permission we don't ask for.
+    if ( Build.VERSION.SDK_INT >= 19 && isExternalDestination() ) {
+      request.setDestinationInExternalFilesDir(getActiveContext(), null,
+              "backdown" + File.separator + PARTIAL_DIR + File.separator + downloadId);
+    }
+
+    long managerId = mDM.enqueue(request);
+    mIndex.put(downloadId, managerId);
+
+    startProgressChecking();
+    return true;
+  }
+
+  /**
+   * Starts a failed DownloadManager download again from the next mirror, pausing once
+   * they have all failed. It keeps its slot meanwhile, so call this before giving it up.
+   * @return false if it has run out of chances.
+   */
+  private boolean retryManagerDownload(final DownloadRequest r) {
+    final List<Uri> urls = r.getUrls();
+    if ( ++r.failures >= Mirrors.MAX_ROUNDS * urls.size() ) {
+      return false;
+    }
+
+    final String downloadId = r.getDownloadId();
+    r.mirror = (r.mirror + 1) % urls.size();
+    long delay = r.failures % urls.size() == 0 ? Mirrors.getBackoffMs(r.failures / urls.size()) : 0;
+    mHandler.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        if ( requests.get(downloadId) != r || !r.isEnqueued || !mScheduler.isRunning(downloadId) ) {
+          // cancelled while we waited.
+          return;
+        }
+        if ( !startManagerDownload(r, urls.get(r.mirror)) ) {
+          mScheduler.finished(downloadId);
+          setEnqueued(downloadId, false);
+          sendFailure(COMPLETE_EVENT, downloadId, "failed restarting download.");
+        }
+      }
+    }, delay);
+    return true;
+  }
+
+  /**
+   * Downloads the request's patch and applies it to its base, on the transfer threads.
+   * @return false if there's no base to patch.
+   */
+  private boolean startPatch(DownloadRequest r) {
+    String downloadId = r.getDownloadId();
+    if ( mPatches.containsKey(downloadId) ) {
+      // already running.
+      return true;
+    }
+
+    File base = new File(r.basePath);
+    if ( !base.isFile() ) {
+      return false;
+    }
+    URL patchUrl;
+    try {
+      patchUrl = new URL(r.patchUrl);
+    } catch (MalformedURLException e) {
+      Log.e(TAG, e.toString());
+      return false;
+    }
+
+    File destination = getDestination(downloadId, r.uri.getLastPathSegment());
+    File dstDir = destination.getParentFile();
+    if ( !dstDir.exists() && !dstDir.mkdirs() ) {
+      return false;
+    }
+
+    PatchTask task = new PatchTask(downloadId, patchUrl, base, destination,
+            IntegrityCheck.create(r.sha256, r.size), patchListener, PROGRESS_INTERVAL_MS);
+    mPatches.put(downloadId, task);
+    mTransferExecutor.execute(task);
+    return true;
+  }
+
+  /**
+   * Starts the download on the chunked engine, straight into the backdown folder.
+   * @return false if it couldn't be started.
+   */
+  private boolean enqueueChunkedDownload(DownloadRequest r) {
+    String downloadId = r.getDownloadId();
+    if ( mChunkedDownloads.containsKey(downloadId) ) {
+      // already running.
+      return true;
+    }
+
+    ArrayList<URL> urls = new ArrayList<>();
+    for (Uri uri : r.getUrls()) {
+      try {
+        urls.add(new URL(uri.toString()));
+      } catch (MalformedURLException e) {
+        // a bad mirror is left out, it's only fatal if there's nothing left.
+        Log.e(TAG, e.toString());
+      }
+    }
+    if ( urls.isEmpty() ) {
+      return false;
+    }
+
+    File destination = getDestination(downloadId, r.uri.getLastPathSegment());
+    File dstDir = destination.getParentFile();
+    if ( !dstDir.exists() && !dstDir.mkdirs() ) {
+      return false;
+    }
+
+    ChunkedDownloader downloader = new ChunkedDownloader(
+            downloadId,
+            urls,
+            destination,
+            r.connections,
+            mTransferExecutor,
+            chunkedListener,
+            PROGRESS_INTERVAL_MS);
+    // carry on from the last attempt, if there was one.
+    downloader.setResumeState(mRequestStore.getResumeState(downloadId));
+    downloader.setIntegrityCheck(IntegrityCheck.create(r.sha256, r.size));
+    downloader.setMaxBytesPerSecond(r.maxBytesPerSecond);
+    downloader.setSharedBucket(mSharedBucket);
+    mChunkedDownloads.put(downloadId, downloader);
+    if ( mStreamServer != null ) {
+      mStreamServer.register(downloadId, downloader);
+    }
+    downloader.start();
+    return true;
+  }
+
+  /**
+   * Where finished downloads end up, the DownloadManager's own cache
+   * can be cleaned up by the system at any point.
+   */
+  private File getDownloadsDir() {
+    if ( isExternalDestination() ) {
+      return new File(getActiveContext().getExternalFilesDir(null), "backdown");
+    }
+    return new File(getActiveContext().getFilesDir() + File.separator + "backdown");
+  }
+
+  /**
+   * Where a finished download should go. Normally that's the backdown folder, but
+   * if a different download already finished there under the same name it goes
+   * in a folder of its own rather than overwrite it.
+   * @param filename - usually the url's last path segment, the download id is used if there isn't one.
+   */
+  private File getDestination(String downloadId, String filename) {
+    if ( filename == null || filename.isEmpty() ) {
+      // e.g. https://host/ has no path to name it after.
+      filename = downloadId;
+    }
+    File dstDir = getDownloadsDir();
+    File file = new File(dstDir, filename);
+    String owner = mCache.getOwner(file);
+    if ( owner != null && !owner.equals(downloadId) && file.exists() ) {
+      return new File(new File(dstDir, downloadId), filename);
+    }
+    return file;
+  }
+
+  private boolean isExternalDestination() {
+    return DESTINATION_EXTERNAL.equals(mDestination) && getActiveContext().getExternalFilesDir(null) != null;
+  }
+
+  private Context getActiveContext() {
+    return (mRegistrar.activity() != null) ? mRegistrar.activity() : mRegistrar.context();
+  }
+
+  private int countActiveDownloads() {
+    Query query = new Query();
+    query.setFilterByStatus(DownloadManager.STATUS_RUNNING);
+    Cursor c = mDM.query(query);
+    return c.getCount();
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    // handle our broadcast actions.
+    // let's see if we were successful...
+    final String action = intent.getAction();
+    if ( action == null ){
+      return;
+    }
+
+    if ( action.equals(DownloadManager.ACTION_DOWNLOAD_COMPLETE) ) {
+      long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0);
+
+
+      Query query = new Query();
+      query.setFilterById(id);
 
       Cursor c = mDM.query(query);
 
@@ -282,12 +1340,25 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
         // Clients can use this id to keep track of the download
         // jobs requested.
         String originalUrl = c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI));
-        String downloadId = getMD5(originalUrl);
-
-        args.put(DOWNLOAD_ID, downloadId);
+        String downloadId = getDownloadId(c);
+        // the row is finished with one way or another.
+        mIndex.remove(id);
 
         // get the downloads status
         int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
+        // decided before the slot is given up, a retry from the next mirror keeps it.
+        String reason = null;
+        boolean isRetrying = false;
+        if ( DownloadManager.STATUS_FAILED == status ) {
+          reason = errorToString(c.getInt(c.getColumnIndex(DownloadManager.COLUMN_REASON)));
+          DownloadRequest failed = requests.get(downloadId);
+          isRetrying = failed != null && retryManagerDownload(failed);
+        }
+        if ( !isRetrying ) {
+          mScheduler.finished(downloadId);
+        }
+
+        args.put(DOWNLOAD_ID, downloadId);
 
         if ( DownloadManager.STATUS_SUCCESSFUL == status) {
           // Let the notification finish...
@@ -297,11 +1368,15 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
           // Set the notification
           // this will disappear automatically after 5s
           // but we do clear it in the positive path.
-          Notification note = buildIndeterminateNotification(context, title, text);
-          notificationManager.notify((int)id, note);
+          mNotifications.updateIndeterminate((int)id, title, text, PROCESSING_TIMEOUT_MS);
+
+          // what the file should look like, if we were told.
+          DownloadRequest r = requests.get(downloadId);
+          IntegrityCheck check = r == null ? null : IntegrityCheck.create(r.sha256, r.size);
+          String postProcess = r == null ? null : r.postProcess;
 
           // Clean it out of our requests objects.
-          requests.remove(downloadId);
+          forgetRequest(downloadId);
 
 
           // Successfully downloaded by the DownloadManager
@@ -309,38 +1384,76 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
           // use it in the app and ensure it won't be cleared up by the system.
           // by default we move it into the data directory for our app.
           String uri = c.getString(c.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI));
-          FileDescriptor fd = getFileDescriptor(uri);
-          if ( fd == null ) {
-            sendFailure(COMPLETE_EVENT, "Failed to get file descriptor for downloaded file.");
-            return;
-          }
-          /// The DownloadManager puts our files into a cache directory that can
-          /// be cleaned up by the system at any point. We need to move this into a
-          /// the apps files directory.
-          String newPath = getActiveContext().getFilesDir() + File.separator + "backdown";
-          File dstDir = new File(newPath); // just the dir.
-          Uri downloadUri = Uri.parse(originalUrl);
+          // it may have come from a mirror, the file is named after the url we were given.
+          Uri downloadUri = r != null ? r.uri : Uri.parse(originalUrl);
+          Uri localUri = uri == null ? null : Uri.parse(uri);
           try {
             // find the filename from the originally downloaded url
-            String filename = downloadUri.getLastPathSegment();
+            File destination = getDestination(downloadId, downloadUri.getLastPathSegment());
+            File dstDir = destination.getParentFile();
+            String filename = destination.getName();
+
+            if ( postProcess != null ) {
+              // unpack straight from the DownloadManager's file, nothing is copied first.
+              InputStream in;
+              if ( localUri != null && "file".equals(localUri.getScheme()) ) {
+                in = new FileInputStream(localUri.getPath());
+              } else {
+                in = openDownloadedFile(uri);
+                if ( in == null ) {
+                  sendFailure(COMPLETE_EVENT, downloadId, "Failed to get file descriptor for downloaded file.");
+                  return;
+                }
+              }
+              // the open stream can still be read once the DownloadManager removes the file below.
+              long total = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+              if ( !startPostProcessing(r, in, total, filename, check, null) ) {
+                in.close();
+                sendFailure(COMPLETE_EVENT, downloadId, "Unknown post processor: " + postProcess);
+              }
+              stopProgressChecking();
+              mNotifications.cancel((int)id);
+              return;
+            }
 
-            // Move the file to the new location.
-            File newFile = copyFile(new FileInputStream(fd), dstDir, filename);
+            FileFinalizer.Result finalized;
+            if ( localUri != null && "file".equals(localUri.getScheme()) ) {
+              // We picked the destination, so it's one of our own files
+              // and can be renamed into place.
+              finalized = FileFinalizer.move(new File(localUri.getPath()), dstDir, filename, check);
+            } else {
+              /// The DownloadManager puts our files into a cache directory that can
+              /// be cleaned up by the system at any point. We need to copy this into
+              /// the apps files directory.
+              FileInputStream in = openDownloadedFile(uri);
+              if ( in == null ) {
+                sendFailure(COMPLETE_EVENT, downloadId, "Failed to get file descriptor for downloaded file.");
+                return;
+              }
+              finalized = FileFinalizer.copy(in, dstDir, filename, check);
+            }
 
             // If we fail for some weird reason, we'll get null back.
             // So tell the client we had a failure with this file.
-            if ( newFile == null ) {
-              sendFailure(COMPLETE_EVENT, "failed copying file.");
+            if ( finalized == null ) {
+              sendFailure(COMPLETE_EVENT, downloadId, "failed copying file.");
               return;
             }
 
             // set FILE_PATH
-            args.put(FILE_PATH, newFile.getAbsolutePath());
+            args.put(FILE_PATH, finalized.file.getAbsolutePath());
+            args.put(FINALIZE_MS, finalized.elapsedMs);
+            args.put(BYTES_COPIED, finalized.bytesCopied);
+            if ( isCacheEnabled ) {
+              mCache.put(downloadId, finalized.file, finalized.sha256);
+            }
+            mMetrics.onComplete(downloadId, finalized);
+            mStates.onComplete(downloadId, finalized.file.getAbsolutePath(), finalized.file.length());
 
           } catch (IOException e) {
             // Something went wrong during the copy... not good.
             Log.e(TAG, e.toString());
-            sendFailure(COMPLETE_EVENT, e.getMessage());
+            sendFailure(COMPLETE_EVENT, downloadId, e.getMessage());
             return;
           } finally {
             // This file will eventually get cleaned up anyways
@@ -355,18 +1468,30 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
           args.put(SUCCESS, true);
 
           // send
-          mChannel.invokeMethod(COMPLETE_EVENT, args);
+          invokeMethod(COMPLETE_EVENT, args);
           // end
         } else if (DownloadManager.STATUS_FAILED == status) {
           // failed..
-          String reason = errorToString(c.getInt(c.getColumnIndex(DownloadManager.COLUMN_REASON)));
-          sendFailure(COMPLETE_EVENT, reason);
+          if ( isRetrying ) {
+            Log.e(TAG, downloadId + " failed, " + reason + ", retrying.");
+            mDM.remove(id);
+          } else {
+            // keep the request so it can be enqueued again.
+            setEnqueued(downloadId, false);
+            sendFailure(COMPLETE_EVENT, downloadId, reason);
+          }
         }
       }
       // clean up.
       c.close();
+      String removedId = mIndex.getDownloadId(id);
+      if ( removedId != null ) {
+        // the row went away without finishing.
+        mScheduler.finished(removedId);
+        mIndex.remove(id);
+      }
       stopProgressChecking();
-      notificationManager.cancel((int)id);
+      mNotifications.cancel((int)id);
     }
   }
 
@@ -378,36 +1503,162 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
     // We need to query using the id...
     Query query = new Query();
     query.setFilterByStatus(DownloadManager.STATUS_RUNNING|DownloadManager.STATUS_PENDING);
+    long start = SystemClock.elapsedRealtime();
     Cursor c = mDM.query(query);
 
-    if ( c.moveToFirst() ) {
+    // the query only really runs once the cursor is moved.
+    boolean hasRows = c.moveToFirst();
+    mMetrics.record(Metrics.QUERY_MS, SystemClock.elapsedRealtime() - start);
+    if ( hasRows ) {
       do {
-        int size = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-        int progress = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-        String title = c.getString(c.getColumnIndex(DownloadManager.COLUMN_TITLE));
-        long id = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_ID));
-        String status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS)) == DownloadManager.STATUS_PENDING ? "Queued.." : "Downloading..";
-        String originalUrl = c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI));
-        String downloadId = getMD5(originalUrl);
+        reportProgress(c);
+      } while (c.moveToNext());
+    }
+    flushProgress();
 
-        if ( requests.containsKey(downloadId) && requests.get(downloadId).showNotification ) {
-          // show the notification.
-          Notification note = buildNotification(getActiveContext(), title, status, progress, size);
-          NotificationManagerCompat notificationManager = NotificationManagerCompat.from(getActiveContext());
-          notificationManager.notify(Math.round(id), note);
-        }
+    // nothing running or pending, no need to keep polling.
+    if ( c.getCount() == 0 ) {
+      stopProgressChecking(true);
+    }
 
-        HashMap<String, Object> args = new HashMap<>();
-        args.put(PROGRESS, progress);
-        args.put(TOTAL, size);
-        args.put(DOWNLOAD_ID, downloadId);
-        mChannel.invokeMethod(PROGRESS_EVENT, args);
-      } while (c.moveToNext());
+    c.close();
+  }
+
+  /**
+   * Only look at the downloads the DownloadManager told us have changed
+   * since the last flush.
+   */
+  private void updateChangedNotifications() {
+    isFlushScheduled = false;
+
+    if ( isFullScanPending ) {
+      isFullScanPending = false;
+      mChangedIds.clear();
+
+      Query query = new Query();
+      query.setFilterByStatus(DownloadManager.STATUS_RUNNING|DownloadManager.STATUS_PENDING);
+      reportProgress(query);
+      return;
     }
 
-    stopProgressChecking();
+    if ( mChangedIds.isEmpty() ) {
+      return;
+    }
+
+    long[] ids = new long[mChangedIds.size()];
+    int i = 0;
+    Iterator<Long> it = mChangedIds.iterator();
+    while ( it.hasNext() ) {
+      ids[i++] = it.next();
+    }
+    mChangedIds.clear();
+
+    Query query = new Query();
+    query.setFilterById(ids);
+    reportProgress(query);
+  }
+
+  private void reportProgress(Query query) {
+    long start = SystemClock.elapsedRealtime();
+    Cursor c = mDM.query(query);
+    if ( c == null ) {
+      return;
+    }
 
+    boolean hasRows = c.moveToFirst();
+    mMetrics.record(Metrics.QUERY_MS, SystemClock.elapsedRealtime() - start);
+    if ( hasRows ) {
+      do {
+        int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
+        // finished rows are handled by onReceive.
+        if ( status == DownloadManager.STATUS_RUNNING || status == DownloadManager.STATUS_PENDING ) {
+          reportProgress(c);
+        }
+      } while (c.moveToNext());
+    }
     c.close();
+    flushProgress();
+  }
+
+  /**
+   * Render the notification and send a progress event for the row the cursor is on.
+   */
+  private void reportProgress(Cursor c) {
+    // longs, files can be over 2GB.
+    long size = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+    long progress = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+    String title = c.getString(c.getColumnIndex(DownloadManager.COLUMN_TITLE));
+    long id = c.getLong(c.getColumnIndex(DownloadManager.COLUMN_ID));
+    boolean pending = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS)) == DownloadManager.STATUS_PENDING;
+    String status = pending ? "Queued.." : "Downloading..";
+    String downloadId = getDownloadId(c);
+
+    sendProgress(downloadId, progress, size, pending);
+
+    if ( requests.containsKey(downloadId) && requests.get(downloadId).showNotification ) {
+      // show the notification, it's only redrawn if it has visibly changed.
+      mNotifications.update((int)id, title, status, progress, size,
+              mTransferRate.getBytesPerSecond(downloadId), mTransferRate.getEtaMs(downloadId, progress, size));
+    }
+  }
+
+  /**
+   * Sends a progress event, or holds on to it until flushProgress when batching.
+   */
+  private void sendProgress(String downloadId, long progress, long total) {
+    sendProgress(downloadId, progress, total, false);
+  }
+
+  /**
+   * Sends progress unless the request's progress policy says it isn't worth it.
+   * @param pending - the download is queued rather than running.
+   */
+  private void sendProgress(String downloadId, long progress, long total, boolean pending) {
+    // every sample counts towards the rate, even ones that aren't sent.
+    if ( !pending ) {
+      mTransferRate.add(downloadId, progress);
+      mMetrics.onProgress(downloadId, progress);
+      mStorage.onWritten(downloadId, progress);
+    }
+    mStates.onProgress(downloadId, progress, total, pending ? 0 : mTransferRate.getBytesPerSecond(downloadId), pending);
+    if ( !mProgressThrottle.shouldSend(requests.get(downloadId), downloadId, progress, total, pending) ) {
+      return;
+    }
+
+    long bytesPerSecond = mTransferRate.getBytesPerSecond(downloadId);
+    long etaMs = mTransferRate.getEtaMs(downloadId, progress, total);
+    if ( isBatchingProgress ) {
+      mProgressBatch.add(downloadId, progress, total, bytesPerSecond, etaMs);
+      return;
+    }
+
+    invokeMethod(PROGRESS_EVENT, progressArgs(downloadId, progress, total, bytesPerSecond, etaMs));
+  }
+
+  /**
+   * @return the arguments of a PROGRESS_EVENT.
+   */
+  static HashMap<String, Object> progressArgs(String downloadId, long progress, long total, long bytesPerSecond, long etaMs) {
+    HashMap<String, Object> args = new HashMap<>();
+    args.put(PROGRESS, progress);
+    args.put(TOTAL, total);
+    args.put(BYTES_PER_SECOND, bytesPerSecond);
+    args.put(ETA_MS, etaMs);
+    args.put(DOWNLOAD_ID, downloadId);
+    return args;
+  }
+
+  /**
+   * Sends everything collected this tick as a single PROGRESS_BATCH_EVENT.
+   */
+  private void flushProgress() {
+    if ( mProgressBatch.isEmpty() ) {
+      return;
+    }
+
+    HashMap<String, Object> args = mProgressBatch.toArgs();
+    mProgressBatch.clear();
+    invokeMethod(PROGRESS_BATCH_EVENT, args);
   }
 
   /**
@@ -416,23 +1667,56 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
    * @param errorMsg - the error message.
    */
   private void sendFailure(String method, String errorMsg) {
+    sendFailure(method, null, errorMsg);
+  }
+
+  /**
+   * Will invoke a method on the MethodChannel.
+   * @param method - a supported method on the client.
+   * @param downloadId - the download that failed, if known.
+   * @param errorMsg - the error message.
+   */
+  private void sendFailure(String method, String downloadId, String errorMsg) {
     stopProgressChecking();
+    if ( downloadId != null && COMPLETE_EVENT.equals(method) ) {
+      mMetrics.onFailure(downloadId);
+      mStates.onFailure(downloadId, errorMsg);
+    }
     HashMap<String, Object> args = new HashMap<>();
     args.put(SUCCESS, false);
     args.put(ERROR_MSG, errorMsg);
-    mChannel.invokeMethod(method, args);
+    if ( downloadId != null ) {
+      args.put(DOWNLOAD_ID, downloadId);
+    }
+    invokeMethod(method, args);
   }
 
   /**
-   * Get a fileDescriptor from a string path which will be parsed to a Uri.
+   * Invokes a method on the MethodChannel from the main thread.
+   * Calls are delivered in the order they were made.
+   */
+  private void invokeMethod(final String method, final Object args) {
+    mMetrics.onMessage();
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mChannel.invokeMethod(method, args);
+      }
+    });
+  }
+
+  /**
+   * Opens a downloaded file from a string path which will be parsed to a Uri.
+   * The stream owns the ParcelFileDescriptor, so the fd stays open until the stream
+   * is closed rather than until the descriptor is garbage collected.
    * @param uri - String
-   * @return a FileDescriptor.
+   * @return the file, or null if it couldn't be opened.
    */
-  private FileDescriptor getFileDescriptor(String uri) {
+  private FileInputStream openDownloadedFile(String uri) {
     try {
       ParcelFileDescriptor pfd = getActiveContext().getContentResolver().openFileDescriptor(Uri.parse(uri), "r");
       if (pfd != null) {
-        return pfd.getFileDescriptor();
+        return new ParcelFileDescriptor.AutoCloseInputStream(pfd);
       } else {
         Log.e(TAG, "Couldn't retrieve file descriptor.");
         return null;
@@ -442,43 +1726,6 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
     }
   }
 
-  /**
-   * Copies a file from the given InputStream to the dstDir/filename
-   * @param src - the FileInputStream that contains the data for the result file.
-   * @param dstDir - the destination directory - will be created if necessary.
-   * @param filename - the filename to use for the result file.
-   * @return a new file with the contents of src in dstDir/filename
-   * @throws IOException
-   */
-  private File copyFile(FileInputStream src, File dstDir, String filename) throws IOException {
-    if (!dstDir.exists()) {
-      if (!dstDir.mkdirs()) {
-        return null;
-      }
-    }
-
-    File outputFile = new File(dstDir.getPath() + File.separator + filename);
-
-    FileChannel in = null;
-    FileChannel out = null;
-    try {
-      in = src.getChannel();
-      out = new FileOutputStream(outputFile).getChannel();
-      in.transferTo(0, in.size(), out);
-    } catch(FileNotFoundException e) {
-      Log.e(TAG, e.toString());
-    } finally {
-      if (in != null) {
-        in.close();
-      }
-      if ( out != null ) {
-        out.close();
-      }
-    }
-    return outputFile;
-  }
-
-
   String errorToString(int error) {
     // https://developer.android.com/reference/android/app/DownloadManager#column_reason
     switch(error)  {
@@ -507,46 +1754,6 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
 
 
 
-  Notification buildNotification(Context context, String title, String text, int progress, int max) {
-    return buildNotification(context, title, text, progress, max, false,false, 0);
-  }
-
-  Notification buildIndeterminateNotification(Context context, String title, String status) {
-    // having these disappear if we haven't canceled them in a reaonable amount of time.
-    // just as a precaution.
-    return buildNotification(context, title, status, 1, 1, true, true, 5000);
-  }
-
-  Notification buildNotification(Context context, String title, String text, int progress, int max, boolean indeterminate, boolean setTimeout, int timeoutMs) {
-    if ( 26 <= Build.VERSION.SDK_INT  ) {
-      Notification.Builder builder = new Notification.Builder(context, CHANNEL_ID);
-      builder.setSmallIcon(R.mipmap.ic_launcher)
-      .setContentTitle(title)
-      .setContentText(text)
-      .setColor(mNotificationColor)
-      .setProgress(max, progress, indeterminate);
-
-      if ( setTimeout ) {
-        builder.setTimeoutAfter(timeoutMs);
-      }
-      return builder.build();
-
-    } else {
-      NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID);
-      builder.setSmallIcon(R.mipmap.ic_launcher)
-      .setContentTitle(title)
-      .setContentText(text)
-      .setColor(mNotificationColor)
-      .setProgress(max, progress, false)
-      .setSound(null);
-
-      if ( setTimeout ) {
-        builder.setTimeoutAfter(timeoutMs);
-      }
-      return builder.build();
-    }
-  }
-
   private void createNotificationChannel() {
     // Create the NotificationChannel, but only on API 26+ because
     // the NotificationChannel class is new and not in the support library
@@ -564,9 +1771,28 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
 
   // PROGRESS CHECKING ...
   private void startProgressChecking() {
-    if(!isHandlerRunning) {
-      progressChecker.run();
-      isHandlerRunning = true;
+    if ( PROGRESS_MODE_POLL.equals(mProgressMode) ) {
+      if(!isHandlerRunning) {
+        isHandlerRunning = true;
+        progressChecker.run();
+      }
+      return;
+    }
+
+    if ( !isObserverRegistered ) {
+      try {
+        getActiveContext().getContentResolver().registerContentObserver(DOWNLOADS_CONTENT_URI, true, downloadsObserver);
+        isObserverRegistered = true;
+      } catch (SecurityException e) {
+        // Can't watch the downloads provider on this device, fall back to polling.
+        Log.e(TAG, e.toString());
+        mProgressMode = PROGRESS_MODE_POLL;
+        startProgressChecking();
+        return;
+      }
+      // pick up anything that was already running before we were watching.
+      isFullScanPending = true;
+      scheduleFlush();
     }
   }
 
@@ -575,13 +1801,33 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
   }
 
   private void stopProgressChecking(boolean force) {
+    if ( isObserverRegistered ) {
+      // The observer costs nothing while downloads are idle, so
+      // it is only removed when forced.
+      if ( force ) {
+        getActiveContext().getContentResolver().unregisterContentObserver(downloadsObserver);
+        mHandler.removeCallbacks(changeFlusher);
+        mChangedIds.clear();
+        isObserverRegistered = false;
+        isFlushScheduled = false;
+      }
+      return;
+    }
+
     // finally check if this was the last active download.
-    if ( countActiveDownloads() == 0 || force ) {
+    if ( force || countActiveDownloads() == 0 ) {
       mHandler.removeCallbacks(progressChecker);
       isHandlerRunning = false;
     }
   }
 
+  private void scheduleFlush() {
+    if ( !isFlushScheduled ) {
+      isFlushScheduled = true;
+      mHandler.postDelayed(changeFlusher, PROGRESS_INTERVAL_MS);
+    }
+  }
+
   /**
    * Checks download progress and updates status, then re-schedules itself.
    */
@@ -591,58 +1837,559 @@ public class BackdownPlugin extends BroadcastReceiver implements MethodCallHandl
       try {
         updateNotifications();
       } finally {
-        mHandler.postDelayed(progressChecker, 1000);
+        if ( isHandlerRunning ) {
+          mHandler.postDelayed(progressChecker, PROGRESS_INTERVAL_MS);
+        }
+      }
+    }
+  };
+
+  /**
+   * Sends METRICS_EVENT, then re-schedules itself.
+   */
+  private Runnable metricsReporter = new Runnable() {
+    @Override
+    public void run() {
+      invokeMethod(METRICS_EVENT, mMetrics.toMap());
+      if ( mMetricsIntervalMs > 0 ) {
+        mHandler.postDelayed(metricsReporter, mMetricsIntervalMs);
+      }
+    }
+  };
+
+  /**
+   * Feeds the network policy, then re-schedules itself while the policy is on.
+   */
+  private Runnable networkPolicyChecker = new Runnable() {
+    @Override
+    public void run() {
+      if ( !mNetworkPolicy.isEnabled() ) {
+        return;
+      }
+      boolean metered = mConnectivity != null && mConnectivity.isActiveNetworkMetered();
+      if ( mNetworkPolicy.update(metered, mTransferRate.getTotalBytesPerSecond(), mScheduler.getRunningCount()) ) {
+        applyLimits();
+      }
+      mHandler.postDelayed(networkPolicyChecker, NETWORK_POLICY_INTERVAL_MS);
+    }
+  };
+
+  /**
+   * Puts the downloads that were waiting for room back in the queue, they're admitted or deferred again.
+   */
+  private Runnable deferredRetrier = new Runnable() {
+    @Override
+    public void run() {
+      ArrayList<String> deferred = new ArrayList<>(mDeferred);
+      mDeferred.clear();
+      for (String downloadId : deferred) {
+        DownloadRequest r = requests.get(downloadId);
+        if ( r != null && r.isEnqueued ) {
+          mScheduler.enqueue(downloadId, r.uri.getHost(), r.priority);
+        }
       }
     }
   };
 
   /**
-   * Hash
+   * Reports progress for the downloads that changed since it last ran.
+   */
+  private Runnable changeFlusher = new Runnable() {
+    @Override
+    public void run() {
+      updateChangedNotifications();
+    }
+  };
+
+  /**
+   * Collects the ids of the downloads the DownloadManager reports as changed,
+   * they are flushed at most once every PROGRESS_INTERVAL_MS.
+   */
+  private ContentObserver downloadsObserver;
+
+  private class DownloadsObserver extends ContentObserver {
+    DownloadsObserver(Handler handler) {
+      super(handler);
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+      onChange(selfChange, null);
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+      long id = -1;
+      if ( uri != null ) {
+        try {
+          id = ContentUris.parseId(uri);
+        } catch (NumberFormatException e) {
+          id = -1;
+        }
+      }
+
+      if ( id < 0 ) {
+        // Don't know which download changed, look at them all.
+        isFullScanPending = true;
+      } else {
+        mChangedIds.add(id);
+      }
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Hands chunked engine callbacks over to the worker thread.
+   */
+  private ChunkedDownloader.Listener chunkedListener = new ChunkedDownloader.Listener() {
+    @Override
+    public void onAllocated(final ChunkedDownloader downloader, final long total) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          mStorage.onWritten(downloader.getDownloadId(), total);
+        }
+      });
+    }
+
+    @Override
+    public void onProgress(final ChunkedDownloader downloader, final long bytesSoFar, final long total) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          String downloadId = downloader.getDownloadId();
+          if ( mChunkedDownloads.get(downloadId) != downloader ) {
+            return;
+          }
+
+          sendProgress(downloadId, bytesSoFar, total);
+          DownloadRequest r = requests.get(downloadId);
+          if ( r != null && r.showNotification ) {
+            mNotifications.update(downloadId.hashCode(), r.title, "Downloading..", bytesSoFar, total,
+                    mTransferRate.getBytesPerSecond(downloadId), mTransferRate.getEtaMs(downloadId, bytesSoFar, total));
+          }
+          flushProgress();
+          saveResumeState(downloader);
+        }
+      });
+    }
+
+    @Override
+    public void onComplete(final ChunkedDownloader downloader, final FileFinalizer.Result finalized) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          String downloadId = downloader.getDownloadId();
+          if ( mChunkedDownloads.get(downloadId) != downloader ) {
+            return;
+          }
+          DownloadRequest r = requests.get(downloadId);
+          finishChunkedDownload(downloadId);
+          if ( r != null && r.postProcess != null ) {
+            // the downloaded file goes once it's processed.
+            unregisterStream(downloadId);
+          } else if ( mStreamServer != null ) {
+            // readers already attached finish from the downloader, new ones get the file.
+            mStreamServer.register(downloadId, new StreamServer.FileSource(finalized.file));
+          }
+          forgetRequest(downloadId);
+          deliverDownload(r, downloadId, finalized);
+        }
+      });
+    }
+
+    @Override
+    public void onFailure(final ChunkedDownloader downloader, final String errorMsg) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          String downloadId = downloader.getDownloadId();
+          if ( mChunkedDownloads.get(downloadId) != downloader ) {
+            return;
+          }
+          finishChunkedDownload(downloadId);
+          unregisterStream(downloadId);
+          // keep the request, and how far it got, so enqueueing it again resumes it.
+          saveResumeState(downloader);
+          setEnqueued(downloadId, false);
+          sendFailure(COMPLETE_EVENT, downloadId, errorMsg);
+        }
+      });
+    }
+  };
+
+  /**
+   * Hands patch callbacks over to the worker thread.
+   */
+  private PatchTask.Listener patchListener = new PatchTask.Listener() {
+    @Override
+    public void onProgress(final PatchTask task, final long written, final long total) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          String downloadId = task.getDownloadId();
+          if ( mPatches.get(downloadId) != task ) {
+            return;
+          }
+
+          sendProgress(downloadId, written, total);
+          DownloadRequest r = requests.get(downloadId);
+          if ( r != null && r.showNotification ) {
+            mNotifications.update(downloadId.hashCode(), r.title, "Updating..", written, total,
+                    mTransferRate.getBytesPerSecond(downloadId), mTransferRate.getEtaMs(downloadId, written, total));
+          }
+          flushProgress();
+        }
+      });
+    }
+
+    @Override
+    public void onComplete(final PatchTask task, final FileFinalizer.Result finalized) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          String downloadId = task.getDownloadId();
+          if ( mPatches.get(downloadId) != task ) {
+            return;
+          }
+          DownloadRequest r = requests.get(downloadId);
+          finishPatch(downloadId);
+          forgetRequest(downloadId);
+          deliverDownload(r, downloadId, finalized);
+        }
+      });
+    }
+
+    @Override
+    public void onFailure(final PatchTask task, final String errorMsg) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          String downloadId = task.getDownloadId();
+          if ( mPatches.get(downloadId) != task ) {
+            return;
+          }
+          mPatches.remove(downloadId);
+          DownloadRequest r = requests.get(downloadId);
+          if ( r == null ) {
+            finishPatch(downloadId);
+            return;
+          }
+
+          // fall back to the whole file, it keeps the slot the patch had.
+          Log.e(TAG, "patching " + downloadId + " failed, " + errorMsg + ", downloading it in full.");
+          r.isPatchFailed = true;
+          mTransferRate.forget(downloadId);
+          if ( !startDownload(downloadId) ) {
+            finishPatch(downloadId);
+            setEnqueued(downloadId, false);
+            sendFailure(COMPLETE_EVENT, downloadId, errorMsg);
+          }
+        }
+      });
+    }
+  };
+
+  /**
+   * Hands bulk callbacks over to the worker thread.
+   */
+  private BulkDownloader.Listener bulkListener = new BulkDownloader.Listener() {
+    @Override
+    public void onFileFailed(final BulkDownloader batch, final String downloadId, final String errorMsg) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          if ( mBulkBatches.get(batch.getBatchId()) == batch ) {
+            sendFailure(COMPLETE_EVENT, downloadId, errorMsg);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onComplete(final BulkDownloader batch) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          if ( mBulkBatches.remove(batch.getBatchId()) != batch ) {
+            return;
+          }
+
+          if ( isCacheEnabled ) {
+            // one transaction for the lot.
+            mDbHelper.runInTransaction(new Runnable() {
+              @Override
+              public void run() {
+                for (BulkDownloader.Item item : batch.getFinished()) {
+                  mCache.put(item.downloadId, item.destination, item.sha256);
+                }
+              }
+            });
+          }
+
+          HashMap<String, String> paths = batch.getPaths();
+          for (String downloadId : paths.keySet()) {
+            File file = new File(paths.get(downloadId));
+            mStates.onComplete(downloadId, file.getAbsolutePath(), file.length());
+          }
+
+          HashMap<String, String> errors = batch.getErrors();
+          HashMap<String, Object> args = new HashMap<>();
+          args.put(BATCH_ID, batch.getBatchId());
+          args.put(FILE_PATHS, paths);
+          args.put(ERRORS, errors);
+          args.put(BYTES, batch.getBytes());
+          args.put(ELAPSED_MS, batch.getElapsedMs());
+          args.put(SUCCESS, errors.isEmpty());
+          invokeMethod(BULK_COMPLETE_EVENT, args);
+        }
+      });
+    }
+  };
+
+  /**
+   * Sends COMPLETE_EVENT for a file that's in place, or runs the request's post processor first.
+   * @param r - the request, or null if it has gone.
+   */
+  private void deliverDownload(DownloadRequest r, String downloadId, FileFinalizer.Result finalized) {
+    if ( r != null && r.postProcess != null ) {
+      // it's already been checked, the downloaded file goes once it's processed.
+      try {
+        if ( !startPostProcessing(r, new FileInputStream(finalized.file), finalized.file.length(),
+                finalized.file.getName(), null, finalized.file) ) {
+          sendFailure(COMPLETE_EVENT, downloadId, "Unknown post processor: " + r.postProcess);
+        }
+      } catch (IOException e) {
+        Log.e(TAG, e.toString());
+        sendFailure(COMPLETE_EVENT, downloadId, e.getMessage());
+      }
+      return;
+    }
+    if ( isCacheEnabled ) {
+      mCache.put(downloadId, finalized.file, finalized.sha256);
+    }
+    mMetrics.onComplete(downloadId, finalized);
+    mStates.onComplete(downloadId, finalized.file.getAbsolutePath(), finalized.file.length());
+
+    HashMap<String, Object> args = new HashMap<>();
+    args.put(DOWNLOAD_ID, downloadId);
+    args.put(FILE_PATH, finalized.file.getAbsolutePath());
+    args.put(FINALIZE_MS, finalized.elapsedMs);
+    args.put(BYTES_COPIED, finalized.bytesCopied);
+    args.put(SUCCESS, true);
+    invokeMethod(COMPLETE_EVENT, args);
+  }
+
+  /**
+   * Runs the request's post processor over the downloaded bytes on the transfer threads,
+   * COMPLETE_EVENT is sent once it's done.
+   * @param archive - the downloaded file, deleted afterwards. null if it's taken care of elsewhere.
+   * @return false if there's no such post processor.
    */
-  private String getMD5(String str) {
-    mMsgDigest.reset();
-    mMsgDigest.update(str.getBytes());
-    byte[] digest = mMsgDigest.digest();
-    StringBuffer sb = new StringBuffer();
-    for (byte b : digest) {
-      sb.append(String.format("%02x", b & 0xff));
+  private boolean startPostProcessing(final DownloadRequest r, InputStream in, long total, String filename,
+                                      IntegrityCheck check, final File archive) {
+    PostProcessor processor = PostProcessors.get(r.postProcess);
+    if ( processor == null ) {
+      return false;
+    }
+
+    final String downloadId = r.getDownloadId();
+    File output = getDestination(downloadId, processor.getOutputName(filename));
+    mTransferExecutor.execute(new PostProcessTask(processor, in, total, output, check, new PostProcessTask.Listener() {
+      @Override
+      public void onProgress(final long bytesRead, final long total) {
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            sendProgress(downloadId, bytesRead, total);
+            if ( r.showNotification ) {
+              mNotifications.update(downloadId.hashCode(), r.title, "Processing..", bytesRead, total,
+                      mTransferRate.getBytesPerSecond(downloadId), mTransferRate.getEtaMs(downloadId, bytesRead, total));
+            }
+            flushProgress();
+          }
+        });
+      }
+
+      @Override
+      public void onComplete(final FileFinalizer.Result result) {
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            finishPostProcessing(downloadId, archive);
+            mMetrics.onComplete(downloadId, result);
+            mStates.onComplete(downloadId, result.file.getAbsolutePath(), result.file.length());
+            HashMap<String, Object> args = new HashMap<>();
+            args.put(DOWNLOAD_ID, downloadId);
+            args.put(FILE_PATH, result.file.getAbsolutePath());
+            args.put(FINALIZE_MS, result.elapsedMs);
+            args.put(BYTES_COPIED, result.bytesCopied);
+            args.put(SUCCESS, true);
+            invokeMethod(COMPLETE_EVENT, args);
+          }
+        });
+      }
+
+      @Override
+      public void onFailure(final String errorMsg) {
+        mHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            finishPostProcessing(downloadId, archive);
+            sendFailure(COMPLETE_EVENT, downloadId, errorMsg);
+          }
+        });
+      }
+    }, PROGRESS_INTERVAL_MS));
+    return true;
+  }
+
+  private void finishPostProcessing(String downloadId, File archive) {
+    if ( archive != null && !archive.delete() ) {
+      archive.deleteOnExit();
     }
-    return sb.toString();
+    mNotifications.cancel(downloadId.hashCode());
+  }
+
+  private void finishPatch(String downloadId) {
+    mPatches.remove(downloadId);
+    mScheduler.finished(downloadId);
+    mNotifications.cancel(downloadId.hashCode());
+  }
+
+  private void finishChunkedDownload(String downloadId) {
+    mChunkedDownloads.remove(downloadId);
+    mScheduler.finished(downloadId);
+    mNotifications.cancel(downloadId.hashCode());
+  }
+
+  /**
+   * @return how many bytes a chunked download had when its resume state was last saved, or 0.
+   */
+  private long getResumedBytes(String downloadId) {
+    ChunkedDownloader.State state = mRequestStore.getResumeState(downloadId);
+    if ( state == null ) {
+      return 0;
+    }
+    long bytes = 0;
+    for (int i = 0; i < state.starts.length; i++) {
+      bytes += state.positions[i] - state.starts[i];
+    }
+    return bytes;
+  }
+
+  private void unregisterStream(String downloadId) {
+    if ( mStreamServer != null ) {
+      mStreamServer.unregister(downloadId);
+    }
+  }
+
+  private void saveResumeState(ChunkedDownloader downloader) {
+    ChunkedDownloader.State state = downloader.getState();
+    if ( state != null ) {
+      mRequestStore.putResumeState(downloader.getDownloadId(), state);
+    } else {
+      // nothing worth resuming, don't pick up an older attempt either.
+      mRequestStore.removeResumeState(downloader.getDownloadId());
+    }
+  }
+
+  private void setEnqueued(String downloadId, boolean enqueued) {
+    mStates.onEnqueued(downloadId, enqueued);
+    if ( !enqueued ) {
+      mProgressThrottle.forget(downloadId);
+      mTransferRate.forget(downloadId);
+    }
+    DownloadRequest r = requests.get(downloadId);
+    if ( r != null && r.isEnqueued != enqueued ) {
+      r.isEnqueued = enqueued;
+      mRequestStore.put(r);
+    }
+  }
+
+  /**
+   * The request is done with, forget everything about it.
+   */
+  private void forgetRequest(String downloadId) {
+    mProgressThrottle.forget(downloadId);
+    mTransferRate.forget(downloadId);
+    requests.remove(downloadId);
+    mRequestStore.remove(downloadId);
   }
 
   @Override
   public boolean onViewDestroy(FlutterNativeView flutterNativeView) {
     getActiveContext().unregisterReceiver(this);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        stopProgressChecking(true);
+        mHandler.removeCallbacks(networkPolicyChecker);
+        mHandler.removeCallbacks(deferredRetrier);
+        for (ChunkedDownloader downloader : mChunkedDownloads.values()) {
+          // still enqueued, the next start carries on from here.
+          saveResumeState(downloader);
+          downloader.stop();
+        }
+        mChunkedDownloads.clear();
+        for (PatchTask patch : mPatches.values()) {
+          patch.cancel();
+        }
+        mPatches.clear();
+        for (BulkDownloader batch : mBulkBatches.values()) {
+          batch.cancel();
+        }
+        mBulkBatches.clear();
+        if ( mStreamServer != null ) {
+          mStreamServer.stop();
+          mStreamServer = null;
+        }
+        mTransferExecutor.shutdownNow();
+        // drops anything still queued behind us.
+        mWorkerThread.quit();
+      }
+    });
     return false;
   }
 
-  private class DownloadRequest {
-    private String _downloadId;
-    Uri uri;
-    String title;
-    String description;
-    boolean wifiOnly;
-    boolean requiresCharging;
-    boolean requiresDeviceIdle;
-    boolean showNotification;
+  /**
+   * Hands the result of a method call back to flutter on the main thread.
+   */
+  private class MainThreadResult implements Result {
+    private final Result result;
 
-    DownloadRequest(Uri uri, String title, String description, boolean wifiOnly, boolean requiresCharging, boolean requiresDeviceIdle, boolean showNotification) {
-      this.uri = uri;
-      this.title = title;
-      this.description = description;
-      this.wifiOnly = wifiOnly;
-      this.requiresCharging = requiresCharging;
-      this.requiresDeviceIdle = requiresDeviceIdle;
-      this.showNotification = showNotification;
+    MainThreadResult(Result result) {
+      this.result = result;
     }
 
-    private String getDownloadId(){
-      if ( _downloadId == null ) {
-        _downloadId = getMD5(this.uri.toString());
-      }
-      return _downloadId;
+    @Override
+    public void success(final Object o) {
+      mMainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          result.success(o);
+        }
+      });
     }
-  }
-}
 
+    @Override
+    public void error(final String errorCode, final String errorMessage, final Object errorDetails) {
+      mMainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          result.error(errorCode, errorMessage, errorDetails);
+        }
+      });
+    }
 
+    @Override
+    public void notImplemented() {
+      mMainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          result.notImplemented();
+        }
+      });
+    }
+  }
+}
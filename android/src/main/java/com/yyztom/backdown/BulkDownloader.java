@@ -0,0 +1,249 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a batch of small files, one after another over a few kept alive connections.
+ *
+ * A file here has none of a normal download's overheads: no DownloadManager job,
+ * no database row, no notification and no progress. It's written next to its
+ * destination and renamed into place once it has all arrived.
+ *
+ * HttpURLConnection hands a connection back to its pool for the next request to
+ * the same host once the body has been read to the end and closed. So bodies,
+ * even error ones, are always read to the end and connections never disconnected.
+ * The pool keeps 5 idle connections by default, hence DEFAULT_CONNECTIONS.
+ *
+ * Listener callbacks are made from the executor's threads.
+ */
+class BulkDownloader {
+  interface Listener {
+    void onFileFailed(BulkDownloader batch, String downloadId, String errorMsg);
+    /**
+     * Every file has finished or failed.
+     */
+    void onComplete(BulkDownloader batch);
+  }
+
+  /**
+   * One file in the batch.
+   */
+  static class Item {
+    final String downloadId;
+    final URL url;
+    final File destination;
+    final IntegrityCheck check;
+    // set once it has been checked.
+    String sha256;
+
+    /**
+     * @param check - what the file should look like, or null.
+     */
+    Item(String downloadId, URL url, File destination, IntegrityCheck check) {
+      this.downloadId = downloadId;
+      this.url = url;
+      this.destination = destination;
+      this.check = check;
+    }
+  }
+
+  static final int DEFAULT_CONNECTIONS = 4;
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final int CONNECT_TIMEOUT_MS = 15000;
+  private static final int READ_TIMEOUT_MS = 30000;
+
+  private final String mBatchId;
+  private final List<Item> mItems;
+  private final int mConnections;
+  private final ExecutorService mExecutor;
+  private final Listener mListener;
+
+  // the next item a worker should take.
+  private final AtomicInteger mNext = new AtomicInteger();
+  private final AtomicInteger mWorkers = new AtomicInteger();
+  private final AtomicLong mBytes = new AtomicLong();
+  private final ConcurrentLinkedQueue<Item> mFinished = new ConcurrentLinkedQueue<>();
+  private final ConcurrentHashMap<String, String> mPaths = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> mErrors = new ConcurrentHashMap<>();
+  private long mStartedAt;
+  private volatile long mElapsedMs;
+  private volatile boolean isCancelled;
+
+  BulkDownloader(String batchId, List<Item> items, int connections, ExecutorService executor, Listener listener) {
+    mBatchId = batchId;
+    mItems = items;
+    mConnections = Math.max(1, connections);
+    mExecutor = executor;
+    mListener = listener;
+  }
+
+  String getBatchId() {
+    return mBatchId;
+  }
+
+  /**
+   * Counts a file we already have as done, call before start().
+   */
+  void addCached(String downloadId, File file) {
+    mPaths.put(downloadId, file.getAbsolutePath());
+  }
+
+  void start() {
+    mStartedAt = SystemClock.elapsedRealtime();
+    // at least one, so an empty batch still completes.
+    int workers = Math.max(1, Math.min(mConnections, mItems.size()));
+    mWorkers.set(workers);
+    for (int i = 0; i < workers; i++) {
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          fetchAll();
+        }
+      });
+    }
+  }
+
+  /**
+   * Stops after the files being fetched, no more listener callbacks are made.
+   */
+  void cancel() {
+    isCancelled = true;
+  }
+
+  /**
+   * @return the files that were downloaded, with their checked SHA-256 if there was one.
+   */
+  List<Item> getFinished() {
+    return new ArrayList<>(mFinished);
+  }
+
+  /**
+   * @return the path of every file that's in place, by download id.
+   */
+  HashMap<String, String> getPaths() {
+    return new HashMap<>(mPaths);
+  }
+
+  /**
+   * @return why each failed file failed, by download id.
+   */
+  HashMap<String, String> getErrors() {
+    return new HashMap<>(mErrors);
+  }
+
+  long getBytes() {
+    return mBytes.get();
+  }
+
+  long getElapsedMs() {
+    return mElapsedMs;
+  }
+
+  private void fetchAll() {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int i;
+    while (!isCancelled && (i = mNext.getAndIncrement()) < mItems.size()) {
+      Item item = mItems.get(i);
+      try {
+        fetch(item, buffer);
+        mFinished.add(item);
+        mPaths.put(item.downloadId, item.destination.getAbsolutePath());
+      } catch (IOException e) {
+        String errorMsg = String.valueOf(e.getMessage());
+        mErrors.put(item.downloadId, errorMsg);
+        if ( !isCancelled ) {
+          mListener.onFileFailed(this, item.downloadId, errorMsg);
+        }
+      }
+    }
+
+    if ( mWorkers.decrementAndGet() == 0 && !isCancelled ) {
+      mElapsedMs = SystemClock.elapsedRealtime() - mStartedAt;
+      mListener.onComplete(this);
+    }
+  }
+
+  private void fetch(Item item, byte[] buffer) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) item.url.openConnection();
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    conn.setReadTimeout(READ_TIMEOUT_MS);
+    int code = conn.getResponseCode();
+    if ( code != HttpURLConnection.HTTP_OK ) {
+      // read it anyway, so the connection can be used again.
+      drain(conn.getErrorStream(), buffer);
+      throw new IOException("HTTP_STATUS_CODE: " + code);
+    }
+
+    File dir = item.destination.getParentFile();
+    File part = new File(item.destination.getPath() + ".part");
+    InputStream in = conn.getInputStream();
+    FileOutputStream out = null;
+    long size = 0;
+    try {
+      if ( !dir.exists() && !dir.mkdirs() ) {
+        throw new IOException("failed creating " + dir);
+      }
+      out = new FileOutputStream(part);
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+        if ( item.check != null ) {
+          item.check.update(buffer, 0, read);
+        }
+        size += read;
+      }
+      out.close();
+      out = null;
+
+      if ( item.check != null ) {
+        item.sha256 = item.check.verify(size);
+      }
+      if ( !part.renameTo(item.destination) ) {
+        throw new IOException("failed moving " + part + " to " + item.destination);
+      }
+    } catch (IOException e) {
+      if ( out != null ) {
+        try {
+          out.close();
+        } catch (IOException closeFailed) {
+          // nothing more we can do.
+        }
+      }
+      part.delete();
+      throw e;
+    } finally {
+      in.close();
+    }
+    mBytes.addAndGet(size);
+  }
+
+  private static void drain(InputStream in, byte[] buffer) {
+    if ( in == null ) {
+      return;
+    }
+    try {
+      while (in.read(buffer) >= 0) {
+        // just draining.
+      }
+      in.close();
+    } catch (IOException e) {
+      // the connection won't be reused, that's all.
+    }
+  }
+}
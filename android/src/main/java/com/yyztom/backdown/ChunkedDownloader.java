@@ -0,0 +1,783 @@
+package com.yyztom.backdown;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Downloads a single url over several connections at once.
+ *
+ * The file is split into byte ranges that are fetched in parallel with HTTP Range
+ * requests and written straight into a preallocated file at their own offsets.
+ * Where the filesystem can, the file's blocks are reserved before anything is written.
+ * Servers that don't support ranges are downloaded over a single connection.
+ *
+ * The position of every range is available from getState(), handing that back
+ * in picks the download up where it left off, provided the server still has the
+ * same version of the file.
+ *
+ * With an IntegrityCheck, the first range is digested as it arrives. The other
+ * ranges arrive out of order, so they are read back once before the file is moved.
+ *
+ * With more than one url, they are treated as mirrors of the same file. The fastest
+ * is used to start with, and when one fails or stalls the ranges carry on from
+ * the next, going round all of them with a growing pause in between before giving up.
+ *
+ * Reads can be throttled, by this download's own limit and by one shared with
+ * every other download. Both can be changed while it runs.
+ *
+ * It can be read while it downloads, see await(). While a reader is waiting on
+ * bytes that haven't arrived, the other ranges slow right down so the one it is
+ * waiting in gets the bandwidth.
+ *
+ * Listener callbacks are made from the executor's threads.
+ */
+class ChunkedDownloader implements Runnable, StreamServer.Source {
+  /**
+   * Enough to pick a download back up after the process has died.
+   */
+  static class State {
+    final String validator;
+    final long total;
+    final long[] starts;
+    final long[] ends;
+    final long[] positions;
+
+    State(String validator, long total, long[] starts, long[] ends, long[] positions) {
+      this.validator = validator;
+      this.total = total;
+      this.starts = starts;
+      this.ends = ends;
+      this.positions = positions;
+    }
+  }
+
+  interface Listener {
+    void onProgress(ChunkedDownloader downloader, long bytesSoFar, long total);
+    /**
+     * The file has taken its full size on disk.
+     */
+    void onAllocated(ChunkedDownloader downloader, long total);
+    void onComplete(ChunkedDownloader downloader, FileFinalizer.Result finalized);
+    void onFailure(ChunkedDownloader downloader, String errorMsg);
+  }
+
+  static final int DEFAULT_CONNECTIONS = 4;
+
+  // don't bother splitting anything smaller than this.
+  private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int CONNECT_TIMEOUT_MS = 15000;
+  // a connection that stalls this long is given up on, and the next mirror tried.
+  private static final int READ_TIMEOUT_MS = 30000;
+  // how long the range a reader waited in keeps priority, so it isn't flipping on and off.
+  private static final long PRIORITY_HOLD_MS = 2000;
+  // how long the other ranges pause between reads meanwhile.
+  private static final long PRIORITY_PAUSE_MS = 200;
+
+  private final String mDownloadId;
+  // the mirrors, fastest first once they've been probed.
+  private volatile List<URL> mUrls;
+  // the mirror in use, ranges move on together when it fails.
+  private final AtomicInteger mMirror = new AtomicInteger();
+  private final File mDestination;
+  private final int mConnections;
+  private final ExecutorService mExecutor;
+  private final Listener mListener;
+  private final long mProgressIntervalMs;
+
+  private final AtomicLong mBytesSoFar = new AtomicLong();
+  private final AtomicLong mLastProgressAt = new AtomicLong();
+  private volatile boolean isCancelled;
+  // stopped for now, the part file is kept so it can be resumed.
+  private volatile boolean isPaused;
+  // set once any range has given up, so the others stop too.
+  private volatile boolean isFailed;
+  private volatile long mTotal = -1;
+  // ETag or Last-Modified, sent as If-Range so every range comes from the same version.
+  private volatile String mValidator;
+  // the mirror the validator came from, others are likely to have their own.
+  private volatile String mValidatorUrl;
+  // the ranges being fetched, and how far each one has got.
+  private volatile long[] mStarts;
+  private volatile long[] mEnds;
+  private volatile AtomicLongArray mPositions;
+  private State mResume;
+  private IntegrityCheck mCheck;
+  // this download's limit, and the one shared by all of them.
+  private final TokenBucket mBucket = new TokenBucket(TokenBucket.UNLIMITED);
+  private volatile TokenBucket mSharedBucket;
+
+  // readers blocked in await(), woken as bytes arrive.
+  private final Object mArrived = new Object();
+  private final AtomicInteger mReaders = new AtomicInteger();
+  // set when the file is one stream from the start rather than ranges.
+  private volatile boolean isSequential;
+  // the range readers are waiting in, and until when it keeps priority.
+  private volatile int mPriority = -1;
+  private volatile long mPriorityUntil;
+  private volatile boolean isFinished;
+  // set once it's in place.
+  private volatile File mFinishedFile;
+
+  /**
+   * @param urls - where the file can be downloaded from, in order of preference.
+   */
+  ChunkedDownloader(String downloadId, List<URL> urls, File destination, int connections,
+                    ExecutorService executor, Listener listener, long progressIntervalMs) {
+    mDownloadId = downloadId;
+    mUrls = urls;
+    mDestination = destination;
+    mConnections = Math.max(1, connections);
+    mExecutor = executor;
+    mListener = listener;
+    mProgressIntervalMs = progressIntervalMs;
+  }
+
+  String getDownloadId() {
+    return mDownloadId;
+  }
+
+  /**
+   * Carry on from an earlier attempt rather than starting from nothing.
+   */
+  void setResumeState(State state) {
+    mResume = state;
+  }
+
+  /**
+   * Verify the file before it's moved into place, it is thrown away if it doesn't match.
+   */
+  void setIntegrityCheck(IntegrityCheck check) {
+    mCheck = check;
+  }
+
+  /**
+   * @param bytesPerSecond - this download's limit, or TokenBucket.UNLIMITED.
+   */
+  void setMaxBytesPerSecond(long bytesPerSecond) {
+    mBucket.setRate(bytesPerSecond);
+  }
+
+  /**
+   * @param bucket - a limit shared with other downloads, or null.
+   */
+  void setSharedBucket(TokenBucket bucket) {
+    mSharedBucket = bucket;
+  }
+
+  /**
+   * @return where every range has got to, or null if this download can't be resumed.
+   */
+  State getState() {
+    AtomicLongArray positions = mPositions;
+    String validator = mValidator;
+    if ( positions == null || validator == null ) {
+      return null;
+    }
+
+    long[] snapshot = new long[positions.length()];
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = positions.get(i);
+    }
+    return new State(validator, mTotal, mStarts, mEnds, snapshot);
+  }
+
+  void start() {
+    mExecutor.execute(this);
+  }
+
+  /**
+   * Stops the transfer and throws away the partial file, no listener callback is made.
+   */
+  void cancel() {
+    isCancelled = true;
+  }
+
+  /**
+   * Stops the transfer but keeps the partial file, so it can be resumed
+   * from getState() later. No listener callback is made.
+   */
+  void stop() {
+    isPaused = true;
+  }
+
+  File getPartFile() {
+    return new File(mDestination.getPath() + ".part");
+  }
+
+  /**
+   * @return the part file, or the finished file once it's in place.
+   */
+  @Override
+  public File getFile() {
+    File finished = mFinishedFile;
+    return finished != null ? finished : getPartFile();
+  }
+
+  @Override
+  public long getTotal() {
+    File finished = mFinishedFile;
+    return finished != null ? finished.length() : mTotal;
+  }
+
+  /**
+   * Blocks until the byte at position has been written, can be called from any thread.
+   * @return how many bytes from position can be read, 0 if timeoutMs passed first,
+   * or -1 if position is past the end.
+   * @throws IOException if the download fails or is cancelled first.
+   */
+  @Override
+  public long await(long position, long timeoutMs) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    // counted before looking, so a write after we've looked is sure to wake us.
+    mReaders.incrementAndGet();
+    try {
+      synchronized (mArrived) {
+        while (true) {
+          long available = getAvailable(position);
+          if ( available != 0 ) {
+            return available;
+          }
+          if ( isFinished || isStopped() ) {
+            throw new IOException("Download stopped.");
+          }
+          long wait = deadline - System.currentTimeMillis();
+          if ( wait <= 0 ) {
+            return 0;
+          }
+          prioritise(position);
+          mArrived.wait(Math.min(wait, PRIORITY_HOLD_MS / 2));
+        }
+      }
+    } finally {
+      mReaders.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return how many bytes from position have arrived, or -1 if it's past the end.
+   */
+  private long getAvailable(long position) {
+    File finished = mFinishedFile;
+    if ( finished != null ) {
+      long length = finished.length();
+      return position >= length ? -1 : length - position;
+    }
+
+    long total = mTotal;
+    if ( total >= 0 && position >= total ) {
+      return -1;
+    }
+    long[] starts = mStarts;
+    long[] ends = mEnds;
+    AtomicLongArray positions = mPositions;
+    if ( starts != null && ends != null && positions != null && positions.length() == starts.length ) {
+      for (int i = 0; i < starts.length; i++) {
+        if ( position >= starts[i] && position <= ends[i] ) {
+          return Math.max(0, positions.get(i) - position);
+        }
+      }
+      return 0;
+    }
+    if ( isSequential ) {
+      return Math.max(0, mBytesSoFar.get() - position);
+    }
+    return 0;
+  }
+
+  /**
+   * Gives the range holding position the bandwidth for a while.
+   */
+  private void prioritise(long position) {
+    long[] starts = mStarts;
+    long[] ends = mEnds;
+    if ( starts == null || ends == null ) {
+      return;
+    }
+    for (int i = 0; i < starts.length; i++) {
+      if ( position >= starts[i] && position <= ends[i] ) {
+        mPriority = i;
+        mPriorityUntil = System.currentTimeMillis() + PRIORITY_HOLD_MS;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Pauses range index for a moment if a reader is waiting on another one.
+   */
+  private void yieldToPriority(int index) throws IOException {
+    int priority = mPriority;
+    AtomicLongArray positions = mPositions;
+    if ( priority < 0 || priority == index || positions == null || priority >= positions.length()
+            || positions.get(priority) > mEnds[priority] || System.currentTimeMillis() > mPriorityUntil ) {
+      return;
+    }
+    try {
+      Thread.sleep(PRIORITY_PAUSE_MS);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Wakes readers, if there are any.
+   */
+  private void notifyReaders() {
+    if ( mReaders.get() > 0 ) {
+      synchronized (mArrived) {
+        mArrived.notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    File partFile = getPartFile();
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(partFile, "rw");
+      FileChannel channel = file.getChannel();
+
+      if ( mResume == null || !resume(file, channel, mResume) ) {
+        // nothing we can use from before.
+        mResume = null;
+        file.setLength(0);
+        // a resumed download stays with the mirror order it had.
+        mUrls = Mirrors.rank(mUrls, mExecutor);
+        fetch(file, channel);
+      }
+
+      file.close();
+      file = null;
+
+      if ( isCancelled ) {
+        partFile.delete();
+        return;
+      }
+      if ( isPaused ) {
+        return;
+      }
+
+      // the part file sits next to the destination, so this is a rename.
+      FileFinalizer.Result finalized = FileFinalizer.move(partFile, mDestination.getParentFile(), mDestination.getName(), mCheck);
+      if ( finalized == null ) {
+        throw new IOException("failed moving file.");
+      }
+      mFinishedFile = finalized.file;
+      isFinished = true;
+      notifyReaders();
+      mListener.onComplete(this, finalized);
+    } catch (IOException e) {
+      closeQuietly(file);
+      isFinished = true;
+      notifyReaders();
+      if ( e instanceof IntegrityCheck.MismatchException ) {
+        // resuming would only get us the same bytes again.
+        mPositions = null;
+      }
+      if ( isCancelled || getState() == null ) {
+        partFile.delete();
+      }
+      // otherwise the part file is kept so the download can be resumed.
+      if ( !isCancelled && !isPaused ) {
+        mListener.onFailure(this, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Downloads the whole file from the start.
+   */
+  private void fetch(RandomAccessFile file, FileChannel channel) throws IOException {
+    HttpURLConnection conn = openAny("bytes=0-", false);
+    int code = conn.getResponseCode();
+    if ( mCheck != null ) {
+      try {
+        mCheck.checkSize(mTotal);
+      } catch (IntegrityCheck.MismatchException e) {
+        // no point downloading it.
+        conn.disconnect();
+        throw e;
+      }
+    }
+    if ( mTotal > 0 && (code == HttpURLConnection.HTTP_PARTIAL || code == HttpURLConnection.HTTP_OK) ) {
+      try {
+        if ( allocate(file) ) {
+          mListener.onAllocated(this, mTotal);
+        }
+      } catch (IOException e) {
+        // no room for it.
+        conn.disconnect();
+        throw e;
+      }
+    }
+    if ( code == HttpURLConnection.HTTP_PARTIAL && mTotal > 0 ) {
+      // ranges are supported, this connection becomes the first range.
+
+      long count = Math.min(mConnections, Math.max(1, mTotal / MIN_CHUNK_SIZE));
+      long chunkSize = (mTotal + count - 1) / count;
+      int ranges = (int) ((mTotal + chunkSize - 1) / chunkSize);
+      long[] starts = new long[ranges];
+      long[] ends = new long[ranges];
+      for (int i = 0; i < ranges; i++) {
+        starts[i] = i * chunkSize;
+        ends[i] = Math.min(mTotal, starts[i] + chunkSize) - 1;
+      }
+      setRanges(starts, ends, starts.clone());
+      fetchRanges(channel, 0, conn);
+    } else if ( code == HttpURLConnection.HTTP_OK ) {
+      // no ranges, just stream the body.
+      isSequential = true;
+      long position = read(conn, channel, 0, mTotal < 0 ? Long.MAX_VALUE : mTotal, -1);
+      if ( mTotal > 0 && position < mTotal && !isStopped() ) {
+        throw new IOException("Connection closed early.");
+      }
+    } else {
+      conn.disconnect();
+      throw new IOException("HTTP_STATUS_CODE: " + code);
+    }
+  }
+
+  /**
+   * Picks up the ranges from an earlier attempt, as long as the server
+   * still has the same version of the file.
+   * @return false if the earlier attempt is no use and we need to start again.
+   */
+  private boolean resume(RandomAccessFile file, FileChannel channel, State state) throws IOException {
+    if ( state.validator == null || file.length() != state.total ) {
+      return false;
+    }
+
+    int first = -1;
+    long bytesSoFar = 0;
+    for (int i = 0; i < state.starts.length; i++) {
+      bytesSoFar += state.positions[i] - state.starts[i];
+      if ( first < 0 && state.positions[i] <= state.ends[i] ) {
+        first = i;
+      }
+    }
+
+    mTotal = state.total;
+    mValidator = state.validator;
+    // most likely, we don't keep which one it was.
+    mValidatorUrl = mUrls.get(0).toString();
+    mBytesSoFar.set(bytesSoFar);
+    setRanges(state.starts, state.ends, state.positions);
+    if ( first < 0 ) {
+      // it had finished, just not been moved into place.
+      return true;
+    }
+
+    // If-Range makes the server send the whole file instead if it has changed.
+    HttpURLConnection conn = openAny("bytes=" + state.positions[first] + "-" + state.ends[first], true);
+    if ( conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+            || parseTotal(conn.getHeaderField("Content-Range")) != state.total ) {
+      conn.disconnect();
+      mBytesSoFar.set(0);
+      mPositions = null;
+      mValidator = null;
+      mTotal = -1;
+      return false;
+    }
+
+    fetchRanges(channel, first, conn);
+    return true;
+  }
+
+  /**
+   * Sizes the file to mTotal, reserving its blocks where that's possible.
+   * @return true if the blocks are all taken. setLength alone makes a sparse file
+   * that takes them as they're written.
+   */
+  private boolean allocate(RandomAccessFile file) throws IOException {
+    file.setLength(mTotal);
+    return Build.VERSION.SDK_INT >= 21 && Preallocation.allocate(file.getFD(), mTotal);
+  }
+
+  private void setRanges(long[] starts, long[] ends, long[] positions) {
+    mStarts = starts;
+    mEnds = ends;
+    mPositions = new AtomicLongArray(positions);
+  }
+
+  /**
+   * Fetches every unfinished range in parallel.
+   * @param firstIndex - the range the open connection first is for.
+   * @param first - an open connection, it is reused for that range.
+   */
+  private void fetchRanges(final FileChannel channel, final int firstIndex, final HttpURLConnection first) throws IOException {
+    ArrayList<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < mStarts.length; i++) {
+      if ( mPositions.get(i) > mEnds[i] ) {
+        continue;
+      }
+      final int index = i;
+      futures.add(mExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          fetchRange(channel, index, index == firstIndex ? first : null);
+          return null;
+        }
+      }));
+    }
+
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      // one range has given up, stop the others.
+      isFailed = true;
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      isFailed = true;
+      throw new IOException(e);
+    } finally {
+      if ( first != null ) {
+        first.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Fetches range index into channel, retrying from wherever it got to on the next mirror.
+   */
+  private void fetchRange(FileChannel channel, int index, HttpURLConnection conn) throws IOException {
+    long end = mEnds[index];
+    int failures = 0;
+    while (true) {
+      long position = mPositions.get(index);
+      int mirror = mMirror.get();
+      try {
+        if ( conn == null ) {
+          conn = open(mirror, "bytes=" + position + "-" + end, true);
+          if ( conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+                  || parseTotal(conn.getHeaderField("Content-Range")) != mTotal ) {
+            // the server ignored the range, so the file changed underneath us.
+            throw new IOException("HTTP_STATUS_CODE: " + conn.getResponseCode());
+          }
+        }
+        position = read(conn, channel, position, end + 1, index);
+        if ( position > end || isStopped() ) {
+          return;
+        }
+        throw new IOException("Connection closed early.");
+      } catch (IOException e) {
+        if ( ++failures >= Mirrors.MAX_ROUNDS * mUrls.size() || isStopped() ) {
+          throw e;
+        }
+        nextMirror(mirror, failures);
+      } finally {
+        if ( conn != null ) {
+          conn.disconnect();
+          conn = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the response body into channel starting at position, stopping at limit.
+   * @param index - the range being read, or -1 if the file isn't split into ranges.
+   * @return the position after the last byte written.
+   */
+  private long read(HttpURLConnection conn, FileChannel channel, long position, long limit, int index) throws IOException {
+    InputStream stream = conn.getInputStream();
+    ReadableByteChannel in = Channels.newChannel(stream);
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    try {
+      while (position < limit && !isStopped()) {
+        buffer.clear();
+        if ( limit - position < buffer.capacity() ) {
+          buffer.limit((int) (limit - position));
+        }
+        int read = in.read(buffer);
+        if ( read < 0 ) {
+          break;
+        }
+        throttle(read);
+        if ( index >= 0 ) {
+          yieldToPriority(index);
+        }
+        buffer.flip();
+        // only the range at the start of the file arrives in order.
+        if ( index <= 0 && mCheck != null && mCheck.getPosition() == position ) {
+          mCheck.update(buffer);
+        }
+        while (buffer.hasRemaining()) {
+          int written = channel.write(buffer, position);
+          position += written;
+          if ( index >= 0 ) {
+            mPositions.set(index, position);
+          }
+          reportProgress(mBytesSoFar.addAndGet(written));
+        }
+        notifyReaders();
+      }
+    } finally {
+      in.close();
+    }
+    return position;
+  }
+
+  /**
+   * Opens a connection for the given range on the first mirror that answers.
+   * @return the connection, its response may still be a redirect or 304 etc.
+   */
+  private HttpURLConnection openAny(String range, boolean ifRange) throws IOException {
+    int failures = 0;
+    while (true) {
+      int mirror = mMirror.get();
+      HttpURLConnection conn = null;
+      try {
+        conn = open(mirror, range, ifRange);
+        int code = conn.getResponseCode();
+        if ( code >= HttpURLConnection.HTTP_BAD_REQUEST ) {
+          throw new IOException("HTTP_STATUS_CODE: " + code);
+        }
+        return conn;
+      } catch (IOException e) {
+        if ( conn != null ) {
+          conn.disconnect();
+        }
+        if ( ++failures >= Mirrors.MAX_ROUNDS * mUrls.size() || isStopped() ) {
+          throw e;
+        }
+        nextMirror(mirror, failures);
+      }
+    }
+  }
+
+  /**
+   * Moves off a mirror that failed, unless another range already has.
+   * Once they have all failed, waits before going round again.
+   * @param failures - how many times the caller has failed so far.
+   */
+  private void nextMirror(int failed, int failures) throws IOException {
+    int count = mUrls.size();
+    mMirror.compareAndSet(failed, (failed + 1) % count);
+    if ( failures % count != 0 ) {
+      return;
+    }
+
+    long until = System.currentTimeMillis() + Mirrors.getBackoffMs(failures / count);
+    try {
+      // in small steps, so a cancel doesn't wait for it.
+      while (!isStopped() && System.currentTimeMillis() < until) {
+        Thread.sleep(Math.min(100, until - System.currentTimeMillis()));
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Opens a connection for the given range. The first one learns the total size
+   * and the validator used by the rest.
+   */
+  private HttpURLConnection open(int mirror, String range, boolean ifRange) throws IOException {
+    URL url = mUrls.get(mirror);
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    conn.setReadTimeout(READ_TIMEOUT_MS);
+    // ranges of a gzipped body don't line up with the file.
+    conn.setRequestProperty("Accept-Encoding", "identity");
+    conn.setRequestProperty("Range", range);
+    if ( ifRange && mValidator != null && url.toString().equals(mValidatorUrl) ) {
+      conn.setRequestProperty("If-Range", mValidator);
+    }
+
+    if ( !ifRange ) {
+      int code = conn.getResponseCode();
+      if ( code == HttpURLConnection.HTTP_PARTIAL ) {
+        mTotal = parseTotal(conn.getHeaderField("Content-Range"));
+      } else if ( code == HttpURLConnection.HTTP_OK ) {
+        mTotal = parseLong(conn.getHeaderField("Content-Length"));
+      }
+      mValidator = conn.getHeaderField("ETag");
+      if ( mValidator == null ) {
+        mValidator = conn.getHeaderField("Last-Modified");
+      }
+      mValidatorUrl = url.toString();
+    }
+    return conn;
+  }
+
+  /**
+   * Waits until the bytes just read are allowed by both limits.
+   */
+  private void throttle(int bytes) throws IOException {
+    mBucket.acquire(bytes);
+    TokenBucket shared = mSharedBucket;
+    if ( shared != null ) {
+      shared.acquire(bytes);
+    }
+  }
+
+  private boolean isStopped() {
+    return isCancelled || isPaused || isFailed;
+  }
+
+  private void reportProgress(long bytesSoFar) {
+    long now = System.currentTimeMillis();
+    long last = mLastProgressAt.get();
+    if ( now - last >= mProgressIntervalMs && mLastProgressAt.compareAndSet(last, now) ) {
+      mListener.onProgress(this, bytesSoFar, mTotal);
+    }
+  }
+
+  /**
+   * @param contentRange - e.g. "bytes 0-1023/4096"
+   * @return the total size, or -1 if it isn't known.
+   */
+  private static long parseTotal(String contentRange) {
+    if ( contentRange == null ) {
+      return -1;
+    }
+    int slash = contentRange.lastIndexOf('/');
+    return slash < 0 ? -1 : parseLong(contentRange.substring(slash + 1));
+  }
+
+  private static long parseLong(String value) {
+    if ( value == null ) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static void closeQuietly(RandomAccessFile file) {
+    if ( file == null ) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      // nothing more we can do.
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.yyztom.backdown;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a new version of a file from the old one and a patch.
+ *
+ * A patch is gzipped, and once unzipped is:
+ *
+ *   "BDPATCH1"               magic, 8 ascii bytes
+ *   long   targetSize        the size of the new file
+ *   then operations, each starting with a byte:
+ *     COPY   long offset, int length       copy length bytes of the old file from offset
+ *     INSERT int length, length bytes      bytes that aren't in the old file
+ *     END                                  nothing follows
+ *
+ * Numbers are big endian, as DataOutputStream writes them. The new file is written
+ * front to back, so it can be streamed as the patch arrives.
+ */
+final class DeltaPatch {
+  static final byte[] MAGIC = { 'B', 'D', 'P', 'A', 'T', 'C', 'H', '1' };
+  static final int END = 0;
+  static final int COPY = 1;
+  static final int INSERT = 2;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The patch is broken, or wasn't made from this base.
+   */
+  static class MalformedPatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    MalformedPatchException(String message) {
+      super(message);
+    }
+  }
+
+  interface Progress {
+    /**
+     * Throw to stop applying the patch.
+     */
+    void onProgress(long written, long total) throws IOException;
+  }
+
+  private DeltaPatch() {
+  }
+
+  /**
+   * Applies patch to base, writing the new file to out.
+   * @param patch - the gzipped patch, it isn't closed.
+   * @param check - fed the new file as it's written, or null.
+   * @param progress - told how far it has got, or null.
+   * @return the size of the new file.
+   */
+  static long apply(InputStream patch, RandomAccessFile base, OutputStream out,
+                    IntegrityCheck check, Progress progress) throws IOException {
+    DataInputStream in = new DataInputStream(new GZIPInputStream(patch, BUFFER_SIZE));
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    for (int i = 0; i < MAGIC.length; i++) {
+      if ( magic[i] != MAGIC[i] ) {
+        throw new MalformedPatchException("Not a patch.");
+      }
+    }
+
+    long targetSize = in.readLong();
+    long baseSize = base.length();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long written = 0;
+    try {
+      while (true) {
+        int op = in.readUnsignedByte();
+        if ( op == END ) {
+          break;
+        }
+
+        long offset = 0;
+        if ( op == COPY ) {
+          offset = in.readLong();
+        } else if ( op != INSERT ) {
+          throw new MalformedPatchException("Unknown operation " + op + ".");
+        }
+        int length = in.readInt();
+        if ( length < 0 || written + length > targetSize ) {
+          throw new MalformedPatchException("Patch writes past the end of the file.");
+        }
+        if ( op == COPY && (offset < 0 || offset + length > baseSize) ) {
+          throw new MalformedPatchException("Patch reads past the end of the base file.");
+        }
+
+        int remaining = length;
+        while (remaining > 0) {
+          int chunk = Math.min(remaining, buffer.length);
+          if ( op == COPY ) {
+            base.seek(offset + length - remaining);
+            base.readFully(buffer, 0, chunk);
+          } else {
+            in.readFully(buffer, 0, chunk);
+          }
+          out.write(buffer, 0, chunk);
+          if ( check != null ) {
+            check.update(buffer, 0, chunk);
+          }
+          remaining -= chunk;
+          written += chunk;
+        }
+        if ( progress != null ) {
+          progress.onProgress(written, targetSize);
+        }
+      }
+    } catch (EOFException e) {
+      throw new MalformedPatchException("Patch ended early.");
+    }
+
+    if ( written != targetSize ) {
+      throw new MalformedPatchException("Expected " + targetSize + " bytes, patch made " + written + ".");
+    }
+    return written;
+  }
+}
@@ -0,0 +1,171 @@
+package com.yyztom.backdown;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Remembers the files downloads finished as, so the same download
+ * doesn't have to be fetched twice.
+ *
+ * Entries are keyed by download id, with the file's size and SHA-256 when it was
+ * checked. A hit has to match what the request expects, so a file that has been
+ * truncated, or a request that now wants different bytes, goes back to the network.
+ * When there is a byte budget, the least recently used files are deleted to stay under it.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class DownloadCache {
+  static final long UNLIMITED = 0;
+
+  private final BackdownDbHelper mDbHelper;
+  private long mMaxBytes = UNLIMITED;
+
+  DownloadCache(BackdownDbHelper dbHelper) {
+    mDbHelper = dbHelper;
+  }
+
+  void setMaxBytes(long maxBytes) {
+    mMaxBytes = Math.max(UNLIMITED, maxBytes);
+    trim(null);
+  }
+
+  /**
+   * @param sha256 - the digest the request expects in hex, or null.
+   * @param size - the size the request expects, or IntegrityCheck.UNKNOWN_SIZE.
+   * @return the finished file for downloadId, or null if there isn't one that matches.
+   */
+  File get(String downloadId, String sha256, long size) {
+    Cursor c = mDbHelper.getReadableDatabase().query(BackdownDbHelper.TABLE_CACHE,
+            new String[] { BackdownDbHelper.COLUMN_PATH, BackdownDbHelper.COLUMN_SIZE, BackdownDbHelper.COLUMN_SHA256 },
+            BackdownDbHelper.COLUMN_DOWNLOAD_ID + " = ?", new String[] { downloadId }, null, null, null);
+    File file;
+    long cachedSize;
+    String cachedSha256;
+    try {
+      if ( !c.moveToFirst() ) {
+        return null;
+      }
+      file = new File(c.getString(0));
+      cachedSize = c.getLong(1);
+      cachedSha256 = c.getString(2);
+    } finally {
+      c.close();
+    }
+
+    // it's the app's file, it may have been moved, deleted or changed since.
+    if ( !file.isFile() || file.length() != cachedSize ) {
+      remove(downloadId);
+      return null;
+    }
+    if ( size >= 0 && size != cachedSize ) {
+      // the request wants something else now, it replaces this once downloaded.
+      return null;
+    }
+    if ( sha256 != null ) {
+      if ( cachedSha256 == null ) {
+        // never checked, do it once and remember it.
+        cachedSha256 = digest(file, sha256, size);
+        if ( cachedSha256 == null ) {
+          return null;
+        }
+        put(downloadId, file, cachedSha256);
+      } else if ( !cachedSha256.equals(sha256.toLowerCase(Locale.US)) ) {
+        return null;
+      }
+    }
+
+    ContentValues values = new ContentValues();
+    values.put(BackdownDbHelper.COLUMN_LAST_ACCESS, System.currentTimeMillis());
+    mDbHelper.getWritableDatabase().update(BackdownDbHelper.TABLE_CACHE, values,
+            BackdownDbHelper.COLUMN_DOWNLOAD_ID + " = ?", new String[] { downloadId });
+    return file;
+  }
+
+  /**
+   * @return the download id that finished as file, or null.
+   */
+  String getOwner(File file) {
+    Cursor c = mDbHelper.getReadableDatabase().query(BackdownDbHelper.TABLE_CACHE,
+            new String[] { BackdownDbHelper.COLUMN_DOWNLOAD_ID },
+            BackdownDbHelper.COLUMN_PATH + " = ?", new String[] { file.getAbsolutePath() }, null, null, null);
+    try {
+      return c.moveToFirst() ? c.getString(0) : null;
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * Records that downloadId finished as file, then makes room if over budget.
+   * @param sha256 - the file's digest in hex, or null if it isn't known.
+   */
+  void put(String downloadId, File file, String sha256) {
+    ContentValues values = new ContentValues();
+    values.put(BackdownDbHelper.COLUMN_DOWNLOAD_ID, downloadId);
+    values.put(BackdownDbHelper.COLUMN_PATH, file.getAbsolutePath());
+    values.put(BackdownDbHelper.COLUMN_SIZE, file.length());
+    values.put(BackdownDbHelper.COLUMN_SHA256, sha256);
+    values.put(BackdownDbHelper.COLUMN_LAST_ACCESS, System.currentTimeMillis());
+    mDbHelper.getWritableDatabase().insertWithOnConflict(
+            BackdownDbHelper.TABLE_CACHE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    trim(downloadId);
+  }
+
+  /**
+   * @return the file's digest if it's what's expected, otherwise null.
+   */
+  private static String digest(File file, String sha256, long size) {
+    try {
+      return IntegrityCheck.create(sha256, size).verify(file);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  void remove(String downloadId) {
+    mDbHelper.getWritableDatabase().delete(BackdownDbHelper.TABLE_CACHE,
+            BackdownDbHelper.COLUMN_DOWNLOAD_ID + " = ?", new String[] { downloadId });
+  }
+
+  /**
+   * Deletes the least recently used files until we're within budget.
+   * @param keep - a download id that mustn't be evicted, or null.
+   */
+  private void trim(String keep) {
+    if ( mMaxBytes == UNLIMITED ) {
+      return;
+    }
+
+    SQLiteDatabase db = mDbHelper.getWritableDatabase();
+    long total = DatabaseUtils.longForQuery(db,
+            "SELECT TOTAL(" + BackdownDbHelper.COLUMN_SIZE + ") FROM " + BackdownDbHelper.TABLE_CACHE, null);
+    if ( total <= mMaxBytes ) {
+      return;
+    }
+
+    Cursor c = db.query(BackdownDbHelper.TABLE_CACHE,
+            new String[] { BackdownDbHelper.COLUMN_DOWNLOAD_ID, BackdownDbHelper.COLUMN_PATH, BackdownDbHelper.COLUMN_SIZE },
+            null, null, null, null, BackdownDbHelper.COLUMN_LAST_ACCESS + " ASC");
+    try {
+      while (total > mMaxBytes && c.moveToNext()) {
+        String downloadId = c.getString(0);
+        if ( downloadId.equals(keep) ) {
+          continue;
+        }
+        File file = new File(c.getString(1));
+        if ( !file.exists() || file.delete() ) {
+          total -= c.getLong(2);
+          remove(downloadId);
+        }
+      }
+    } finally {
+      c.close();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.yyztom.backdown;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns urls into download ids, the MD5 of the url in hex.
+ *
+ * Safe to use from any thread, every thread gets its own digest. Recently used
+ * urls are remembered, so scanning the same rows every progress tick doesn't
+ * hash them again.
+ */
+final class DownloadIds {
+  // Android's default charset, which is what ids have always been made from.
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int CACHE_SIZE = 256;
+
+  private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        // every Android has it.
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  private static final LinkedHashMap<String, String> sCache = new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  private DownloadIds() {
+  }
+
+  static String fromUrl(String url) {
+    synchronized (sCache) {
+      String id = sCache.get(url);
+      if ( id != null ) {
+        return id;
+      }
+    }
+
+    MessageDigest digest = sDigest.get();
+    digest.reset();
+    String id = Hex.encode(digest.digest(url.getBytes(UTF_8)));
+    synchronized (sCache) {
+      sCache.put(url, id);
+    }
+    return id;
+  }
+}
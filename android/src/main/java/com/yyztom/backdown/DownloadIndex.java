@@ -0,0 +1,115 @@
+package com.yyztom.backdown;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashMap;
+
+/**
+ * Maps backdown download ids to the ids returned by DownloadManager.enqueue() and back.
+ * Every mapping is written through to the database, and lookups are served from memory.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class DownloadIndex {
+  static final long NOT_FOUND = -1;
+
+  private final BackdownDbHelper mDbHelper;
+  private final HashMap<String, Long> mManagerIds = new HashMap<>();
+  private final HashMap<Long, String> mDownloadIds = new HashMap<>();
+  private boolean isLoaded;
+
+  DownloadIndex(BackdownDbHelper dbHelper) {
+    mDbHelper = dbHelper;
+  }
+
+  /**
+   * Remember that downloadId was enqueued as managerId.
+   * Replaces any earlier mapping for either id.
+   */
+  void put(String downloadId, long managerId) {
+    load();
+    forget(downloadId, getDownloadId(managerId));
+    mManagerIds.put(downloadId, managerId);
+    mDownloadIds.put(managerId, downloadId);
+
+    ContentValues values = new ContentValues();
+    values.put(BackdownDbHelper.COLUMN_DOWNLOAD_ID, downloadId);
+    values.put(BackdownDbHelper.COLUMN_MANAGER_ID, managerId);
+    mDbHelper.getWritableDatabase().insertWithOnConflict(
+            BackdownDbHelper.TABLE_DOWNLOAD_INDEX, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  /**
+   * @return the DownloadManager id for downloadId, or NOT_FOUND.
+   */
+  long getManagerId(String downloadId) {
+    load();
+    Long managerId = mManagerIds.get(downloadId);
+    return managerId == null ? NOT_FOUND : managerId;
+  }
+
+  /**
+   * @return the backdown download id for managerId, or null.
+   */
+  String getDownloadId(long managerId) {
+    load();
+    return mDownloadIds.get(managerId);
+  }
+
+  void remove(String downloadId) {
+    load();
+    if ( forget(downloadId, null) ) {
+      mDbHelper.getWritableDatabase().delete(BackdownDbHelper.TABLE_DOWNLOAD_INDEX,
+              BackdownDbHelper.COLUMN_DOWNLOAD_ID + " = ?", new String[] { downloadId });
+    }
+  }
+
+  void remove(long managerId) {
+    String downloadId = getDownloadId(managerId);
+    if ( downloadId != null ) {
+      remove(downloadId);
+    }
+  }
+
+  /**
+   * Drops both in-memory mappings.
+   * @return true if there was anything to drop.
+   */
+  private boolean forget(String downloadId, String otherDownloadId) {
+    boolean found = false;
+    for (String id : new String[] { downloadId, otherDownloadId }) {
+      if ( id == null ) {
+        continue;
+      }
+      Long managerId = mManagerIds.remove(id);
+      if ( managerId != null ) {
+        mDownloadIds.remove(managerId);
+        found = true;
+      }
+    }
+    return found;
+  }
+
+  private void load() {
+    if ( isLoaded ) {
+      return;
+    }
+    isLoaded = true;
+
+    Cursor c = mDbHelper.getReadableDatabase().query(BackdownDbHelper.TABLE_DOWNLOAD_INDEX,
+            new String[] { BackdownDbHelper.COLUMN_DOWNLOAD_ID, BackdownDbHelper.COLUMN_MANAGER_ID },
+            null, null, null, null, null);
+    try {
+      while (c.moveToNext()) {
+        String downloadId = c.getString(0);
+        long managerId = c.getLong(1);
+        mManagerIds.put(downloadId, managerId);
+        mDownloadIds.put(managerId, downloadId);
+      }
+    } finally {
+      c.close();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.yyztom.backdown;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything we were asked to do for a single download.
+ */
+class DownloadRequest {
+  // engines
+  static final String ENGINE_DOWNLOAD_MANAGER = "DOWNLOAD_MANAGER";
+  static final String ENGINE_CHUNKED = "CHUNKED";
+
+  private final String _downloadId;
+  Uri uri;
+  // other places to get the same file, in order. The id still comes from uri.
+  List<Uri> mirrors = new ArrayList<>();
+  // a DeltaPatch that turns the file at basePath into this one, tried before uri.
+  String patchUrl;
+  String basePath;
+  String title;
+  String description;
+  boolean wifiOnly;
+  boolean requiresCharging;
+  boolean requiresDeviceIdle;
+  boolean showNotification;
+  String engine = ENGINE_DOWNLOAD_MANAGER;
+  int connections = ChunkedDownloader.DEFAULT_CONNECTIONS;
+  // higher goes first when there are more downloads than slots.
+  int priority = DownloadScheduler.DEFAULT_PRIORITY;
+  // what the finished file should be, checked before it's handed over.
+  String sha256;
+  long size = IntegrityCheck.UNKNOWN_SIZE;
+  // the name of a PostProcessor to run over the finished download, or null.
+  String postProcess;
+  // progress policy, updates closer together than these aren't sent.
+  long progressIntervalMs;
+  long progressMinBytes;
+  int progressMinPercent;
+  // whether to send progress while it's waiting to start.
+  boolean reportPending = true;
+  // this download's own bandwidth limit, chunked engine only.
+  long maxBytesPerSecond = TokenBucket.UNLIMITED;
+  // set once enqueueDownload has been called for it.
+  boolean isEnqueued;
+  // DownloadManager engine only, not kept: the url in use from getUrls(),
+  // and how many times it has failed since it was enqueued.
+  int mirror;
+  int failures;
+  // not kept, set once the patch has failed so it's downloaded in full.
+  boolean isPatchFailed;
+  // not kept, set once there's known to be room for it, and its size if we had to ask.
+  boolean isAdmitted;
+  boolean isPreflighted;
+  long preflightBytes = IntegrityCheck.UNKNOWN_SIZE;
+
+  DownloadRequest(String downloadId, Uri uri, String title, String description, boolean wifiOnly, boolean requiresCharging, boolean requiresDeviceIdle, boolean showNotification) {
+    this._downloadId = downloadId;
+    this.uri = uri;
+    this.title = title;
+    this.description = description;
+    this.wifiOnly = wifiOnly;
+    this.requiresCharging = requiresCharging;
+    this.requiresDeviceIdle = requiresDeviceIdle;
+    this.showNotification = showNotification;
+  }
+
+  String getDownloadId(){
+    return _downloadId;
+  }
+
+  /**
+   * @return uri followed by the mirrors.
+   */
+  List<Uri> getUrls() {
+    ArrayList<Uri> urls = new ArrayList<>();
+    urls.add(uri);
+    urls.addAll(mirrors);
+    return urls;
+  }
+}
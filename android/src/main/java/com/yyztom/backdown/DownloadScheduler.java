@@ -0,0 +1,218 @@
+package com.yyztom.backdown;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Decides when enqueued downloads are handed to their engine.
+ *
+ * Downloads wait in priority order (highest first, then first come first served)
+ * until there is room for them under the global and per host limits.
+ * It knows nothing about the engines themselves, a Dispatcher starts them.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class DownloadScheduler {
+  interface Dispatcher {
+    /**
+     * Start the download.
+     * @return false if it couldn't be started, it is then forgotten about.
+     */
+    boolean dispatch(String downloadId);
+  }
+
+  static final int UNLIMITED = 0;
+  static final int DEFAULT_PRIORITY = 0;
+
+  private static class Job {
+    final String downloadId;
+    final String host;
+    int priority;
+    final long sequence;
+
+    Job(String downloadId, String host, int priority, long sequence) {
+      this.downloadId = downloadId;
+      this.host = host == null ? "" : host;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+  }
+
+  private static final Comparator<Job> JOB_ORDER = new Comparator<Job>() {
+    @Override
+    public int compare(Job a, Job b) {
+      if ( a.priority != b.priority ) {
+        return a.priority > b.priority ? -1 : 1;
+      }
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+
+  private final Dispatcher mDispatcher;
+  private final PriorityQueue<Job> mQueue = new PriorityQueue<>(16, JOB_ORDER);
+  // the same jobs by download id, so lookups don't walk the queue.
+  private final HashMap<String, Job> mQueued = new HashMap<>();
+  private final HashMap<String, Job> mRunning = new HashMap<>();
+  private final HashMap<String, Integer> mRunningPerHost = new HashMap<>();
+  private int mMaxConcurrent = UNLIMITED;
+  private int mMaxPerHost = UNLIMITED;
+  private long mSequence;
+
+  DownloadScheduler(Dispatcher dispatcher) {
+    mDispatcher = dispatcher;
+  }
+
+  /**
+   * @param maxConcurrent - how many downloads may run at once, or UNLIMITED.
+   * @param maxPerHost - how many downloads may run against one host at once, or UNLIMITED.
+   */
+  void setLimits(int maxConcurrent, int maxPerHost) {
+    mMaxConcurrent = Math.max(UNLIMITED, maxConcurrent);
+    mMaxPerHost = Math.max(UNLIMITED, maxPerHost);
+    schedule();
+  }
+
+  /**
+   * Queues a download, it is dispatched straight away if there is room.
+   * @return false only if it was dispatched and that failed.
+   */
+  boolean enqueue(String downloadId, String host, int priority) {
+    if ( isQueued(downloadId) || isRunning(downloadId) ) {
+      return true;
+    }
+
+    Job job = new Job(downloadId, host, priority, mSequence++);
+    mQueue.add(job);
+    mQueued.put(downloadId, job);
+    schedule();
+    // if it's neither, it was dispatched and failed.
+    return isQueued(downloadId) || isRunning(downloadId);
+  }
+
+  /**
+   * Records a download that is already running without us having dispatched it,
+   * e.g. one the DownloadManager carried on with while the process was dead.
+   */
+  void attach(String downloadId, String host, int priority) {
+    if ( isRunning(downloadId) ) {
+      return;
+    }
+    remove(downloadId);
+    Job job = new Job(downloadId, host, priority, mSequence++);
+    mRunning.put(downloadId, job);
+    changeHostCount(job.host, 1);
+  }
+
+  /**
+   * A running download has finished, one way or another. Its slot goes to the next in line.
+   */
+  void finished(String downloadId) {
+    Job job = mRunning.remove(downloadId);
+    if ( job != null ) {
+      changeHostCount(job.host, -1);
+      schedule();
+    }
+  }
+
+  /**
+   * Takes a download out of the queue before it starts.
+   * @return true if it was waiting.
+   */
+  boolean remove(String downloadId) {
+    Job job = mQueued.remove(downloadId);
+    if ( job == null ) {
+      return false;
+    }
+    mQueue.remove(job);
+    return true;
+  }
+
+  /**
+   * Promotes or demotes a waiting download, running downloads keep running.
+   * @return false if the download isn't known.
+   */
+  boolean setPriority(String downloadId, int priority) {
+    Job running = mRunning.get(downloadId);
+    if ( running != null ) {
+      running.priority = priority;
+      return true;
+    }
+
+    Job job = mQueued.get(downloadId);
+    if ( job == null ) {
+      return false;
+    }
+    // the queue only orders jobs as they go in.
+    mQueue.remove(job);
+    job.priority = priority;
+    mQueue.add(job);
+    schedule();
+    return true;
+  }
+
+  boolean isQueued(String downloadId) {
+    return mQueued.containsKey(downloadId);
+  }
+
+  boolean isRunning(String downloadId) {
+    return mRunning.containsKey(downloadId);
+  }
+
+  int getQueuedCount() {
+    return mQueue.size();
+  }
+
+  int getRunningCount() {
+    return mRunning.size();
+  }
+
+  /**
+   * Dispatches whatever fits, in priority order.
+   * Jobs for a busy host are skipped over, not waited on.
+   */
+  private void schedule() {
+    ArrayList<Job> skipped = new ArrayList<>();
+    while (!mQueue.isEmpty()) {
+      if ( mMaxConcurrent != UNLIMITED && mRunning.size() >= mMaxConcurrent ) {
+        break;
+      }
+
+      Job job = mQueue.poll();
+      if ( mMaxPerHost != UNLIMITED && getHostCount(job.host) >= mMaxPerHost ) {
+        skipped.add(job);
+        continue;
+      }
+
+      mQueued.remove(job.downloadId);
+      mRunning.put(job.downloadId, job);
+      changeHostCount(job.host, 1);
+      if ( !mDispatcher.dispatch(job.downloadId) ) {
+        mRunning.remove(job.downloadId);
+        changeHostCount(job.host, -1);
+      }
+    }
+
+    for (Job job : skipped) {
+      // unless it was removed while it was out of the queue.
+      if ( mQueued.get(job.downloadId) == job ) {
+        mQueue.add(job);
+      }
+    }
+  }
+
+  private int getHostCount(String host) {
+    Integer count = mRunningPerHost.get(host);
+    return count == null ? 0 : count;
+  }
+
+  private void changeHostCount(String host, int delta) {
+    int count = getHostCount(host) + delta;
+    if ( count <= 0 ) {
+      mRunningPerHost.remove(host);
+    } else {
+      mRunningPerHost.put(host, count);
+    }
+  }
+}
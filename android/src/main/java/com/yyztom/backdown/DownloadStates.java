@@ -0,0 +1,195 @@
+package com.yyztom.backdown;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.yyztom.backdown.BackdownPlugin.BYTES_PER_SECOND;
+import static com.yyztom.backdown.BackdownPlugin.DOWNLOAD_ID;
+import static com.yyztom.backdown.BackdownPlugin.ERROR_MSG;
+import static com.yyztom.backdown.BackdownPlugin.FILE_PATH;
+import static com.yyztom.backdown.BackdownPlugin.PROGRESS;
+import static com.yyztom.backdown.BackdownPlugin.STATUS;
+import static com.yyztom.backdown.BackdownPlugin.TOTAL;
+
+/**
+ * What every download is doing right now, kept up to date as progress and
+ * completions come through the plugin, so asking never goes near the
+ * DownloadManager's database.
+ *
+ * Filled from the request store when the plugin starts, so after a cold start
+ * every download we were asked for is there straight away. Until a download
+ * reports progress again its bytes are whatever the request store knew.
+ * Downloads that aren't queued or running, i.e. finished, cancelled or never
+ * enqueued, aren't persisted here and only the last IDLE_TO_KEEP are kept.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class DownloadStates {
+  static final String STATUS_CREATED = "CREATED";
+  static final String STATUS_QUEUED = "QUEUED";
+  static final String STATUS_RUNNING = "RUNNING";
+  static final String STATUS_COMPLETE = "COMPLETE";
+  static final String STATUS_FAILED = "FAILED";
+  static final String STATUS_CANCELLED = "CANCELLED";
+
+  private static final int IDLE_TO_KEEP = 64;
+
+  private static class State {
+    String status = STATUS_CREATED;
+    long progress;
+    long total = -1;
+    long bytesPerSecond;
+    String filePath;
+    String errorMsg;
+
+    boolean isIdle() {
+      return !STATUS_QUEUED.equals(status) && !STATUS_RUNNING.equals(status);
+    }
+
+    HashMap<String, Object> toMap(String downloadId) {
+      HashMap<String, Object> map = new HashMap<>();
+      map.put(DOWNLOAD_ID, downloadId);
+      map.put(STATUS, status);
+      map.put(PROGRESS, progress);
+      map.put(TOTAL, total);
+      map.put(BYTES_PER_SECOND, bytesPerSecond);
+      map.put(FILE_PATH, filePath);
+      map.put(ERROR_MSG, errorMsg);
+      return map;
+    }
+  }
+
+  // in the order they were first seen.
+  private final LinkedHashMap<String, State> mStates = new LinkedHashMap<>();
+  private int mIdle;
+
+  /**
+   * A download that has been created, or picked back up from the request store.
+   * @param progress - how far an earlier attempt got, or 0.
+   * @param total - the size if it's known, or -1.
+   */
+  void onCreated(String downloadId, boolean enqueued, long progress, long total) {
+    State state = get(downloadId);
+    setStatus(state, enqueued ? STATUS_QUEUED : STATUS_CREATED);
+    state.progress = progress;
+    state.total = total;
+    state.bytesPerSecond = 0;
+    state.filePath = null;
+    state.errorMsg = null;
+    trim(downloadId);
+  }
+
+  /**
+   * Enqueued, or taken off the queue without finishing.
+   */
+  void onEnqueued(String downloadId, boolean enqueued) {
+    State state = mStates.get(downloadId);
+    if ( state == null && !enqueued ) {
+      return;
+    }
+    if ( state == null ) {
+      state = get(downloadId);
+    }
+
+    if ( enqueued && !STATUS_QUEUED.equals(state.status) && !STATUS_RUNNING.equals(state.status) ) {
+      // starting over.
+      setStatus(state, STATUS_QUEUED);
+      state.errorMsg = null;
+    } else if ( !enqueued && (STATUS_QUEUED.equals(state.status) || STATUS_RUNNING.equals(state.status)) ) {
+      // a failure says so straight after.
+      setStatus(state, STATUS_CANCELLED);
+      state.bytesPerSecond = 0;
+      trim(downloadId);
+    }
+  }
+
+  /**
+   * @param pending - still waiting to start, e.g. for a network.
+   */
+  void onProgress(String downloadId, long progress, long total, long bytesPerSecond, boolean pending) {
+    State state = get(downloadId);
+    setStatus(state, pending ? STATUS_QUEUED : STATUS_RUNNING);
+    state.progress = progress;
+    if ( total >= 0 ) {
+      state.total = total;
+    }
+    state.bytesPerSecond = bytesPerSecond;
+  }
+
+  void onComplete(String downloadId, String filePath, long size) {
+    State state = get(downloadId);
+    setStatus(state, STATUS_COMPLETE);
+    state.progress = size;
+    state.total = size;
+    state.bytesPerSecond = 0;
+    state.filePath = filePath;
+    state.errorMsg = null;
+    trim(downloadId);
+  }
+
+  void onFailure(String downloadId, String errorMsg) {
+    State state = get(downloadId);
+    setStatus(state, STATUS_FAILED);
+    state.bytesPerSecond = 0;
+    state.errorMsg = errorMsg;
+    trim(downloadId);
+  }
+
+  /**
+   * @return the download's state, or null if we know nothing about it.
+   */
+  HashMap<String, Object> toMap(String downloadId) {
+    State state = mStates.get(downloadId);
+    return state == null ? null : state.toMap(downloadId);
+  }
+
+  /**
+   * @return every download's state, oldest first.
+   */
+  ArrayList<HashMap<String, Object>> toList() {
+    ArrayList<HashMap<String, Object>> list = new ArrayList<>(mStates.size());
+    for (String downloadId : mStates.keySet()) {
+      list.add(mStates.get(downloadId).toMap(downloadId));
+    }
+    return list;
+  }
+
+  private State get(String downloadId) {
+    State state = mStates.get(downloadId);
+    if ( state == null ) {
+      state = new State();
+      mStates.put(downloadId, state);
+      mIdle++;
+    }
+    return state;
+  }
+
+  /**
+   * Keeps the count of idle downloads in step.
+   */
+  private void setStatus(State state, String status) {
+    boolean wasIdle = state.isIdle();
+    state.status = status;
+    if ( wasIdle != state.isIdle() ) {
+      mIdle += wasIdle ? -1 : 1;
+    }
+  }
+
+  /**
+   * Drops the oldest idle downloads beyond IDLE_TO_KEEP.
+   * @param keep - the one that just went idle, it stays.
+   */
+  private void trim(String keep) {
+    Iterator<Map.Entry<String, State>> it = mStates.entrySet().iterator();
+    while (mIdle > IDLE_TO_KEEP && it.hasNext()) {
+      Map.Entry<String, State> entry = it.next();
+      if ( entry.getValue().isIdle() && !entry.getKey().equals(keep) ) {
+        it.remove();
+        mIdle--;
+      }
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves finished downloads to where the app will use them.
+ *
+ * A rename is tried first, that costs nothing when both files share a filesystem.
+ * Otherwise the bytes are streamed across and the source is removed.
+ *
+ * Given an IntegrityCheck, the file is verified before it is handed back and
+ * deleted if it doesn't match. A copy feeds the check as it goes, a rename has
+ * nothing to feed it so the file is read once more to verify it.
+ */
+class FileFinalizer {
+  /**
+   * What it took to put a file in place.
+   */
+  static class Result {
+    final File file;
+    final long bytesCopied;
+    final long elapsedMs;
+    // in hex, only known if it was checked.
+    final String sha256;
+
+    Result(File file, long bytesCopied, long elapsedMs, String sha256) {
+      this.file = file;
+      this.bytesCopied = bytesCopied;
+      this.elapsedMs = elapsedMs;
+      this.sha256 = sha256;
+    }
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private FileFinalizer() {
+  }
+
+  /**
+   * Moves src to dstDir/filename, renaming if possible and copying if not.
+   * @param check - what the file should look like, or null.
+   * @return the result, or null if the destination directory couldn't be created.
+   * @throws IOException, IntegrityCheck.MismatchException if the file isn't what was expected.
+   */
+  static Result move(File src, File dstDir, String filename, IntegrityCheck check) throws IOException {
+    long start = SystemClock.elapsedRealtime();
+    if ( !makeDirs(dstDir) ) {
+      return null;
+    }
+
+    File outputFile = new File(dstDir, filename);
+    long copied = 0;
+    if ( !src.renameTo(outputFile) ) {
+      // different filesystems, fall back to a copy.
+      copied = copy(new FileInputStream(src), outputFile, check);
+      if ( !src.delete() ) {
+        src.deleteOnExit();
+      }
+    }
+    String sha256 = verify(outputFile, check);
+    return new Result(outputFile, copied, SystemClock.elapsedRealtime() - start, sha256);
+  }
+
+  /**
+   * Copies a file from the given InputStream to the dstDir/filename
+   * @param src - the FileInputStream that contains the data for the result file.
+   * @param dstDir - the destination directory - will be created if necessary.
+   * @param filename - the filename to use for the result file.
+   * @param check - what the file should look like, or null.
+   * @return the result, or null if the destination directory couldn't be created.
+   * @throws IOException, IntegrityCheck.MismatchException if the file isn't what was expected.
+   */
+  static Result copy(FileInputStream src, File dstDir, String filename, IntegrityCheck check) throws IOException {
+    long start = SystemClock.elapsedRealtime();
+    if ( !makeDirs(dstDir) ) {
+      src.close();
+      return null;
+    }
+
+    File outputFile = new File(dstDir, filename);
+    long copied = copy(src, outputFile, check);
+    String sha256 = verify(outputFile, check);
+    return new Result(outputFile, copied, SystemClock.elapsedRealtime() - start, sha256);
+  }
+
+  /**
+   * Streams src into dst, closing both. If check wants the bytes it is fed
+   * them on the way through, rather than reading dst again afterwards.
+   * @return the number of bytes copied.
+   */
+  private static long copy(FileInputStream src, File dst, IntegrityCheck check) throws IOException {
+    FileChannel in = null;
+    FileChannel out = null;
+    try {
+      in = src.getChannel();
+      out = new FileOutputStream(dst).getChannel();
+      if ( check != null && check.needsDigest() && check.getPosition() == 0 ) {
+        return copyAndDigest(in, out, check);
+      }
+
+      long size = in.size();
+      long position = 0;
+      // transferTo may move less than asked for.
+      while (position < size) {
+        long transferred = in.transferTo(position, size - position, out);
+        if ( transferred <= 0 ) {
+          break;
+        }
+        position += transferred;
+      }
+      return position;
+    } finally {
+      if (in != null) {
+        in.close();
+      } else {
+        src.close();
+      }
+      if ( out != null ) {
+        out.close();
+      }
+    }
+  }
+
+  private static long copyAndDigest(FileChannel in, FileChannel out, IntegrityCheck check) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    long position = 0;
+    while (in.read(buffer) >= 0) {
+      buffer.flip();
+      check.update(buffer);
+      while (buffer.hasRemaining()) {
+        position += out.write(buffer);
+      }
+      buffer.clear();
+    }
+    return position;
+  }
+
+  /**
+   * @return the file's SHA-256, if it was checked.
+   * @throws IntegrityCheck.MismatchException after deleting the file if it doesn't match.
+   */
+  private static String verify(File file, IntegrityCheck check) throws IOException {
+    if ( check == null ) {
+      return null;
+    }
+    try {
+      return check.verify(file);
+    } catch (IntegrityCheck.MismatchException e) {
+      file.delete();
+      throw e;
+    }
+  }
+
+  private static boolean makeDirs(File dir) {
+    return dir.exists() || dir.mkdirs();
+  }
+}
@@ -0,0 +1,20 @@
+package com.yyztom.backdown;
+
+/**
+ * Lower case hex, from a lookup table rather than String.format per byte.
+ */
+final class Hex {
+  private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+  private Hex() {
+  }
+
+  static String encode(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = DIGITS[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = DIGITS[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+}
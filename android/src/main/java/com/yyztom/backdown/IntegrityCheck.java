@@ -0,0 +1,160 @@
+package com.yyztom.backdown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * What a finished download is expected to look like.
+ *
+ * SHA-256 has to be fed the file front to back, so only bytes that go past in that
+ * order are digested on the way: a single connection download, or a copy. Anything
+ * else is read back from the file when it is verified, which for a chunked download
+ * is every range after the first and for a file that was only renamed is all of it.
+ *
+ * Not thread safe, only feed it from one thread at a time.
+ */
+class IntegrityCheck {
+  static final long UNKNOWN_SIZE = -1;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The file isn't what we were told to expect.
+   */
+  static class MismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    MismatchException(String message) {
+      super(message);
+    }
+  }
+
+  private final String mSha256;
+  private final long mSize;
+  private final MessageDigest mDigest;
+  // how many bytes from the start of the file have been digested.
+  private long mPosition;
+
+  private IntegrityCheck(String sha256, long size, MessageDigest digest) {
+    mSha256 = sha256;
+    mSize = size;
+    mDigest = digest;
+  }
+
+  /**
+   * @param sha256 - the expected digest in hex, or null.
+   * @param size - the expected size in bytes, or UNKNOWN_SIZE.
+   * @return a check, or null if there is nothing to check.
+   */
+  static IntegrityCheck create(String sha256, long size) {
+    if ( sha256 == null && size < 0 ) {
+      return null;
+    }
+
+    MessageDigest digest = null;
+    if ( sha256 != null ) {
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        // every Android has it.
+        throw new IllegalStateException(e);
+      }
+    }
+    return new IntegrityCheck(sha256 == null ? null : sha256.toLowerCase(Locale.US), size < 0 ? UNKNOWN_SIZE : size, digest);
+  }
+
+  /**
+   * @return true if the bytes need to be fed in, false if only the size is checked.
+   */
+  boolean needsDigest() {
+    return mDigest != null;
+  }
+
+  /**
+   * @return the offset of the next byte the digest expects.
+   */
+  long getPosition() {
+    return mPosition;
+  }
+
+  /**
+   * Digests the buffer's remaining bytes without consuming them.
+   */
+  void update(ByteBuffer buffer) {
+    if ( mDigest == null ) {
+      return;
+    }
+    mPosition += buffer.remaining();
+    mDigest.update(buffer.duplicate());
+  }
+
+  void update(byte[] bytes, int offset, int length) {
+    if ( mDigest == null ) {
+      return;
+    }
+    mPosition += length;
+    mDigest.update(bytes, offset, length);
+  }
+
+  /**
+   * Fails early if the server says the file is a different size than expected.
+   * @param size - the size the server gave, or -1 if it didn't.
+   */
+  void checkSize(long size) throws MismatchException {
+    if ( mSize != UNKNOWN_SIZE && size >= 0 && size != mSize ) {
+      throw new MismatchException("Expected " + mSize + " bytes, got " + size + ".");
+    }
+  }
+
+  /**
+   * Checks the finished file, digesting whatever wasn't seen on the way.
+   * @return the file's SHA-256 in hex, or null if it wasn't asked for.
+   */
+  String verify(File file) throws IOException {
+    long size = file.length();
+    checkSize(size);
+    if ( mDigest != null && mPosition < size ) {
+      FileChannel channel = new FileInputStream(file).getChannel();
+      try {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (mPosition < size) {
+          buffer.clear();
+          int read = channel.read(buffer, mPosition);
+          if ( read < 0 ) {
+            break;
+          }
+          buffer.flip();
+          update(buffer);
+        }
+      } finally {
+        channel.close();
+      }
+    }
+
+    return verify(size);
+  }
+
+  /**
+   * Checks a file that has been fed through in full.
+   * @param size - how many bytes there were.
+   * @return the file's SHA-256 in hex, or null if it wasn't asked for.
+   */
+  String verify(long size) throws MismatchException {
+    checkSize(size);
+    if ( mDigest == null ) {
+      return null;
+    }
+
+    String actual = Hex.encode(mDigest.digest());
+    if ( mPosition != size || !actual.equals(mSha256) ) {
+      throw new MismatchException("SHA-256 mismatch, expected " + mSha256 + " got " + actual + ".");
+    }
+    return actual;
+  }
+}
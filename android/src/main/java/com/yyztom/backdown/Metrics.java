@@ -0,0 +1,274 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts and times what the plugin does, so apps can see how it performs in the field.
+ *
+ * Everything is a plain counter or a fixed size histogram, recording costs a few
+ * additions and nothing is allocated per sample. Timings for each download are kept
+ * while it runs, and for the last few that finished.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class Metrics {
+  // histograms
+  static final String QUEUE_WAIT_MS = "queueWaitMs";
+  static final String TRANSFER_MS = "transferMs";
+  static final String FINALIZE_MS = "finalizeMs";
+  static final String QUERY_MS = "queryMs";
+
+  private static final int FINISHED_TO_KEEP = 32;
+  // messages per second are averaged over this many seconds.
+  private static final int RATE_SECONDS = 10;
+
+  /**
+   * Power of two buckets, from under 1 up to 2^30.
+   */
+  static class Histogram {
+    private static final int BUCKETS = 32;
+
+    private final long[] mBuckets = new long[BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    void record(long value) {
+      value = Math.max(0, value);
+      int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+      mBuckets[bucket]++;
+      mCount++;
+      mSum += value;
+      mMin = Math.min(mMin, value);
+      mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * @return the upper bound of the bucket the percentile falls in.
+     */
+    long getPercentile(int percentile) {
+      if ( mCount == 0 ) {
+        return 0;
+      }
+      long rank = (mCount * percentile + 99) / 100;
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += mBuckets[i];
+        if ( seen >= rank ) {
+          return Math.min(mMax, i == 0 ? 0 : (1L << i) - 1);
+        }
+      }
+      return mMax;
+    }
+
+    HashMap<String, Object> toMap() {
+      HashMap<String, Object> map = new HashMap<>();
+      map.put("count", mCount);
+      map.put("sum", mSum);
+      map.put("min", mCount == 0 ? 0 : mMin);
+      map.put("max", mMax);
+      map.put("p50", getPercentile(50));
+      map.put("p90", getPercentile(90));
+      map.put("p99", getPercentile(99));
+      return map;
+    }
+  }
+
+  /**
+   * When things happened to one download, 0 if they haven't.
+   */
+  private static class Timings {
+    long enqueuedAt;
+    long startedAt;
+    long firstByteAt;
+    long finishedAt;
+    long finalizeMs;
+    long bytesCopied;
+    boolean success;
+
+    HashMap<String, Object> toMap() {
+      HashMap<String, Object> map = new HashMap<>();
+      map.put(QUEUE_WAIT_MS, firstByteAt == 0 || enqueuedAt == 0 ? -1 : firstByteAt - enqueuedAt);
+      map.put(TRANSFER_MS, finishedAt == 0 || startedAt == 0 ? -1 : finishedAt - startedAt);
+      map.put(FINALIZE_MS, finalizeMs);
+      map.put("bytesCopied", bytesCopied);
+      map.put("finished", finishedAt != 0);
+      map.put("success", success);
+      return map;
+    }
+  }
+
+  private final long mCreatedAt = SystemClock.elapsedRealtime();
+  private final HashMap<String, Histogram> mHistograms = new HashMap<>();
+  private final HashMap<String, Timings> mRunning = new HashMap<>();
+  private final LinkedHashMap<String, Timings> mFinished = new LinkedHashMap<String, Timings>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Timings> eldest) {
+      return size() > FINISHED_TO_KEEP;
+    }
+  };
+
+  private long mEnqueued;
+  private long mCompleted;
+  private long mFailed;
+  private long mCacheHits;
+  private long mBytesCopied;
+  private long mMessages;
+  // messages sent in each of the last RATE_SECONDS seconds.
+  private final long[] mMessagesPerSecond = new long[RATE_SECONDS];
+  private long mMessagesSecond;
+
+  Metrics() {
+    mHistograms.put(QUEUE_WAIT_MS, new Histogram());
+    mHistograms.put(TRANSFER_MS, new Histogram());
+    mHistograms.put(FINALIZE_MS, new Histogram());
+    mHistograms.put(QUERY_MS, new Histogram());
+  }
+
+  void record(String histogram, long value) {
+    mHistograms.get(histogram).record(value);
+  }
+
+  void onEnqueued(String downloadId) {
+    mEnqueued++;
+    Timings timings = new Timings();
+    timings.enqueuedAt = SystemClock.elapsedRealtime();
+    mRunning.put(downloadId, timings);
+  }
+
+  void onStarted(String downloadId) {
+    Timings timings = getTimings(downloadId);
+    timings.startedAt = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Called with every progress update, only the first with bytes counts.
+   */
+  void onProgress(String downloadId, long bytesSoFar) {
+    Timings timings = mRunning.get(downloadId);
+    if ( timings == null || timings.firstByteAt != 0 || bytesSoFar <= 0 ) {
+      return;
+    }
+    timings.firstByteAt = SystemClock.elapsedRealtime();
+    if ( timings.enqueuedAt != 0 ) {
+      record(QUEUE_WAIT_MS, timings.firstByteAt - timings.enqueuedAt);
+    }
+  }
+
+  void onCacheHit() {
+    mCacheHits++;
+  }
+
+  void onComplete(String downloadId, FileFinalizer.Result finalized) {
+    mCompleted++;
+    Timings timings = finish(downloadId, true);
+    if ( finalized != null ) {
+      timings.finalizeMs = finalized.elapsedMs;
+      timings.bytesCopied = finalized.bytesCopied;
+      mBytesCopied += finalized.bytesCopied;
+      record(FINALIZE_MS, finalized.elapsedMs);
+    }
+  }
+
+  void onFailure(String downloadId) {
+    mFailed++;
+    finish(downloadId, false);
+  }
+
+  /**
+   * It was cancelled, nothing worth recording.
+   */
+  void onCancelled(String downloadId) {
+    mRunning.remove(downloadId);
+  }
+
+  /**
+   * A message was sent over the channel.
+   */
+  void onMessage() {
+    mMessages++;
+    long second = SystemClock.elapsedRealtime() / 1000;
+    advanceTo(second);
+    mMessagesPerSecond[(int) (second % RATE_SECONDS)]++;
+  }
+
+  /**
+   * @return everything recorded so far, as maps and numbers the channel can carry.
+   */
+  HashMap<String, Object> toMap() {
+    advanceTo(SystemClock.elapsedRealtime() / 1000);
+    long recent = 0;
+    for (long count : mMessagesPerSecond) {
+      recent += count;
+    }
+
+    HashMap<String, Object> map = new HashMap<>();
+    map.put("uptimeMs", SystemClock.elapsedRealtime() - mCreatedAt);
+    map.put("enqueued", mEnqueued);
+    map.put("completed", mCompleted);
+    map.put("failed", mFailed);
+    map.put("running", (long) mRunning.size());
+    map.put("cacheHits", mCacheHits);
+    map.put("bytesCopied", mBytesCopied);
+    map.put("channelMessages", mMessages);
+    map.put("channelMessagesPerSecond", (double) recent / RATE_SECONDS);
+
+    for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+      map.put(entry.getKey(), entry.getValue().toMap());
+    }
+
+    HashMap<String, Object> downloads = new HashMap<>();
+    for (Map.Entry<String, Timings> entry : mFinished.entrySet()) {
+      downloads.put(entry.getKey(), entry.getValue().toMap());
+    }
+    for (Map.Entry<String, Timings> entry : mRunning.entrySet()) {
+      downloads.put(entry.getKey(), entry.getValue().toMap());
+    }
+    map.put("downloads", downloads);
+    return map;
+  }
+
+  private Timings getTimings(String downloadId) {
+    Timings timings = mRunning.get(downloadId);
+    if ( timings == null ) {
+      // e.g. resumed after the process died, we don't know when it was enqueued.
+      timings = new Timings();
+      mRunning.put(downloadId, timings);
+    }
+    return timings;
+  }
+
+  private Timings finish(String downloadId, boolean success) {
+    Timings timings = mRunning.remove(downloadId);
+    if ( timings == null ) {
+      timings = new Timings();
+    }
+    timings.finishedAt = SystemClock.elapsedRealtime();
+    timings.success = success;
+    if ( timings.startedAt != 0 ) {
+      record(TRANSFER_MS, timings.finishedAt - timings.startedAt);
+    }
+    mFinished.remove(downloadId);
+    mFinished.put(downloadId, timings);
+    return timings;
+  }
+
+  /**
+   * Clears the per second counts for any seconds that have gone by without messages.
+   */
+  private void advanceTo(long second) {
+    if ( second <= mMessagesSecond ) {
+      return;
+    }
+    long gap = Math.min(RATE_SECONDS, second - mMessagesSecond);
+    for (long s = second - gap + 1; s <= second; s++) {
+      mMessagesPerSecond[(int) (s % RATE_SECONDS)] = 0;
+    }
+    mMessagesSecond = second;
+  }
+}
@@ -0,0 +1,149 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Picks between the urls a download can come from, and paces retries across them.
+ *
+ * Mirrors are ranked by fetching the first PROBE_BYTES from all of them at once,
+ * the quickest to deliver goes first. A mirror that fails or takes longer than
+ * PROBE_TIMEOUT_MS goes to the back.
+ *
+ * When a mirror fails, the next one is tried straight away. Once every one has
+ * failed we wait before going round again, twice as long each time.
+ */
+final class Mirrors {
+  // how many times we go round all of them before giving up.
+  static final int MAX_ROUNDS = 3;
+
+  private static final int PROBE_BYTES = 32 * 1024;
+  private static final long PROBE_TIMEOUT_MS = 5000;
+  private static final long BACKOFF_MS = 1000;
+  private static final long MAX_BACKOFF_MS = 30000;
+
+  private static class Probe {
+    final URL url;
+    final int order;
+    long elapsedMs = Long.MAX_VALUE;
+
+    Probe(URL url, int order) {
+      this.url = url;
+      this.order = order;
+    }
+  }
+
+  private static final Comparator<Probe> FASTEST_FIRST = new Comparator<Probe>() {
+    @Override
+    public int compare(Probe a, Probe b) {
+      if ( a.elapsedMs != b.elapsedMs ) {
+        return a.elapsedMs < b.elapsedMs ? -1 : 1;
+      }
+      return a.order - b.order;
+    }
+  };
+
+  private Mirrors() {
+  }
+
+  /**
+   * Probes every url in parallel on executor, blocks until they're all done or have timed out.
+   * @return urls, fastest first.
+   */
+  static List<URL> rank(List<URL> urls, ExecutorService executor) {
+    if ( urls.size() < 2 ) {
+      return urls;
+    }
+
+    ArrayList<Probe> probes = new ArrayList<>();
+    ArrayList<Future<Long>> futures = new ArrayList<>();
+    for (int i = 0; i < urls.size(); i++) {
+      final URL url = urls.get(i);
+      probes.add(new Probe(url, i));
+      futures.add(executor.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return probe(url);
+        }
+      }));
+    }
+
+    long deadline = SystemClock.elapsedRealtime() + PROBE_TIMEOUT_MS;
+    for (int i = 0; i < futures.size(); i++) {
+      Future<Long> future = futures.get(i);
+      try {
+        long wait = Math.max(0, deadline - SystemClock.elapsedRealtime());
+        probes.get(i).elapsedMs = future.get(wait, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException | TimeoutException e) {
+        // it goes to the back.
+        future.cancel(true);
+      } catch (InterruptedException e) {
+        future.cancel(true);
+        Thread.currentThread().interrupt();
+        return urls;
+      }
+    }
+
+    Collections.sort(probes, FASTEST_FIRST);
+    ArrayList<URL> ranked = new ArrayList<>();
+    for (Probe probe : probes) {
+      ranked.add(probe.url);
+    }
+    return ranked;
+  }
+
+  /**
+   * @param round - how many times every mirror has failed, from 1.
+   * @return how long to wait before trying them all again.
+   */
+  static long getBackoffMs(int round) {
+    return Math.min(MAX_BACKOFF_MS, BACKOFF_MS << Math.min(16, Math.max(0, round - 1)));
+  }
+
+  /**
+   * @return how long it took to get the first PROBE_BYTES, or the whole body if it's smaller.
+   */
+  private static long probe(URL url) throws IOException {
+    long start = SystemClock.elapsedRealtime();
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    try {
+      conn.setConnectTimeout((int) PROBE_TIMEOUT_MS);
+      conn.setReadTimeout((int) PROBE_TIMEOUT_MS);
+      conn.setRequestProperty("Accept-Encoding", "identity");
+      conn.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+      int code = conn.getResponseCode();
+      if ( code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL ) {
+        throw new IOException("HTTP_STATUS_CODE: " + code);
+      }
+
+      InputStream in = conn.getInputStream();
+      try {
+        byte[] buffer = new byte[8 * 1024];
+        int total = 0;
+        int read;
+        while (total < PROBE_BYTES && (read = in.read(buffer)) >= 0) {
+          total += read;
+        }
+      } finally {
+        in.close();
+      }
+      return SystemClock.elapsedRealtime() - start;
+    } finally {
+      conn.disconnect();
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package com.yyztom.backdown;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Shows download progress in the notification shade without flooding it.
+ *
+ * There is one cached builder per notification, and it is only posted again when
+ * the title, status or whole percentage changes, and then no more than once every
+ * MIN_UPDATE_INTERVAL_MS unless the status changed. Android drops updates from apps
+ * that post too often anyway.
+ *
+ * When grouped, downloads aren't shown individually. A single
+ * "N files, X% overall" notification stands in for all of them.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class NotificationRenderer {
+  static final long MIN_UPDATE_INTERVAL_MS = 1000;
+
+  // the aggregated notification, download notification ids are hash codes and DownloadManager ids.
+  private static final int GROUP_NOTIFICATION_ID = 0x6261636b;
+  private static final int INDETERMINATE = -1;
+
+  private static class Entry {
+    final NotificationCompat.Builder builder;
+    String title;
+    String status;
+    // rate and time left, shown under the bar.
+    String detail;
+    long progress;
+    long total;
+    // whole percent last posted, or INDETERMINATE.
+    int percent = Integer.MIN_VALUE;
+    long postedAt;
+
+    Entry(NotificationCompat.Builder builder) {
+      this.builder = builder;
+    }
+  }
+
+  private final Context mContext;
+  private final String mChannelId;
+  private final NotificationManagerCompat mManager;
+  private final HashMap<Integer, Entry> mEntries = new HashMap<>();
+  private Entry mGroup;
+  private int mColor = 0xFF000000;
+  private boolean isGrouped;
+
+  NotificationRenderer(Context context, String channelId) {
+    mContext = context;
+    mChannelId = channelId;
+    mManager = NotificationManagerCompat.from(context);
+  }
+
+  void setColor(int color) {
+    mColor = color;
+    for (Entry entry : mEntries.values()) {
+      entry.builder.setColor(color);
+    }
+    if ( mGroup != null ) {
+      mGroup.builder.setColor(color);
+    }
+  }
+
+  /**
+   * Switches between one notification per download and a single aggregated one.
+   */
+  void setGrouped(boolean grouped) {
+    if ( grouped == isGrouped ) {
+      return;
+    }
+    isGrouped = grouped;
+
+    if ( grouped ) {
+      for (Integer id : mEntries.keySet()) {
+        mManager.cancel(id);
+      }
+      renderGroup();
+    } else {
+      cancelGroup();
+      for (HashMap.Entry<Integer, Entry> e : mEntries.entrySet()) {
+        // force them to be posted again.
+        e.getValue().percent = Integer.MIN_VALUE;
+        render(e.getKey(), e.getValue(), true);
+      }
+    }
+  }
+
+  /**
+   * @param total - the size in bytes, or a value <= 0 if it isn't known yet.
+   * @param bytesPerSecond - or TransferRate.UNKNOWN.
+   * @param etaMs - or TransferRate.UNKNOWN.
+   */
+  void update(int id, String title, String status, long progress, long total, long bytesPerSecond, long etaMs) {
+    Entry entry = getEntry(id);
+    boolean changed = !equals(title, entry.title) || !equals(status, entry.status);
+    entry.title = title;
+    entry.status = status;
+    // not worth a redraw by itself, it goes out with the next one.
+    entry.detail = formatDetail(bytesPerSecond, etaMs);
+    entry.progress = progress;
+    entry.total = total;
+    // no longer a placeholder.
+    entry.builder.setTimeoutAfter(0);
+
+    if ( isGrouped ) {
+      renderGroup();
+    } else {
+      render(id, entry, changed);
+    }
+  }
+
+  /**
+   * Shows a spinner rather than a bar, it goes away after timeoutMs if it isn't cancelled.
+   */
+  void updateIndeterminate(int id, String title, String status, long timeoutMs) {
+    Entry entry = getEntry(id);
+    entry.title = title;
+    entry.status = status;
+    entry.detail = null;
+    entry.progress = 0;
+    entry.total = INDETERMINATE;
+    entry.builder.setTimeoutAfter(timeoutMs);
+
+    if ( isGrouped ) {
+      renderGroup();
+    } else {
+      render(id, entry, true);
+    }
+  }
+
+  void cancel(int id) {
+    if ( mEntries.remove(id) == null ) {
+      return;
+    }
+    if ( isGrouped ) {
+      renderGroup();
+    } else {
+      mManager.cancel(id);
+    }
+  }
+
+  private Entry getEntry(int id) {
+    Entry entry = mEntries.get(id);
+    if ( entry == null ) {
+      entry = new Entry(newBuilder());
+      mEntries.put(id, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Posts entry if it has changed enough to be worth it.
+   * @param force - post whatever the percentage, e.g. the status changed.
+   */
+  private void render(int id, Entry entry, boolean force) {
+    int percent = getPercent(entry.progress, entry.total);
+    long now = SystemClock.elapsedRealtime();
+    if ( !force && (percent == entry.percent || now - entry.postedAt < MIN_UPDATE_INTERVAL_MS) ) {
+      return;
+    }
+
+    entry.percent = percent;
+    entry.postedAt = now;
+    entry.builder.setContentTitle(entry.title)
+            .setContentText(entry.status)
+            .setSubText(entry.detail)
+            .setProgress(100, Math.max(0, percent), percent == INDETERMINATE);
+    mManager.notify(id, entry.builder.build());
+  }
+
+  private void renderGroup() {
+    if ( mEntries.isEmpty() ) {
+      cancelGroup();
+      return;
+    }
+
+    long progress = 0;
+    long total = 0;
+    for (Entry entry : mEntries.values()) {
+      // files we don't know the size of yet don't count towards the overall percentage.
+      if ( entry.total > 0 ) {
+        progress += entry.progress;
+        total += entry.total;
+      }
+    }
+
+    boolean created = mGroup == null;
+    if ( created ) {
+      mGroup = new Entry(newBuilder());
+    }
+    int count = mEntries.size();
+    String title = count == 1 ? "1 file" : count + " files";
+    int percent = getPercent(progress, total);
+    boolean changed = created || !title.equals(mGroup.title);
+    mGroup.title = title;
+    mGroup.status = percent == INDETERMINATE ? "Downloading.." : percent + "% overall";
+    mGroup.progress = progress;
+    mGroup.total = total;
+    render(GROUP_NOTIFICATION_ID, mGroup, changed);
+  }
+
+  private void cancelGroup() {
+    if ( mGroup != null ) {
+      mGroup = null;
+      mManager.cancel(GROUP_NOTIFICATION_ID);
+    }
+  }
+
+  private NotificationCompat.Builder newBuilder() {
+    NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext, mChannelId);
+    builder.setSmallIcon(R.mipmap.ic_launcher)
+            .setColor(mColor)
+            .setOnlyAlertOnce(true)
+            .setShowWhen(false)
+            .setSound(null);
+    return builder;
+  }
+
+  /**
+   * @return e.g. "1.2 MB/s, 3 min left", or null if there's nothing to say yet.
+   */
+  private static String formatDetail(long bytesPerSecond, long etaMs) {
+    if ( bytesPerSecond <= 0 ) {
+      return null;
+    }
+
+    String rate;
+    if ( bytesPerSecond >= 1024 * 1024 ) {
+      rate = String.format(Locale.US, "%.1f MB/s", bytesPerSecond / (1024.0 * 1024.0));
+    } else {
+      rate = Math.max(1, bytesPerSecond / 1024) + " KB/s";
+    }
+
+    if ( etaMs < 0 ) {
+      return rate;
+    }
+    long seconds = etaMs / 1000;
+    if ( seconds < 60 ) {
+      return rate + ", " + seconds + " s left";
+    } else if ( seconds < 60 * 60 ) {
+      return rate + ", " + (seconds / 60) + " min left";
+    }
+    return rate + ", " + (seconds / (60 * 60)) + " h left";
+  }
+
+  private static int getPercent(long progress, long total) {
+    if ( total <= 0 ) {
+      return INDETERMINATE;
+    }
+    return (int) Math.min(100, progress * 100 / total);
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,144 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads a DeltaPatch and applies it to a file we already have.
+ *
+ * The patch is applied as it arrives, nothing but the new file is written. That
+ * goes next to the destination and is renamed into place once it's been verified,
+ * so the base can be the file being replaced.
+ *
+ * Listener callbacks are made from the thread the task runs on.
+ */
+class PatchTask implements Runnable {
+  interface Listener {
+    void onProgress(PatchTask task, long written, long total);
+    void onComplete(PatchTask task, FileFinalizer.Result finalized);
+    /**
+     * The patch couldn't be used, the download needs fetching in full.
+     */
+    void onFailure(PatchTask task, String errorMsg);
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int CONNECT_TIMEOUT_MS = 15000;
+  private static final int READ_TIMEOUT_MS = 30000;
+
+  private final String mDownloadId;
+  private final URL mPatchUrl;
+  private final File mBase;
+  private final File mDestination;
+  private final IntegrityCheck mCheck;
+  private final Listener mListener;
+  private final long mProgressIntervalMs;
+  private volatile boolean isCancelled;
+
+  /**
+   * @param check - what the new file should look like, or null.
+   */
+  PatchTask(String downloadId, URL patchUrl, File base, File destination, IntegrityCheck check,
+            Listener listener, long progressIntervalMs) {
+    mDownloadId = downloadId;
+    mPatchUrl = patchUrl;
+    mBase = base;
+    mDestination = destination;
+    mCheck = check;
+    mListener = listener;
+    mProgressIntervalMs = progressIntervalMs;
+  }
+
+  String getDownloadId() {
+    return mDownloadId;
+  }
+
+  /**
+   * Stops and throws away the partial file, no listener callback is made.
+   */
+  void cancel() {
+    isCancelled = true;
+  }
+
+  @Override
+  public void run() {
+    File partFile = new File(mDestination.getPath() + ".part");
+    HttpURLConnection conn = null;
+    RandomAccessFile base = null;
+    OutputStream out = null;
+    try {
+      base = new RandomAccessFile(mBase, "r");
+      conn = (HttpURLConnection) mPatchUrl.openConnection();
+      conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+      conn.setReadTimeout(READ_TIMEOUT_MS);
+      if ( conn.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+        throw new IOException("HTTP_STATUS_CODE: " + conn.getResponseCode());
+      }
+
+      out = new BufferedOutputStream(new FileOutputStream(partFile), BUFFER_SIZE);
+      DeltaPatch.apply(conn.getInputStream(), base, out, mCheck, new DeltaPatch.Progress() {
+        private long mLastProgressAt;
+
+        @Override
+        public void onProgress(long written, long total) throws IOException {
+          if ( isCancelled ) {
+            throw new InterruptedIOException("cancelled");
+          }
+          long now = SystemClock.elapsedRealtime();
+          if ( now - mLastProgressAt >= mProgressIntervalMs ) {
+            mLastProgressAt = now;
+            mListener.onProgress(PatchTask.this, written, total);
+          }
+        }
+      });
+      out.close();
+      out = null;
+      base.close();
+      base = null;
+
+      if ( isCancelled ) {
+        partFile.delete();
+        return;
+      }
+
+      // the part file sits next to the destination, so this is a rename.
+      FileFinalizer.Result finalized = FileFinalizer.move(partFile, mDestination.getParentFile(), mDestination.getName(), mCheck);
+      if ( finalized == null ) {
+        throw new IOException("failed moving file.");
+      }
+      mListener.onComplete(this, finalized);
+    } catch (IOException e) {
+      close(out);
+      partFile.delete();
+      if ( !isCancelled ) {
+        mListener.onFailure(this, e.getMessage());
+      }
+    } finally {
+      close(base);
+      if ( conn != null ) {
+        conn.disconnect();
+      }
+    }
+  }
+
+  private static void close(Closeable closeable) {
+    if ( closeable == null ) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // nothing more we can do.
+    }
+  }
+}
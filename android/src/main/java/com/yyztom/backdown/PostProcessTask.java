@@ -0,0 +1,145 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Runs a PostProcessor over a finished download.
+ *
+ * The output is written next to where it belongs and renamed into place once it's
+ * complete, so a half unpacked download is never visible. Progress is the share of
+ * the input read so far. If there is an IntegrityCheck it is fed the input on the way past.
+ *
+ * Listener callbacks are made from the thread the task runs on.
+ */
+class PostProcessTask implements Runnable {
+  interface Listener {
+    void onProgress(long bytesRead, long total);
+    void onComplete(FileFinalizer.Result result);
+    void onFailure(String errorMsg);
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final PostProcessor mProcessor;
+  private final InputStream mSource;
+  private final long mTotal;
+  private final File mOutput;
+  private final IntegrityCheck mCheck;
+  private final Listener mListener;
+  private final long mProgressIntervalMs;
+
+  /**
+   * @param source - the downloaded bytes, closed once processed.
+   * @param total - how many bytes there are to read, or -1 if it isn't known.
+   * @param check - what the downloaded bytes should look like, or null.
+   */
+  PostProcessTask(PostProcessor processor, InputStream source, long total, File output,
+                  IntegrityCheck check, Listener listener, long progressIntervalMs) {
+    mProcessor = processor;
+    mSource = source;
+    mTotal = total;
+    mOutput = output;
+    mCheck = check;
+    mListener = listener;
+    mProgressIntervalMs = progressIntervalMs;
+  }
+
+  @Override
+  public void run() {
+    long start = SystemClock.elapsedRealtime();
+    File partial = new File(mOutput.getPath() + ".part");
+    ProgressInputStream in = new ProgressInputStream(mSource);
+    try {
+      delete(partial);
+      long written = mProcessor.process(in, partial);
+
+      // read whatever the processor didn't need, e.g. a zip's central directory,
+      // so the check sees all of it.
+      if ( mCheck != null ) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) >= 0) {
+          // just draining.
+        }
+      }
+      String sha256 = mCheck == null ? null : mCheck.verify(in.bytesRead);
+
+      delete(mOutput);
+      if ( !partial.renameTo(mOutput) ) {
+        throw new IOException("failed moving " + partial + " to " + mOutput);
+      }
+      mListener.onComplete(new FileFinalizer.Result(mOutput, written, SystemClock.elapsedRealtime() - start, sha256));
+    } catch (IOException e) {
+      delete(partial);
+      mListener.onFailure(e.getMessage());
+    } finally {
+      try {
+        mSource.close();
+      } catch (IOException e) {
+        // nothing more we can do.
+      }
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if ( children != null ) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Counts what the processor reads, reporting progress and feeding the check.
+   */
+  private class ProgressInputStream extends FilterInputStream {
+    long bytesRead;
+    private long mLastProgressAt;
+
+    ProgressInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if ( read > 0 ) {
+        bytesRead += read;
+        if ( mCheck != null ) {
+          mCheck.update(b, off, read);
+        }
+        long now = SystemClock.elapsedRealtime();
+        if ( now - mLastProgressAt >= mProgressIntervalMs ) {
+          mLastProgressAt = now;
+          mListener.onProgress(bytesRead, mTotal);
+        }
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // skipped bytes still need to be digested.
+      byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+      int read = read(buffer, 0, buffer.length);
+      return read < 0 ? 0 : read;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package com.yyztom.backdown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Turns a finished download into what the app actually wants, e.g. unpacks an archive.
+ *
+ * The input is read once, front to back, straight from the downloaded file.
+ * Processors are run on a background thread, see PostProcessTask.
+ */
+interface PostProcessor {
+  /**
+   * @param filename - what the download would have been saved as.
+   * @return what the output should be called.
+   */
+  String getOutputName(String filename);
+
+  /**
+   * @param in - the downloaded bytes, closed by the caller.
+   * @param output - where to write, a file or a directory is up to the processor.
+   * @return the number of bytes written.
+   */
+  long process(InputStream in, File output) throws IOException;
+}
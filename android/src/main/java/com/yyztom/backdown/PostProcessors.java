@@ -0,0 +1,136 @@
+package com.yyztom.backdown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The PostProcessors a request can ask for by name.
+ */
+final class PostProcessors {
+  static final String UNZIP = "unzip";
+  static final String GUNZIP = "gunzip";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final HashMap<String, PostProcessor> sProcessors = new HashMap<>();
+
+  static {
+    register(UNZIP, new Unzip());
+    register(GUNZIP, new Gunzip());
+  }
+
+  private PostProcessors() {
+  }
+
+  /**
+   * Makes a processor available to requests under name, replacing any already there.
+   */
+  static synchronized void register(String name, PostProcessor processor) {
+    sProcessors.put(name, processor);
+  }
+
+  /**
+   * @return the processor called name, or null if there isn't one.
+   */
+  static synchronized PostProcessor get(String name) {
+    return sProcessors.get(name);
+  }
+
+  /**
+   * Extracts a zip into the output directory.
+   */
+  static class Unzip implements PostProcessor {
+    @Override
+    public String getOutputName(String filename) {
+      return stripExtension(filename, ".zip");
+    }
+
+    @Override
+    public long process(InputStream in, File output) throws IOException {
+      if ( !output.isDirectory() && !output.mkdirs() ) {
+        throw new IOException("failed creating " + output);
+      }
+
+      String root = output.getCanonicalPath() + File.separator;
+      ZipInputStream zip = new ZipInputStream(in);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long written = 0;
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        File file = new File(output, entry.getName());
+        // entries like "../../x" mustn't escape the output directory.
+        if ( !file.getCanonicalPath().startsWith(root) ) {
+          throw new IOException("Bad zip entry: " + entry.getName());
+        }
+
+        if ( entry.isDirectory() ) {
+          if ( !file.isDirectory() && !file.mkdirs() ) {
+            throw new IOException("failed creating " + file);
+          }
+          continue;
+        }
+
+        File parent = file.getParentFile();
+        if ( !parent.isDirectory() && !parent.mkdirs() ) {
+          throw new IOException("failed creating " + parent);
+        }
+        written += copy(zip, file, buffer);
+      }
+      // the rest is the central directory, the caller reads it if it wants it.
+      return written;
+    }
+  }
+
+  /**
+   * Decompresses a gzip into the output file.
+   */
+  static class Gunzip implements PostProcessor {
+    @Override
+    public String getOutputName(String filename) {
+      if ( filename.endsWith(".tgz") ) {
+        return filename.substring(0, filename.length() - ".tgz".length()) + ".tar";
+      }
+      return stripExtension(filename, ".gz");
+    }
+
+    @Override
+    public long process(InputStream in, File output) throws IOException {
+      return copy(new GZIPInputStream(in, BUFFER_SIZE), output, new byte[BUFFER_SIZE]);
+    }
+  }
+
+  /**
+   * @return filename without extension, or with ".out" added if it doesn't have it.
+   */
+  private static String stripExtension(String filename, String extension) {
+    if ( filename.length() > extension.length() && filename.endsWith(extension) ) {
+      return filename.substring(0, filename.length() - extension.length());
+    }
+    return filename + ".out";
+  }
+
+  /**
+   * Writes everything left in src to dst, src is left open.
+   */
+  private static long copy(InputStream src, File dst, byte[] buffer) throws IOException {
+    OutputStream out = new FileOutputStream(dst);
+    long written = 0;
+    try {
+      int read;
+      while ((read = src.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+        written += read;
+      }
+    } finally {
+      out.close();
+    }
+    return written;
+  }
+}
@@ -0,0 +1,38 @@
+package com.yyztom.backdown;
+
+import android.annotation.TargetApi;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Reserves a file's blocks before it's written, so it isn't fragmented and
+ * running out of space shows up straight away.
+ *
+ * Kept apart because android.system doesn't exist before 21, only load it after checking.
+ */
+@TargetApi(21)
+final class Preallocation {
+  private Preallocation() {
+  }
+
+  /**
+   * @return true if the blocks are now taken, false if the filesystem can't preallocate.
+   * @throws IOException if there isn't room.
+   */
+  static boolean allocate(FileDescriptor fd, long length) throws IOException {
+    try {
+      Os.posix_fallocate(fd, 0, length);
+      return true;
+    } catch (ErrnoException e) {
+      if ( e.errno == OsConstants.ENOSPC ) {
+        throw new IOException("Not enough space for " + length + " bytes.");
+      }
+      // not supported, it's only an optimisation.
+      return false;
+    }
+  }
+}
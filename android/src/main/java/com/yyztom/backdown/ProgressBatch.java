@@ -0,0 +1,79 @@
+package com.yyztom.backdown;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static com.yyztom.backdown.BackdownPlugin.BYTES_PER_SECOND;
+import static com.yyztom.backdown.BackdownPlugin.DOWNLOAD_IDS;
+import static com.yyztom.backdown.BackdownPlugin.ETA_MS;
+import static com.yyztom.backdown.BackdownPlugin.PROGRESS;
+import static com.yyztom.backdown.BackdownPlugin.TOTAL;
+
+/**
+ * Collects the progress of several downloads so they can be sent to flutter
+ * as one message of parallel arrays, instead of one map per download.
+ */
+class ProgressBatch {
+  private final ArrayList<String> mDownloadIds = new ArrayList<>();
+  private long[] mProgress = new long[16];
+  private long[] mTotals = new long[16];
+  private long[] mBytesPerSecond = new long[16];
+  private long[] mEtaMs = new long[16];
+
+  void add(String downloadId, long progress, long total, long bytesPerSecond, long etaMs) {
+    int i = mDownloadIds.size();
+    if ( i == mProgress.length ) {
+      mProgress = Arrays.copyOf(mProgress, i * 2);
+      mTotals = Arrays.copyOf(mTotals, i * 2);
+      mBytesPerSecond = Arrays.copyOf(mBytesPerSecond, i * 2);
+      mEtaMs = Arrays.copyOf(mEtaMs, i * 2);
+    }
+    mDownloadIds.add(downloadId);
+    mProgress[i] = progress;
+    mTotals[i] = total;
+    mBytesPerSecond[i] = bytesPerSecond;
+    mEtaMs[i] = etaMs;
+  }
+
+  boolean isEmpty() {
+    return mDownloadIds.isEmpty();
+  }
+
+  ArrayList<String> getDownloadIds() {
+    return new ArrayList<>(mDownloadIds);
+  }
+
+  long[] getProgress() {
+    return Arrays.copyOf(mProgress, mDownloadIds.size());
+  }
+
+  long[] getTotals() {
+    return Arrays.copyOf(mTotals, mDownloadIds.size());
+  }
+
+  long[] getBytesPerSecond() {
+    return Arrays.copyOf(mBytesPerSecond, mDownloadIds.size());
+  }
+
+  long[] getEtaMs() {
+    return Arrays.copyOf(mEtaMs, mDownloadIds.size());
+  }
+
+  /**
+   * @return the arguments of a PROGRESS_BATCH_EVENT with everything added so far.
+   */
+  HashMap<String, Object> toArgs() {
+    HashMap<String, Object> args = new HashMap<>();
+    args.put(DOWNLOAD_IDS, getDownloadIds());
+    args.put(PROGRESS, getProgress());
+    args.put(TOTAL, getTotals());
+    args.put(BYTES_PER_SECOND, getBytesPerSecond());
+    args.put(ETA_MS, getEtaMs());
+    return args;
+  }
+
+  void clear() {
+    mDownloadIds.clear();
+  }
+}
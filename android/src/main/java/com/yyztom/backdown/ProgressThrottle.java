@@ -0,0 +1,71 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Drops progress updates flutter doesn't need, before they cross the channel.
+ *
+ * It remembers what was last sent for every download. An update is only let through
+ * when it differs from that by at least the request's thresholds, updates that say
+ * nothing new (a stalled download, a queued one at 0 bytes) are never sent twice.
+ * The first update, a change of total and reaching the total always go through.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class ProgressThrottle {
+  private static class Sent {
+    long progress;
+    long total;
+    long at;
+  }
+
+  private final HashMap<String, Sent> mSent = new HashMap<>();
+
+  /**
+   * @param pending - the download is waiting to start, rather than running.
+   * @return true if the update should be sent, it's then remembered as sent.
+   */
+  boolean shouldSend(DownloadRequest r, String downloadId, long progress, long total, boolean pending) {
+    if ( pending && r != null && !r.reportPending ) {
+      return false;
+    }
+
+    long now = SystemClock.elapsedRealtime();
+    Sent sent = mSent.get(downloadId);
+    if ( sent == null ) {
+      sent = new Sent();
+      mSent.put(downloadId, sent);
+    } else if ( sent.progress == progress && sent.total == total ) {
+      // nothing new.
+      return false;
+    } else if ( sent.total == total && progress != total && r != null && !isDue(r, sent, progress, total, now) ) {
+      return false;
+    }
+
+    sent.progress = progress;
+    sent.total = total;
+    sent.at = now;
+    return true;
+  }
+
+  /**
+   * The download has finished one way or another, the next update for it goes through.
+   */
+  void forget(String downloadId) {
+    mSent.remove(downloadId);
+  }
+
+  private static boolean isDue(DownloadRequest r, Sent sent, long progress, long total, long now) {
+    if ( now - sent.at < r.progressIntervalMs ) {
+      return false;
+    }
+
+    long delta = Math.abs(progress - sent.progress);
+    if ( delta < r.progressMinBytes ) {
+      return false;
+    }
+    return total <= 0 || delta * 100 >= r.progressMinPercent * total;
+  }
+}
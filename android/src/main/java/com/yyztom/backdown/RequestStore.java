@@ -0,0 +1,196 @@
+package com.yyztom.backdown;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps DownloadRequests, and how far the chunked engine got with them,
+ * in the database so they outlive the process.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class RequestStore {
+  private final BackdownDbHelper mDbHelper;
+
+  RequestStore(BackdownDbHelper dbHelper) {
+    mDbHelper = dbHelper;
+  }
+
+  void put(DownloadRequest r) {
+    ContentValues values = new ContentValues();
+    values.put(BackdownDbHelper.COLUMN_DOWNLOAD_ID, r.getDownloadId());
+    values.put(BackdownDbHelper.COLUMN_URI, r.uri.toString());
+    values.put(BackdownDbHelper.COLUMN_TITLE, r.title);
+    values.put(BackdownDbHelper.COLUMN_DESCRIPTION, r.description);
+    values.put(BackdownDbHelper.COLUMN_WIFI_ONLY, r.wifiOnly);
+    values.put(BackdownDbHelper.COLUMN_REQUIRES_CHARGING, r.requiresCharging);
+    values.put(BackdownDbHelper.COLUMN_REQUIRES_DEVICE_IDLE, r.requiresDeviceIdle);
+    values.put(BackdownDbHelper.COLUMN_SHOW_NOTIFICATION, r.showNotification);
+    values.put(BackdownDbHelper.COLUMN_ENGINE, r.engine);
+    values.put(BackdownDbHelper.COLUMN_CONNECTIONS, r.connections);
+    values.put(BackdownDbHelper.COLUMN_ENQUEUED, r.isEnqueued);
+    values.put(BackdownDbHelper.COLUMN_PRIORITY, r.priority);
+    values.put(BackdownDbHelper.COLUMN_SHA256, r.sha256);
+    values.put(BackdownDbHelper.COLUMN_SIZE, r.size);
+    values.put(BackdownDbHelper.COLUMN_POST_PROCESS, r.postProcess);
+    values.put(BackdownDbHelper.COLUMN_PROGRESS_INTERVAL, r.progressIntervalMs);
+    values.put(BackdownDbHelper.COLUMN_PROGRESS_MIN_BYTES, r.progressMinBytes);
+    values.put(BackdownDbHelper.COLUMN_PROGRESS_MIN_PERCENT, r.progressMinPercent);
+    values.put(BackdownDbHelper.COLUMN_REPORT_PENDING, r.reportPending);
+    values.put(BackdownDbHelper.COLUMN_MAX_BYTES_PER_SECOND, r.maxBytesPerSecond);
+    values.put(BackdownDbHelper.COLUMN_MIRRORS, joinMirrors(r.mirrors));
+    values.put(BackdownDbHelper.COLUMN_PATCH_URL, r.patchUrl);
+    values.put(BackdownDbHelper.COLUMN_BASE_PATH, r.basePath);
+    mDbHelper.getWritableDatabase().insertWithOnConflict(
+            BackdownDbHelper.TABLE_REQUESTS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  /**
+   * Forgets the request and anything saved about its progress.
+   */
+  void remove(String downloadId) {
+    String[] args = new String[] { downloadId };
+    SQLiteDatabase db = mDbHelper.getWritableDatabase();
+    db.delete(BackdownDbHelper.TABLE_REQUESTS, BackdownDbHelper.COLUMN_DOWNLOAD_ID + " = ?", args);
+    db.delete(BackdownDbHelper.TABLE_RESUME_STATE, BackdownDbHelper.COLUMN_DOWNLOAD_ID + " = ?", args);
+  }
+
+  void removeResumeState(String downloadId) {
+    mDbHelper.getWritableDatabase().delete(BackdownDbHelper.TABLE_RESUME_STATE,
+            BackdownDbHelper.COLUMN_DOWNLOAD_ID + " = ?", new String[] { downloadId });
+  }
+
+  /**
+   * @return every request that was saved and hasn't been removed.
+   */
+  ArrayList<DownloadRequest> getAll() {
+    ArrayList<DownloadRequest> requests = new ArrayList<>();
+    Cursor c = mDbHelper.getReadableDatabase().query(BackdownDbHelper.TABLE_REQUESTS,
+            null, null, null, null, null, null);
+    try {
+      while (c.moveToNext()) {
+        DownloadRequest r = new DownloadRequest(
+                c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_DOWNLOAD_ID)),
+                Uri.parse(c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_URI))),
+                c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_TITLE)),
+                c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_DESCRIPTION)),
+                getBoolean(c, BackdownDbHelper.COLUMN_WIFI_ONLY),
+                getBoolean(c, BackdownDbHelper.COLUMN_REQUIRES_CHARGING),
+                getBoolean(c, BackdownDbHelper.COLUMN_REQUIRES_DEVICE_IDLE),
+                getBoolean(c, BackdownDbHelper.COLUMN_SHOW_NOTIFICATION));
+        r.engine = c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_ENGINE));
+        r.connections = c.getInt(c.getColumnIndex(BackdownDbHelper.COLUMN_CONNECTIONS));
+        r.isEnqueued = getBoolean(c, BackdownDbHelper.COLUMN_ENQUEUED);
+        r.priority = c.getInt(c.getColumnIndex(BackdownDbHelper.COLUMN_PRIORITY));
+        r.sha256 = c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_SHA256));
+        r.size = c.getLong(c.getColumnIndex(BackdownDbHelper.COLUMN_SIZE));
+        r.postProcess = c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_POST_PROCESS));
+        r.progressIntervalMs = c.getLong(c.getColumnIndex(BackdownDbHelper.COLUMN_PROGRESS_INTERVAL));
+        r.progressMinBytes = c.getLong(c.getColumnIndex(BackdownDbHelper.COLUMN_PROGRESS_MIN_BYTES));
+        r.progressMinPercent = c.getInt(c.getColumnIndex(BackdownDbHelper.COLUMN_PROGRESS_MIN_PERCENT));
+        r.reportPending = getBoolean(c, BackdownDbHelper.COLUMN_REPORT_PENDING);
+        r.maxBytesPerSecond = c.getLong(c.getColumnIndex(BackdownDbHelper.COLUMN_MAX_BYTES_PER_SECOND));
+        r.mirrors = splitMirrors(c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_MIRRORS)));
+        r.patchUrl = c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_PATCH_URL));
+        r.basePath = c.getString(c.getColumnIndex(BackdownDbHelper.COLUMN_BASE_PATH));
+        requests.add(r);
+      }
+    } finally {
+      c.close();
+    }
+    return requests;
+  }
+
+  /**
+   * Saves how far the chunked engine has got, ranges are kept as "start:end:position;..."
+   */
+  void putResumeState(String downloadId, ChunkedDownloader.State state) {
+    StringBuilder ranges = new StringBuilder();
+    for (int i = 0; i < state.starts.length; i++) {
+      if ( i > 0 ) {
+        ranges.append(';');
+      }
+      ranges.append(state.starts[i]).append(':').append(state.ends[i]).append(':').append(state.positions[i]);
+    }
+
+    ContentValues values = new ContentValues();
+    values.put(BackdownDbHelper.COLUMN_DOWNLOAD_ID, downloadId);
+    values.put(BackdownDbHelper.COLUMN_VALIDATOR, state.validator);
+    values.put(BackdownDbHelper.COLUMN_TOTAL, state.total);
+    values.put(BackdownDbHelper.COLUMN_RANGES, ranges.toString());
+    mDbHelper.getWritableDatabase().insertWithOnConflict(
+            BackdownDbHelper.TABLE_RESUME_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  /**
+   * @return the saved state, or null if there isn't any usable.
+   */
+  ChunkedDownloader.State getResumeState(String downloadId) {
+    Cursor c = mDbHelper.getReadableDatabase().query(BackdownDbHelper.TABLE_RESUME_STATE,
+            new String[] { BackdownDbHelper.COLUMN_VALIDATOR, BackdownDbHelper.COLUMN_TOTAL, BackdownDbHelper.COLUMN_RANGES },
+            BackdownDbHelper.COLUMN_DOWNLOAD_ID + " = ?", new String[] { downloadId }, null, null, null);
+    try {
+      if ( !c.moveToFirst() ) {
+        return null;
+      }
+
+      String[] ranges = c.getString(2).split(";");
+      long[] starts = new long[ranges.length];
+      long[] ends = new long[ranges.length];
+      long[] positions = new long[ranges.length];
+      for (int i = 0; i < ranges.length; i++) {
+        String[] parts = ranges[i].split(":");
+        if ( parts.length != 3 ) {
+          return null;
+        }
+        starts[i] = Long.parseLong(parts[0]);
+        ends[i] = Long.parseLong(parts[1]);
+        positions[i] = Long.parseLong(parts[2]);
+      }
+      return new ChunkedDownloader.State(c.getString(0), c.getLong(1), starts, ends, positions);
+    } catch (NumberFormatException e) {
+      return null;
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * @return the mirrors one per line, or null if there aren't any.
+   */
+  private static String joinMirrors(List<Uri> mirrors) {
+    if ( mirrors.isEmpty() ) {
+      return null;
+    }
+    StringBuilder joined = new StringBuilder();
+    for (Uri mirror : mirrors) {
+      if ( joined.length() > 0 ) {
+        joined.append('\n');
+      }
+      joined.append(mirror.toString());
+    }
+    return joined.toString();
+  }
+
+  private static ArrayList<Uri> splitMirrors(String joined) {
+    ArrayList<Uri> mirrors = new ArrayList<>();
+    if ( joined == null ) {
+      return mirrors;
+    }
+    for (String mirror : joined.split("\n")) {
+      if ( !mirror.isEmpty() ) {
+        mirrors.add(Uri.parse(mirror));
+      }
+    }
+    return mirrors;
+  }
+
+  private static boolean getBoolean(Cursor c, String column) {
+    return c.getInt(c.getColumnIndex(column)) != 0;
+  }
+}
@@ -0,0 +1,136 @@
+package com.yyztom.backdown;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps track of the space running downloads are going to need, so one that won't
+ * fit is turned away before it starts, not once most of it has arrived.
+ *
+ * Every admitted download reserves what it needs up front, less whatever of it is
+ * already on disk: as its bytes land, or its file is preallocated, they come out of
+ * the free space instead. A new one is admitted if it fits in what's free less
+ * everything still to come. If it would fit once the others are done it's deferred,
+ * if it wouldn't fit even then it's rejected.
+ *
+ * Reservations are counted against whatever filesystem is asked about, so with
+ * downloads going to more than one this errs on the side of caution.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class StorageAdmission {
+  static final int ADMIT = 0;
+  static final int DEFER = 1;
+  static final int REJECT = 2;
+
+  // left free for the app and the system.
+  private static final long MARGIN_BYTES = 32 * 1024 * 1024;
+  private static final int PREFLIGHT_TIMEOUT_MS = 10000;
+
+  private static class Reservation {
+    final long bytes;
+    // how much of it is already on disk, and so counted by getUsableSpace().
+    long written;
+
+    Reservation(long bytes) {
+      this.bytes = bytes;
+    }
+  }
+
+  private final HashMap<String, Reservation> mReserved = new HashMap<>();
+
+  /**
+   * @param dir - where the download will be written, it needn't exist yet.
+   * @param bytes - how much it needs.
+   * @return ADMIT, DEFER or REJECT.
+   */
+  int check(File dir, long bytes) {
+    long usable = getUsableSpace(dir) - MARGIN_BYTES;
+    if ( bytes > usable ) {
+      // the others finishing would only make it worse.
+      return REJECT;
+    }
+    return bytes > usable - getReserved() ? DEFER : ADMIT;
+  }
+
+  void reserve(String downloadId, long bytes) {
+    mReserved.put(downloadId, new Reservation(bytes));
+  }
+
+  /**
+   * @param bytes - how much of the download is on disk now, its whole size once preallocated.
+   */
+  void onWritten(String downloadId, long bytes) {
+    Reservation reservation = mReserved.get(downloadId);
+    if ( reservation != null ) {
+      // progress after a preallocation doesn't give the space back.
+      reservation.written = Math.max(reservation.written, bytes);
+    }
+  }
+
+  /**
+   * Drops the reservations of downloads that are no longer running.
+   */
+  void releaseFinished(DownloadScheduler scheduler) {
+    Iterator<Map.Entry<String, Reservation>> it = mReserved.entrySet().iterator();
+    while (it.hasNext()) {
+      if ( !scheduler.isRunning(it.next().getKey()) ) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return what the admitted downloads have still to write.
+   */
+  long getReserved() {
+    long reserved = 0;
+    for (Reservation reservation : mReserved.values()) {
+      reserved += Math.max(0, reservation.bytes - reservation.written);
+    }
+    return reserved;
+  }
+
+  /**
+   * @return free space on the filesystem dir is on, or would be on once it's created.
+   */
+  static long getUsableSpace(File dir) {
+    File existing = dir;
+    while (existing != null && !existing.exists()) {
+      existing = existing.getParentFile();
+    }
+    return existing == null ? 0 : existing.getUsableSpace();
+  }
+
+  /**
+   * Asks the server how big the file is, makes a network request so keep it off the worker thread.
+   * @return the size, or -1 if the server won't say.
+   */
+  static long preflight(URL url) {
+    HttpURLConnection conn = null;
+    try {
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("HEAD");
+      conn.setConnectTimeout(PREFLIGHT_TIMEOUT_MS);
+      conn.setReadTimeout(PREFLIGHT_TIMEOUT_MS);
+      // a gzipped length is no use to us.
+      conn.setRequestProperty("Accept-Encoding", "identity");
+      if ( conn.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+        return -1;
+      }
+      String length = conn.getHeaderField("Content-Length");
+      return length == null ? -1 : Long.parseLong(length.trim());
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    } finally {
+      if ( conn != null ) {
+        conn.disconnect();
+      }
+    }
+  }
+}
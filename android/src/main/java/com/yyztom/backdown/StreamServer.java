@@ -0,0 +1,366 @@
+package com.yyztom.backdown;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves downloads over http on 127.0.0.1 while they are still downloading, so
+ * e.g. a media player can start on the first bytes instead of waiting for the lot.
+ *
+ * Urls look like http://127.0.0.1:port/token/downloadId. Any app on the device can
+ * connect to the port, the random token keeps them out. Range requests are supported,
+ * a read blocks until the bytes it wants have arrived. It's up to the source to
+ * hurry along whatever part of the file a reader is waiting on.
+ *
+ * One request per connection, which is all players need. Connections are handled
+ * on the executor, sources can be registered from any thread. A download that has
+ * finished is swapped for a FileSource, so the downloader itself can be let go.
+ */
+class StreamServer {
+  private static final String TAG = "BackdownStream";
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_HEADER_BYTES = 8 * 1024;
+  // how long a reader waits for a download that hasn't started, or has stalled.
+  private static final long WAIT_MS = 30000;
+  private static final long POLL_MS = 100;
+
+  /**
+   * Something that can be streamed, it may still be arriving.
+   */
+  interface Source {
+    /**
+     * @return where the bytes are written.
+     */
+    File getFile();
+
+    /**
+     * Blocks until the byte at position has arrived.
+     * @return how many bytes from position can be read, 0 if timeoutMs passed first,
+     * or -1 if position is past the end.
+     * @throws IOException if the bytes will never arrive, e.g. the download failed.
+     */
+    long await(long position, long timeoutMs) throws IOException, InterruptedException;
+
+    /**
+     * @return the size, or -1 if it isn't known yet.
+     */
+    long getTotal();
+  }
+
+  /**
+   * A download that has finished.
+   */
+  static class FileSource implements Source {
+    private final File mFile;
+
+    FileSource(File file) {
+      mFile = file;
+    }
+
+    @Override
+    public File getFile() {
+      return mFile;
+    }
+
+    @Override
+    public long await(long position, long timeoutMs) {
+      long length = mFile.length();
+      return position >= length ? -1 : length - position;
+    }
+
+    @Override
+    public long getTotal() {
+      return mFile.length();
+    }
+  }
+
+  private final ExecutorService mExecutor;
+  private final ConcurrentHashMap<String, Source> mSources = new ConcurrentHashMap<>();
+  private final String mToken;
+  private ServerSocket mServerSocket;
+  private volatile boolean isStopped;
+
+  StreamServer(ExecutorService executor) {
+    mExecutor = executor;
+    byte[] token = new byte[16];
+    new SecureRandom().nextBytes(token);
+    mToken = Hex.encode(token);
+  }
+
+  /**
+   * Starts listening on a free port.
+   */
+  void start() throws IOException {
+    mServerSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        acceptAll();
+      }
+    });
+  }
+
+  void stop() {
+    isStopped = true;
+    try {
+      mServerSocket.close();
+    } catch (IOException e) {
+      // nothing more we can do.
+    }
+    mSources.clear();
+  }
+
+  String getUrl(String downloadId) {
+    return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + mToken + "/" + downloadId;
+  }
+
+  void register(String downloadId, Source source) {
+    mSources.put(downloadId, source);
+  }
+
+  void unregister(String downloadId) {
+    mSources.remove(downloadId);
+  }
+
+  private void acceptAll() {
+    while (!isStopped) {
+      try {
+        final Socket socket = mServerSocket.accept();
+        mExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        });
+      } catch (SocketException e) {
+        // closed by stop().
+        return;
+      } catch (IOException e) {
+        Log.e(TAG, e.toString());
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    Source source;
+    RandomAccessFile file = null;
+    try {
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+      String[] request = readRequest(socket.getInputStream());
+      if ( request == null ) {
+        respond(out, "400 Bad Request");
+        return;
+      }
+
+      String method = request[0];
+      String path = request[1];
+      String prefix = "/" + mToken + "/";
+      if ( !"GET".equals(method) && !"HEAD".equals(method) ) {
+        respond(out, "405 Method Not Allowed");
+        return;
+      }
+      if ( !path.startsWith(prefix) || (source = waitForSource(path.substring(prefix.length()))) == null ) {
+        respond(out, "404 Not Found");
+        return;
+      }
+
+      // the first byte tells us the download has started, and likely the total.
+      if ( source.await(0, WAIT_MS) == 0 ) {
+        respond(out, "404 Not Found");
+        return;
+      }
+      long total = source.getTotal();
+      long start = 0;
+      long end = total - 1;
+      String range = request[2];
+      boolean partial = range != null && total > 0;
+      if ( partial ) {
+        long[] parsed = parseRange(range, total);
+        if ( parsed == null ) {
+          out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + total
+                  + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII));
+          out.flush();
+          return;
+        }
+        start = parsed[0];
+        end = parsed[1];
+      }
+
+      String name = source.getFile().getName();
+      if ( name.endsWith(".part") ) {
+        name = name.substring(0, name.length() - ".part".length());
+      }
+      String contentType = URLConnection.guessContentTypeFromName(name);
+      StringBuilder headers = new StringBuilder();
+      headers.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+      headers.append("Content-Type: ").append(contentType == null ? "application/octet-stream" : contentType).append("\r\n");
+      headers.append("Accept-Ranges: bytes\r\n");
+      if ( total >= 0 ) {
+        headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+      }
+      if ( partial ) {
+        headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(total).append("\r\n");
+      }
+      headers.append("Connection: close\r\n\r\n");
+      out.write(headers.toString().getBytes(ASCII));
+      if ( "HEAD".equals(method) ) {
+        out.flush();
+        return;
+      }
+
+      // open once, the part file may be renamed into place while we read.
+      file = new RandomAccessFile(source.getFile(), "r");
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long position = start;
+      while (total < 0 || position <= end) {
+        long available = source.await(position, WAIT_MS);
+        if ( available < 0 ) {
+          break;
+        } else if ( available == 0 ) {
+          throw new IOException("Download stalled.");
+        }
+
+        int length = (int) Math.min(buffer.length, total < 0 ? available : Math.min(available, end - position + 1));
+        file.seek(position);
+        file.readFully(buffer, 0, length);
+        out.write(buffer, 0, length);
+        position += length;
+      }
+      out.flush();
+    } catch (IOException e) {
+      // the reader went away, or the download did.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      closeQuietly(file);
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Waits for a download that has been asked for but hasn't started yet.
+   */
+  private Source waitForSource(String downloadId) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + WAIT_MS;
+    Source source = mSources.get(downloadId);
+    while (source == null && !isStopped && System.currentTimeMillis() < deadline) {
+      Thread.sleep(POLL_MS);
+      source = mSources.get(downloadId);
+    }
+    return source;
+  }
+
+  /**
+   * @return method, path and the Range header (or null), or null if it isn't http.
+   */
+  private static String[] readRequest(InputStream in) throws IOException {
+    StringBuilder head = new StringBuilder();
+    int c;
+    while ((c = in.read()) >= 0) {
+      head.append((char) c);
+      if ( head.length() > MAX_HEADER_BYTES ) {
+        return null;
+      }
+      int length = head.length();
+      if ( length >= 4 && head.charAt(length - 1) == '\n' && head.charAt(length - 3) == '\n' ) {
+        break;
+      }
+    }
+
+    String[] lines = head.toString().split("\r\n");
+    String[] requestLine = lines[0].split(" ");
+    if ( requestLine.length < 2 ) {
+      return null;
+    }
+    String range = null;
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if ( colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Range") ) {
+        range = lines[i].substring(colon + 1).trim();
+      }
+    }
+    return new String[] { requestLine[0], requestLine[1], range };
+  }
+
+  /**
+   * @param range - e.g. "bytes=100-", "bytes=100-199" or "bytes=-100". Only the first range is served.
+   * @return first and last byte, or null if it can't be satisfied.
+   */
+  static long[] parseRange(String range, long total) {
+    String spec = range.toLowerCase(Locale.US);
+    if ( !spec.startsWith("bytes=") ) {
+      return null;
+    }
+    spec = spec.substring("bytes=".length());
+    int comma = spec.indexOf(',');
+    if ( comma >= 0 ) {
+      spec = spec.substring(0, comma);
+    }
+    int dash = spec.indexOf('-');
+    if ( dash < 0 ) {
+      return null;
+    }
+
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      long start;
+      long end;
+      if ( first.isEmpty() ) {
+        // the last n bytes.
+        start = Math.max(0, total - Long.parseLong(last));
+        end = total - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? total - 1 : Math.min(total - 1, Long.parseLong(last));
+      }
+      return start > end || start >= total ? null : new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static void respond(OutputStream out, String status) throws IOException {
+    out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII));
+    out.flush();
+  }
+
+  // Socket isn't Closeable before 19.
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // nothing more we can do.
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if ( closeable == null ) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // nothing more we can do.
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits how fast bytes are read, shared by every thread reading against it.
+ *
+ * Tokens build up at the rate, up to a second's worth, and each byte read spends
+ * one. A reader that runs out waits for more. The rate can be changed at any time,
+ * waiting readers pick it up within MAX_WAIT_MS.
+ */
+class TokenBucket {
+  static final long UNLIMITED = 0;
+
+  private static final long MAX_WAIT_MS = 100;
+
+  private long mRate;
+  private double mTokens;
+  private long mRefilledAt;
+
+  TokenBucket(long bytesPerSecond) {
+    setRate(bytesPerSecond);
+  }
+
+  synchronized void setRate(long bytesPerSecond) {
+    mRate = Math.max(UNLIMITED, bytesPerSecond);
+    mRefilledAt = SystemClock.elapsedRealtime();
+    mTokens = Math.min(mTokens, mRate);
+  }
+
+  synchronized long getRate() {
+    return mRate;
+  }
+
+  /**
+   * Waits until bytes can be spent. Reads bigger than the bucket are let through
+   * once it's full, and paid back before anyone else gets to read.
+   */
+  void acquire(long bytes) throws InterruptedIOException {
+    while (true) {
+      long waitMs;
+      synchronized (this) {
+        if ( mRate == UNLIMITED ) {
+          return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        mTokens = Math.min(mRate, mTokens + (now - mRefilledAt) * mRate / 1000.0);
+        mRefilledAt = now;
+        if ( mTokens >= Math.min(bytes, mRate) ) {
+          mTokens -= bytes;
+          return;
+        }
+        waitMs = (long) Math.ceil((Math.min(bytes, mRate) - mTokens) * 1000 / mRate);
+      }
+
+      try {
+        Thread.sleep(Math.max(1, Math.min(MAX_WAIT_MS, waitMs)));
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("interrupted while throttled");
+      }
+    }
+  }
+}
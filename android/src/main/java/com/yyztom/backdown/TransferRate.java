@@ -0,0 +1,106 @@
+package com.yyztom.backdown;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Works out how fast each download is going, and so when it will finish.
+ *
+ * Every download keeps a ring of its last few progress samples. The rate is
+ * measured across the whole window, so one slow or fast tick doesn't swing it.
+ * Samples older than WINDOW_MS are left out.
+ *
+ * Not thread safe, only use it from the plugin's worker thread.
+ */
+class TransferRate {
+  static final long UNKNOWN = -1;
+
+  private static final int SAMPLES = 8;
+  private static final long WINDOW_MS = 10000;
+
+  private static class Window {
+    final long[] times = new long[SAMPLES];
+    final long[] bytes = new long[SAMPLES];
+    // the next slot to write, and how many are filled.
+    int next;
+    int count;
+  }
+
+  private final HashMap<String, Window> mWindows = new HashMap<>();
+
+  void add(String downloadId, long bytesSoFar) {
+    Window window = mWindows.get(downloadId);
+    if ( window == null ) {
+      window = new Window();
+      mWindows.put(downloadId, window);
+    }
+
+    long now = SystemClock.elapsedRealtime();
+    int last = (window.next + SAMPLES - 1) % SAMPLES;
+    if ( window.count > 0 && bytesSoFar < window.bytes[last] ) {
+      // it went backwards, i.e. started again. what we had is no use.
+      window.count = 0;
+    }
+    window.times[window.next] = now;
+    window.bytes[window.next] = bytesSoFar;
+    window.next = (window.next + 1) % SAMPLES;
+    window.count = Math.min(SAMPLES, window.count + 1);
+  }
+
+  /**
+   * @return bytes per second over the window, or UNKNOWN until there are enough samples.
+   */
+  long getBytesPerSecond(String downloadId) {
+    Window window = mWindows.get(downloadId);
+    if ( window == null || window.count < 2 ) {
+      return UNKNOWN;
+    }
+
+    int newest = (window.next + SAMPLES - 1) % SAMPLES;
+    int oldest = (window.next + SAMPLES - window.count) % SAMPLES;
+    // walk forward past anything that has dropped out of the window.
+    while (oldest != newest && window.times[newest] - window.times[oldest] > WINDOW_MS) {
+      oldest = (oldest + 1) % SAMPLES;
+    }
+
+    long elapsed = window.times[newest] - window.times[oldest];
+    if ( elapsed <= 0 ) {
+      return UNKNOWN;
+    }
+    return (window.bytes[newest] - window.bytes[oldest]) * 1000 / elapsed;
+  }
+
+  /**
+   * @return how long until total is reached, or UNKNOWN.
+   */
+  long getEtaMs(String downloadId, long bytesSoFar, long total) {
+    long rate = getBytesPerSecond(downloadId);
+    if ( rate <= 0 || total <= 0 ) {
+      return UNKNOWN;
+    }
+    return Math.max(0, total - bytesSoFar) * 1000 / rate;
+  }
+
+  /**
+   * @return the combined rate of every download that has moved in the last WINDOW_MS.
+   */
+  long getTotalBytesPerSecond() {
+    long now = SystemClock.elapsedRealtime();
+    long total = 0;
+    for (HashMap.Entry<String, Window> entry : mWindows.entrySet()) {
+      Window window = entry.getValue();
+      int newest = (window.next + SAMPLES - 1) % SAMPLES;
+      if ( window.count == 0 || now - window.times[newest] > WINDOW_MS ) {
+        // stalled or gone quiet, it isn't using any bandwidth.
+        continue;
+      }
+      total += Math.max(0, getBytesPerSecond(entry.getKey()));
+    }
+    return total;
+  }
+
+  void forget(String downloadId) {
+    mWindows.remove(downloadId);
+  }
+}
@@ -0,0 +1,115 @@
+package com.yyztom.backdown;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cutting back when throughput drops, and recovering under our own cap.
+ */
+public class AdaptivePolicyTest {
+  private static final long UNLIMITED = AdaptivePolicy.UNLIMITED;
+  private static final int RUNNING = 4;
+
+  private AdaptivePolicy mPolicy;
+
+  @Before
+  public void setUp() {
+    mPolicy = new AdaptivePolicy();
+    mPolicy.setEnabled(true);
+    // what we normally get.
+    assertFalse(update(1000, 5));
+  }
+
+  @Test
+  public void steadyThroughputChangesNothing() {
+    assertFalse(update(950, 10));
+    assertEquals(UNLIMITED, mPolicy.getRate(UNLIMITED));
+    assertEquals(UNLIMITED, mPolicy.getMaxConcurrent((int) UNLIMITED));
+  }
+
+  @Test
+  public void cutsBackAfterSlowSamples() {
+    assertFalse(update(300, 2));
+    assertTrue(update(300, 1));
+
+    assertEquals(RUNNING - 1, mPolicy.getMaxConcurrent((int) UNLIMITED));
+    assertEquals(225, mPolicy.getRate(UNLIMITED));
+    // the app's own limit still wins when it's lower.
+    assertEquals(100, mPolicy.getRate(100));
+  }
+
+  @Test
+  public void runningAtTheCapIsntSlow() {
+    cut();
+    // the cap is all it can get, that mustn't cut it again.
+    assertFalse(update(225, 4));
+    assertEquals(RUNNING - 1, mPolicy.getMaxConcurrent((int) UNLIMITED));
+    assertEquals(225, mPolicy.getRate(UNLIMITED));
+  }
+
+  @Test
+  public void reachingTheCapRecovers() {
+    cut();
+    assertFalse(update(225, 4));
+    assertTrue(update(225, 1));
+    assertEquals(UNLIMITED, mPolicy.getRate(UNLIMITED));
+    assertEquals(RUNNING, mPolicy.getMaxConcurrent((int) UNLIMITED));
+
+    // the last slot comes back once it keeps up.
+    assertFalse(update(1000, 4));
+    assertTrue(update(1000, 1));
+    assertEquals(UNLIMITED, mPolicy.getMaxConcurrent((int) UNLIMITED));
+  }
+
+  @Test
+  public void wellBelowTheCapCutsAgain() {
+    cut();
+    assertFalse(update(100, 2));
+    assertTrue(update(100, 1));
+    assertEquals(RUNNING - 2, mPolicy.getMaxConcurrent((int) UNLIMITED));
+    assertEquals(75, mPolicy.getRate(UNLIMITED));
+  }
+
+  @Test
+  public void meteredLimitsApplyOnTop() {
+    mPolicy.setMeteredLimits(500, 2);
+    assertTrue(mPolicy.update(true, 1000, RUNNING));
+    assertEquals(500, mPolicy.getRate(UNLIMITED));
+    assertEquals(2, mPolicy.getMaxConcurrent((int) UNLIMITED));
+
+    assertTrue(mPolicy.update(false, 1000, RUNNING));
+    assertEquals(UNLIMITED, mPolicy.getRate(UNLIMITED));
+  }
+
+  @Test
+  public void disabledUsesWhatWasConfigured() {
+    cut();
+    mPolicy.setEnabled(false);
+    assertFalse(update(10, 5));
+    assertEquals(UNLIMITED, mPolicy.getRate(UNLIMITED));
+    assertEquals(3, mPolicy.getMaxConcurrent(3));
+  }
+
+  /**
+   * Drops to 300 until a download slot is taken away and the rate capped at 225.
+   */
+  private void cut() {
+    assertTrue(update(300, 3));
+    assertEquals(225, mPolicy.getRate(UNLIMITED));
+  }
+
+  /**
+   * @return true if any of the samples changed the limits.
+   */
+  private boolean update(long bytesPerSecond, int samples) {
+    boolean changed = false;
+    for (int i = 0; i < samples; i++) {
+      changed |= mPolicy.update(false, bytesPerSecond, RUNNING);
+    }
+    return changed;
+  }
+}
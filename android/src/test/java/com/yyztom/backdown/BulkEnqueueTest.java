@@ -0,0 +1,122 @@
+package com.yyztom.backdown;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Enqueueing 1, 100 and 1000 downloads with createDownloads and enqueueDownloads
+ * takes two method calls, against a createDownload and an enqueueDownload for
+ * each one. EnqueueCallsBenchmark times the two.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27, shadows = FakeDownloadManager.class)
+public class BulkEnqueueTest {
+  private static final int[] COUNTS = { 1, 100, 1000 };
+
+  private PluginHarness mHarness;
+  private int mRound;
+
+  @Before
+  public void setUp() {
+    FakeDownloadManager.clear();
+    mHarness = PluginHarness.register();
+  }
+
+  @After
+  public void tearDown() {
+    mHarness.destroy();
+  }
+
+  @Test
+  public void oneByOneTakesTwoCallsEach() {
+    for (int count : COUNTS) {
+      assertEquals(2 * count, enqueueOneByOne(count));
+    }
+  }
+
+  @Test
+  public void batchedTakesTwoCalls() {
+    for (int count : COUNTS) {
+      assertEquals(2, enqueueBatched(count));
+    }
+  }
+
+  /**
+   * @return how many method calls it took.
+   */
+  private int enqueueOneByOne(int count) {
+    List<String> urls = urls(count);
+    List<PluginHarness.Reply> created = new ArrayList<>();
+    for (String url : urls) {
+      created.add(call("createDownload", PluginHarness.createArgs(url)));
+    }
+    mHarness.runWorker(0);
+
+    List<PluginHarness.Reply> enqueued = new ArrayList<>();
+    for (PluginHarness.Reply reply : created) {
+      HashMap<String, Object> args = new HashMap<>();
+      args.put("DOWNLOAD_ID", reply.value);
+      enqueued.add(call("enqueueDownload", args));
+    }
+    mHarness.runWorker(0);
+
+    for (PluginHarness.Reply reply : enqueued) {
+      assertEquals(true, ((Map<?, ?>) reply.value).get("SUCCESS"));
+    }
+    return created.size() + enqueued.size();
+  }
+
+  /**
+   * @return how many method calls it took.
+   */
+  private int enqueueBatched(int count) {
+    List<HashMap<String, Object>> requests = new ArrayList<>();
+    for (String url : urls(count)) {
+      requests.add(PluginHarness.createArgs(url));
+    }
+    HashMap<String, Object> args = new HashMap<>();
+    args.put("REQUESTS", requests);
+    PluginHarness.Reply created = call("createDownloads", args);
+    mHarness.runWorker(0);
+
+    args = new HashMap<>();
+    args.put("DOWNLOAD_IDS", ((Map<?, ?>) created.value).get("DOWNLOAD_IDS"));
+    PluginHarness.Reply enqueued = call("enqueueDownloads", args);
+    mHarness.runWorker(0);
+
+    List<?> results = (List<?>) ((Map<?, ?>) enqueued.value).get("RESULTS");
+    assertEquals(count, results.size());
+    assertFalse(results.contains(false));
+    return 2;
+  }
+
+  private PluginHarness.Reply call(String method, Object arguments) {
+    PluginHarness.Reply reply = new PluginHarness.Reply();
+    mHarness.call(method, arguments, reply);
+    return reply;
+  }
+
+  /**
+   * @return count urls that haven't been used before.
+   */
+  private List<String> urls(int count) {
+    mRound++;
+    List<String> urls = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      urls.add("https://cdn.example.com/pack-" + mRound + "/file-" + i + ".bin");
+    }
+    return urls;
+  }
+}
@@ -0,0 +1,207 @@
+package com.yyztom.backdown;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads from a local server that serves ranges.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class ChunkedDownloaderTest {
+  private static final int SIZE = 5 * 1024 * 1024 + 123;
+
+  private RangeServer mServer;
+  private ExecutorService mExecutor;
+  private File mDestination;
+  private byte[] mBody;
+
+  /**
+   * Waits for the download to finish, one way or the other.
+   */
+  static class Result implements ChunkedDownloader.Listener {
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile FileFinalizer.Result finalized;
+    volatile String errorMsg;
+    volatile long allocated = -1;
+
+    @Override
+    public void onProgress(ChunkedDownloader downloader, long bytesSoFar, long total) {
+    }
+
+    @Override
+    public void onAllocated(ChunkedDownloader downloader, long total) {
+      allocated = total;
+    }
+
+    @Override
+    public void onComplete(ChunkedDownloader downloader, FileFinalizer.Result finalized) {
+      this.finalized = finalized;
+      done.countDown();
+    }
+
+    @Override
+    public void onFailure(ChunkedDownloader downloader, String errorMsg) {
+      this.errorMsg = errorMsg;
+      done.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue("timed out", done.await(30, TimeUnit.SECONDS));
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = new RangeServer();
+    mExecutor = Executors.newCachedThreadPool();
+    mDestination = new File(RuntimeEnvironment.application.getFilesDir(), "chunked/file.bin");
+    mDestination.getParentFile().mkdirs();
+    mBody = new byte[SIZE];
+    new Random(42).nextBytes(mBody);
+  }
+
+  @After
+  public void tearDown() {
+    mExecutor.shutdownNow();
+    mServer.stop();
+  }
+
+  @Test
+  public void downloadsRangesInParallel() throws Exception {
+    Result result = download(mServer.put("/file.bin", mBody), 4, null);
+
+    assertNull(result.errorMsg);
+    assertArrayEquals(mBody, readFile(result.finalized.file));
+    assertFalse(new File(mDestination.getPath() + ".part").exists());
+    // the first request learns the size and carries on as the first range.
+    assertEquals("bytes=0-", mServer.getRanges().get(0));
+    assertEquals(4, new HashSet<>(mServer.getRanges()).size());
+    assertEquals(SIZE, result.allocated);
+  }
+
+  @Test
+  public void streamsWhenRangesAreIgnored() throws Exception {
+    mServer.setRangeSupported(false);
+    Result result = download(mServer.put("/file.bin", mBody), 4, null);
+
+    assertNull(result.errorMsg);
+    assertArrayEquals(mBody, readFile(result.finalized.file));
+    assertEquals(1, mServer.getRanges().size());
+  }
+
+  @Test
+  public void resumesWhereItLeftOff() throws Exception {
+    URL url = mServer.put("/file.bin", mBody);
+    // two ranges, each half done.
+    int half = SIZE / 2;
+    long[] starts = { 0, half };
+    long[] ends = { half - 1, SIZE - 1 };
+    long[] positions = { half / 2, half + half / 2 };
+    RandomAccessFile part = new RandomAccessFile(mDestination.getPath() + ".part", "rw");
+    try {
+      part.setLength(SIZE);
+      part.write(mBody, 0, (int) positions[0]);
+      part.seek(half);
+      part.write(mBody, half, (int) (positions[1] - half));
+    } finally {
+      part.close();
+    }
+
+    Result result = new Result();
+    ChunkedDownloader downloader = create(url, 4, result);
+    downloader.setResumeState(new ChunkedDownloader.State("\"v1\"", SIZE, starts, ends, positions));
+    start(downloader, result);
+
+    assertNull(result.errorMsg);
+    assertArrayEquals(mBody, readFile(result.finalized.file));
+    // only what was missing.
+    assertEquals(SIZE - (positions[0] - starts[0]) - (positions[1] - starts[1]), mServer.getBytesServed());
+  }
+
+  @Test
+  public void throttledToItsLimit() throws Exception {
+    byte[] body = new byte[512 * 1024];
+    Result result = new Result();
+    ChunkedDownloader downloader = create(mServer.put("/small.bin", body), 4, result);
+    downloader.setMaxBytesPerSecond(256 * 1024);
+
+    // the limit is measured with SystemClock.
+    WallClock clock = new WallClock();
+    clock.start();
+    long start = System.nanoTime();
+    try {
+      start(downloader, result);
+    } finally {
+      clock.stop();
+    }
+    long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+    assertNull(result.errorMsg);
+    assertArrayEquals(body, readFile(result.finalized.file));
+    assertTrue(elapsedMs + "ms", elapsedMs >= 1800);
+  }
+
+  @Test
+  public void mismatchedFileIsThrownAway() throws Exception {
+    String wrong = Hex.encode(new byte[32]);
+    Result result = download(mServer.put("/file.bin", mBody), 4, IntegrityCheck.create(wrong, SIZE));
+
+    assertNotNull(result.errorMsg);
+    assertFalse(mDestination.exists());
+    assertFalse(new File(mDestination.getPath() + ".part").exists());
+  }
+
+  private Result download(URL url, int connections, IntegrityCheck check) throws InterruptedException {
+    Result result = new Result();
+    ChunkedDownloader downloader = create(url, connections, result);
+    downloader.setIntegrityCheck(check);
+    start(downloader, result);
+    return result;
+  }
+
+  private ChunkedDownloader create(URL url, int connections, Result result) {
+    return new ChunkedDownloader("id", Collections.singletonList(url), mDestination, connections,
+            mExecutor, result, 100);
+  }
+
+  private static void start(ChunkedDownloader downloader, Result result) throws InterruptedException {
+    downloader.start();
+    result.await();
+  }
+
+  static byte[] readFile(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    return bytes;
+  }
+}
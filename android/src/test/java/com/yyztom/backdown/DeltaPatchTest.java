@@ -0,0 +1,213 @@
+package com.yyztom.backdown;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Rebuilding files from a base and a patch.
+ */
+public class DeltaPatchTest {
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private byte[] mBase;
+  private RandomAccessFile mBaseFile;
+
+  /**
+   * Writes a patch the way the server would.
+   */
+  private static class PatchWriter {
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+    PatchWriter(long targetSize) throws IOException {
+      mOut.write(DeltaPatch.MAGIC);
+      mOut.writeLong(targetSize);
+    }
+
+    PatchWriter copy(long offset, int length) throws IOException {
+      mOut.writeByte(DeltaPatch.COPY);
+      mOut.writeLong(offset);
+      mOut.writeInt(length);
+      return this;
+    }
+
+    PatchWriter insert(byte[] bytes) throws IOException {
+      mOut.writeByte(DeltaPatch.INSERT);
+      mOut.writeInt(bytes.length);
+      mOut.write(bytes);
+      return this;
+    }
+
+    PatchWriter end() throws IOException {
+      mOut.writeByte(DeltaPatch.END);
+      return this;
+    }
+
+    /**
+     * @param truncate - how many bytes to leave off the end, before zipping.
+     */
+    byte[] toGzip(int truncate) throws IOException {
+      mOut.flush();
+      byte[] raw = mBytes.toByteArray();
+      ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(zipped);
+      gzip.write(raw, 0, raw.length - truncate);
+      gzip.close();
+      return zipped.toByteArray();
+    }
+
+    byte[] toGzip() throws IOException {
+      return toGzip(0);
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    // bigger than the buffer, so copies and inserts take more than one go.
+    mBase = new byte[200 * 1024];
+    new Random(1).nextBytes(mBase);
+    File file = mFolder.newFile("base");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(mBase);
+    } finally {
+      out.close();
+    }
+    mBaseFile = new RandomAccessFile(file, "r");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    mBaseFile.close();
+  }
+
+  @Test
+  public void rebuildsTheNewVersion() throws IOException {
+    byte[] inserted = new byte[100 * 1024];
+    new Random(2).nextBytes(inserted);
+    byte[] expected = concat(Arrays.copyOfRange(mBase, 1000, 151000), inserted, Arrays.copyOfRange(mBase, 0, 10));
+    byte[] patch = new PatchWriter(expected.length)
+            .copy(1000, 150000)
+            .insert(inserted)
+            .copy(0, 10)
+            .end()
+            .toGzip();
+
+    IntegrityCheck check = IntegrityCheck.create(sha256(expected), expected.length);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final long[] last = { -1, -1 };
+    long size = DeltaPatch.apply(new ByteArrayInputStream(patch), mBaseFile, out, check, new DeltaPatch.Progress() {
+      @Override
+      public void onProgress(long written, long total) {
+        last[0] = written;
+        last[1] = total;
+      }
+    });
+
+    assertEquals(expected.length, size);
+    assertArrayEquals(expected, out.toByteArray());
+    assertEquals(expected.length, last[0]);
+    assertEquals(expected.length, last[1]);
+    // the whole file went through the check on the way.
+    assertEquals(expected.length, check.getPosition());
+  }
+
+  @Test
+  public void notAPatch() throws IOException {
+    ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(zipped);
+    gzip.write("BDPATCH0 and the rest".getBytes("US-ASCII"));
+    gzip.close();
+    assertMalformed(zipped.toByteArray());
+  }
+
+  @Test
+  public void copyPastTheBase() throws IOException {
+    assertMalformed(new PatchWriter(100).copy(mBase.length - 50, 100).end().toGzip());
+  }
+
+  @Test
+  public void writesPastTheTarget() throws IOException {
+    assertMalformed(new PatchWriter(10).insert(new byte[11]).end().toGzip());
+  }
+
+  @Test
+  public void shortOfTheTarget() throws IOException {
+    assertMalformed(new PatchWriter(100).copy(0, 50).end().toGzip());
+  }
+
+  @Test
+  public void endsEarly() throws IOException {
+    assertMalformed(new PatchWriter(100).insert(new byte[100]).toGzip(50));
+  }
+
+  @Test
+  public void unknownOperation() throws IOException {
+    PatchWriter writer = new PatchWriter(10);
+    writer.mOut.writeByte(7);
+    assertMalformed(writer.end().toGzip());
+  }
+
+  @Test
+  public void progressCanStopIt() throws IOException {
+    byte[] patch = new PatchWriter(20).copy(0, 10).copy(10, 10).end().toGzip();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      DeltaPatch.apply(new ByteArrayInputStream(patch), mBaseFile, out, null, new DeltaPatch.Progress() {
+        @Override
+        public void onProgress(long written, long total) throws IOException {
+          throw new IOException("cancelled");
+        }
+      });
+      fail("should have stopped");
+    } catch (IOException e) {
+      assertEquals("cancelled", e.getMessage());
+    }
+    assertEquals(10, out.size());
+  }
+
+  private void assertMalformed(byte[] patch) throws IOException {
+    try {
+      DeltaPatch.apply(new ByteArrayInputStream(patch), mBaseFile, new ByteArrayOutputStream(), null, null);
+      fail("should have been rejected");
+    } catch (DeltaPatch.MalformedPatchException e) {
+      // expected.
+    }
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      out.write(part, 0, part.length);
+    }
+    return out.toByteArray();
+  }
+
+  private static String sha256(byte[] bytes) {
+    try {
+      return Hex.encode(MessageDigest.getInstance("SHA-256").digest(bytes));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.yyztom.backdown;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The order downloads start in, and the limits that hold them back.
+ */
+public class DownloadSchedulerTest {
+  private final List<String> mDispatched = new ArrayList<>();
+  // downloads whose engine refuses to start them.
+  private final Set<String> mFailing = new HashSet<>();
+  private DownloadScheduler mScheduler;
+
+  @Before
+  public void setUp() {
+    mScheduler = new DownloadScheduler(new DownloadScheduler.Dispatcher() {
+      @Override
+      public boolean dispatch(String downloadId) {
+        mDispatched.add(downloadId);
+        return !mFailing.contains(downloadId);
+      }
+    });
+  }
+
+  @Test
+  public void unlimitedDispatchesStraightAway() {
+    for (int i = 0; i < 10; i++) {
+      assertTrue(mScheduler.enqueue("d" + i, "a.com", 0));
+    }
+    assertEquals(10, mScheduler.getRunningCount());
+    assertEquals(0, mScheduler.getQueuedCount());
+  }
+
+  @Test
+  public void waitsForASlot() {
+    mScheduler.setLimits(2, DownloadScheduler.UNLIMITED);
+    mScheduler.enqueue("a", "a.com", 0);
+    mScheduler.enqueue("b", "b.com", 0);
+    mScheduler.enqueue("c", "c.com", 0);
+    assertEquals(Arrays.asList("a", "b"), mDispatched);
+    assertTrue(mScheduler.isQueued("c"));
+
+    mScheduler.finished("a");
+    assertEquals(Arrays.asList("a", "b", "c"), mDispatched);
+    assertTrue(mScheduler.isRunning("c"));
+  }
+
+  @Test
+  public void highestPriorityFirstThenFirstCome() {
+    mScheduler.setLimits(1, DownloadScheduler.UNLIMITED);
+    mScheduler.enqueue("running", "a.com", 0);
+    mScheduler.enqueue("low", "a.com", -1);
+    mScheduler.enqueue("first", "a.com", 0);
+    mScheduler.enqueue("second", "a.com", 0);
+    mScheduler.enqueue("high", "a.com", 5);
+
+    for (String downloadId : new String[] { "running", "high", "first", "second" }) {
+      mScheduler.finished(downloadId);
+    }
+    assertEquals(Arrays.asList("running", "high", "first", "second", "low"), mDispatched);
+  }
+
+  @Test
+  public void busyHostIsSkippedNotWaitedOn() {
+    mScheduler.setLimits(3, 1);
+    mScheduler.enqueue("a1", "a.com", 0);
+    mScheduler.enqueue("a2", "a.com", 0);
+    mScheduler.enqueue("b1", "b.com", 0);
+    assertEquals(Arrays.asList("a1", "b1"), mDispatched);
+    assertTrue(mScheduler.isQueued("a2"));
+
+    mScheduler.finished("b1");
+    assertTrue(mScheduler.isQueued("a2"));
+    mScheduler.finished("a1");
+    assertTrue(mScheduler.isRunning("a2"));
+  }
+
+  @Test
+  public void failedDispatchGivesTheSlotBack() {
+    mScheduler.setLimits(1, DownloadScheduler.UNLIMITED);
+    mFailing.add("broken");
+    assertFalse(mScheduler.enqueue("broken", "a.com", 0));
+    assertFalse(mScheduler.isRunning("broken"));
+    assertFalse(mScheduler.isQueued("broken"));
+
+    assertTrue(mScheduler.enqueue("ok", "a.com", 0));
+    assertTrue(mScheduler.isRunning("ok"));
+  }
+
+  @Test
+  public void enqueueingTwiceJoinsTheFirst() {
+    mScheduler.setLimits(1, DownloadScheduler.UNLIMITED);
+    mScheduler.enqueue("a", "a.com", 0);
+    mScheduler.enqueue("b", "a.com", 0);
+    assertTrue(mScheduler.enqueue("a", "a.com", 0));
+    assertTrue(mScheduler.enqueue("b", "a.com", 0));
+    assertEquals(1, mScheduler.getRunningCount());
+    assertEquals(1, mScheduler.getQueuedCount());
+  }
+
+  @Test
+  public void promotedDownloadGoesNext() {
+    mScheduler.setLimits(1, DownloadScheduler.UNLIMITED);
+    mScheduler.enqueue("running", "a.com", 0);
+    mScheduler.enqueue("a", "a.com", 0);
+    mScheduler.enqueue("b", "a.com", 0);
+    assertTrue(mScheduler.setPriority("b", 1));
+    assertFalse(mScheduler.setPriority("unknown", 1));
+
+    mScheduler.finished("running");
+    assertTrue(mScheduler.isRunning("b"));
+  }
+
+  @Test
+  public void removedDownloadNeverStarts() {
+    mScheduler.setLimits(1, 1);
+    mScheduler.enqueue("a1", "a.com", 0);
+    mScheduler.enqueue("a2", "a.com", 0);
+    assertTrue(mScheduler.remove("a2"));
+    assertFalse(mScheduler.remove("a2"));
+
+    mScheduler.finished("a1");
+    assertEquals(Arrays.asList("a1"), mDispatched);
+    assertEquals(0, mScheduler.getQueuedCount());
+  }
+
+  @Test
+  public void attachedDownloadTakesASlot() {
+    mScheduler.setLimits(1, DownloadScheduler.UNLIMITED);
+    mScheduler.attach("carried-on", "a.com", 0);
+    mScheduler.enqueue("a", "a.com", 0);
+    assertTrue(mScheduler.isQueued("a"));
+    assertTrue(mDispatched.isEmpty());
+
+    mScheduler.finished("carried-on");
+    assertTrue(mScheduler.isRunning("a"));
+  }
+
+  @Test
+  public void raisingTheLimitStartsWhatWaits() {
+    mScheduler.setLimits(1, DownloadScheduler.UNLIMITED);
+    for (int i = 0; i < 5; i++) {
+      mScheduler.enqueue("d" + i, "a.com", 0);
+    }
+    mScheduler.setLimits(4, DownloadScheduler.UNLIMITED);
+    assertEquals(4, mScheduler.getRunningCount());
+    assertEquals(1, mScheduler.getQueuedCount());
+  }
+}
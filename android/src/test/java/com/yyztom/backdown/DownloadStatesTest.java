@@ -0,0 +1,101 @@
+package com.yyztom.backdown;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * What getDownloads and getDownload report, and how much of it is kept.
+ */
+public class DownloadStatesTest {
+  private DownloadStates mStates;
+
+  @Before
+  public void setUp() {
+    mStates = new DownloadStates();
+  }
+
+  @Test
+  public void followsADownloadThrough() {
+    mStates.onCreated("a", false, 0, -1);
+    assertEquals(DownloadStates.STATUS_CREATED, status("a"));
+
+    mStates.onEnqueued("a", true);
+    assertEquals(DownloadStates.STATUS_QUEUED, status("a"));
+
+    mStates.onProgress("a", 10, 100, 5, false);
+    HashMap<String, Object> running = mStates.toMap("a");
+    assertEquals(DownloadStates.STATUS_RUNNING, running.get(BackdownPlugin.STATUS));
+    assertEquals(10L, running.get(BackdownPlugin.PROGRESS));
+    assertEquals(100L, running.get(BackdownPlugin.TOTAL));
+
+    mStates.onComplete("a", "/files/a", 100);
+    HashMap<String, Object> complete = mStates.toMap("a");
+    assertEquals(DownloadStates.STATUS_COMPLETE, complete.get(BackdownPlugin.STATUS));
+    assertEquals("/files/a", complete.get(BackdownPlugin.FILE_PATH));
+    assertEquals(0L, complete.get(BackdownPlugin.BYTES_PER_SECOND));
+  }
+
+  @Test
+  public void cancelledOnlyIfItWasGoing() {
+    mStates.onEnqueued("unknown", false);
+    assertNull(mStates.toMap("unknown"));
+
+    mStates.onCreated("a", false, 0, -1);
+    mStates.onEnqueued("a", false);
+    assertEquals(DownloadStates.STATUS_CREATED, status("a"));
+
+    mStates.onEnqueued("a", true);
+    mStates.onEnqueued("a", false);
+    assertEquals(DownloadStates.STATUS_CANCELLED, status("a"));
+  }
+
+  @Test
+  public void failureIsKeptUntilItStartsOver() {
+    mStates.onCreated("a", true, 0, -1);
+    mStates.onFailure("a", "HTTP_STATUS_CODE: 404");
+    assertEquals("HTTP_STATUS_CODE: 404", mStates.toMap("a").get(BackdownPlugin.ERROR_MSG));
+
+    mStates.onEnqueued("a", true);
+    assertEquals(DownloadStates.STATUS_QUEUED, status("a"));
+    assertNull(mStates.toMap("a").get(BackdownPlugin.ERROR_MSG));
+  }
+
+  @Test
+  public void onlyTheLastIdleOnesAreKept() {
+    for (int i = 0; i < 10; i++) {
+      mStates.onCreated("running" + i, true, 0, -1);
+    }
+    for (int i = 0; i < 200; i++) {
+      mStates.onCreated("done" + i, true, 0, -1);
+      mStates.onComplete("done" + i, "/files/" + i, 1);
+    }
+    for (int i = 0; i < 50; i++) {
+      mStates.onCreated("created" + i, false, 0, -1);
+    }
+
+    List<String> ids = new ArrayList<>();
+    for (HashMap<String, Object> state : mStates.toList()) {
+      ids.add((String) state.get(BackdownPlugin.DOWNLOAD_ID));
+    }
+    // the running ones are never dropped, however old.
+    for (int i = 0; i < 10; i++) {
+      assertEquals("running" + i, ids.get(i));
+    }
+    assertEquals(10 + 64, ids.size());
+    assertNull(mStates.toMap("done0"));
+    assertNotNull(mStates.toMap("done199"));
+    assertNotNull(mStates.toMap("created49"));
+  }
+
+  private String status(String downloadId) {
+    return (String) mStates.toMap(downloadId).get(BackdownPlugin.STATUS);
+  }
+}
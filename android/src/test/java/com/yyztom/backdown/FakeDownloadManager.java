@@ -0,0 +1,184 @@
+package com.yyztom.backdown;
+
+import android.app.DownloadManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowDownloadManager;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Stands in for the DownloadManager, keeping a row per request and counting every
+ * call made against it. Robolectric's own cursor lacks the id and size columns the
+ * plugin reads. Rows only change when a test says so.
+ */
+@Implements(DownloadManager.class)
+public class FakeDownloadManager {
+  private static final String[] COLUMNS = {
+          DownloadManager.COLUMN_ID,
+          DownloadManager.COLUMN_URI,
+          DownloadManager.COLUMN_TITLE,
+          DownloadManager.COLUMN_STATUS,
+          DownloadManager.COLUMN_REASON,
+          DownloadManager.COLUMN_LOCAL_URI,
+          DownloadManager.COLUMN_TOTAL_SIZE_BYTES,
+          DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR,
+  };
+
+  private static class Row {
+    final long id;
+    final String uri;
+    final String title;
+    int status = DownloadManager.STATUS_PENDING;
+    String localUri;
+    long total = -1;
+    long progress;
+
+    Row(long id, String uri, String title) {
+      this.id = id;
+      this.uri = uri;
+      this.title = title;
+    }
+  }
+
+  private static final LinkedHashMap<Long, Row> sRows = new LinkedHashMap<>();
+  private static long sNextId;
+  private static final AtomicInteger sQueries = new AtomicInteger();
+  private static final AtomicInteger sCalls = new AtomicInteger();
+  private static final AtomicInteger sMainThreadCalls = new AtomicInteger();
+
+  static int getQueryCount() {
+    return sQueries.get();
+  }
+
+  /**
+   * @return how many calls, of any kind, were made.
+   */
+  static int getCallCount() {
+    return sCalls.get();
+  }
+
+  /**
+   * @return how many calls were made while the harness wasn't running the worker.
+   */
+  static int getMainThreadCallCount() {
+    return sMainThreadCalls.get();
+  }
+
+  static int getRowCount() {
+    return sRows.size();
+  }
+
+  /**
+   * Forgets the counts, the rows are kept.
+   */
+  static void reset() {
+    sQueries.set(0);
+    sCalls.set(0);
+    sMainThreadCalls.set(0);
+  }
+
+  static void clear() {
+    reset();
+    sRows.clear();
+    sNextId = 0;
+  }
+
+  /**
+   * @return the id of the row downloading url, or -1.
+   */
+  static long findId(String url) {
+    for (Row row : sRows.values()) {
+      if ( row.uri.equals(url) ) {
+        return row.id;
+      }
+    }
+    return -1;
+  }
+
+  static void setProgress(long id, long progress, long total) {
+    Row row = sRows.get(id);
+    row.status = DownloadManager.STATUS_RUNNING;
+    row.progress = progress;
+    row.total = total;
+  }
+
+  /**
+   * Finishes the download, as if it had been written to file.
+   */
+  static void complete(long id, File file) {
+    Row row = sRows.get(id);
+    row.status = DownloadManager.STATUS_SUCCESSFUL;
+    row.localUri = Uri.fromFile(file).toString();
+    row.total = file.length();
+    row.progress = file.length();
+  }
+
+  static void fail(long id) {
+    sRows.get(id).status = DownloadManager.STATUS_FAILED;
+  }
+
+  @Implementation
+  public long enqueue(DownloadManager.Request request) {
+    count();
+    ShadowDownloadManager.ShadowRequest shadow = shadowOf(request);
+    Row row = new Row(sNextId++, shadow.getUri().toString(),
+            shadow.getTitle() == null ? null : shadow.getTitle().toString());
+    sRows.put(row.id, row);
+    return row.id;
+  }
+
+  @Implementation
+  public int remove(long... ids) {
+    count();
+    int removed = 0;
+    for (long id : ids) {
+      if ( sRows.remove(id) != null ) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  @Implementation
+  public Cursor query(DownloadManager.Query query) {
+    count();
+    sQueries.incrementAndGet();
+    long[] ids = shadowOf(query).getIds();
+    Integer statuses = ReflectionHelpers.getField(query, "mStatusFlags");
+
+    MatrixCursor cursor = new MatrixCursor(COLUMNS);
+    for (Row row : sRows.values()) {
+      if ( (ids == null || contains(ids, row.id)) && (statuses == null || (statuses & row.status) != 0) ) {
+        cursor.addRow(new Object[] {
+                row.id, row.uri, row.title, row.status, 0, row.localUri, row.total, row.progress });
+      }
+    }
+    return cursor;
+  }
+
+  private static void count() {
+    sCalls.incrementAndGet();
+    if ( !PluginHarness.isOnWorker() ) {
+      sMainThreadCalls.incrementAndGet();
+    }
+  }
+
+  private static boolean contains(long[] ids, long id) {
+    for (long candidate : ids) {
+      if ( candidate == id ) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,149 @@
+package com.yyztom.backdown;
+
+import android.app.DownloadManager;
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodCall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Method calls and broadcasts arrive on the main thread, all the work they lead to,
+ * the DownloadManager, database and files, happens on the worker. Only the replies
+ * and events come back to the main thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27, shadows = FakeDownloadManager.class)
+public class MainLooperTest {
+  private static final String URL = "https://example.com/files/video.mp4";
+
+  private PluginHarness mHarness;
+
+  @Before
+  public void setUp() {
+    FakeDownloadManager.clear();
+    mHarness = PluginHarness.register();
+    mHarness.runWorker(0);
+    FakeDownloadManager.reset();
+  }
+
+  @After
+  public void tearDown() {
+    mHarness.destroy();
+  }
+
+  @Test
+  public void methodCallsReturnBeforeAnyWork() {
+    PluginHarness.Reply created = call("createDownload", PluginHarness.createArgs(URL));
+    assertFalse(created.isReplied);
+    mHarness.runWorker(0);
+    assertTrue(created.isReplied);
+    assertTrue(created.isOnMain);
+    String downloadId = (String) created.value;
+
+    PluginHarness.Reply enqueued = call("enqueueDownload", idArgs(downloadId));
+    PluginHarness.Reply listed = call("getDownloads", null);
+    assertFalse(enqueued.isReplied);
+    assertFalse(listed.isReplied);
+    assertEquals(0, FakeDownloadManager.getCallCount());
+
+    mHarness.runWorker(0);
+    assertEquals(true, ((Map<?, ?>) enqueued.value).get("SUCCESS"));
+    assertTrue(enqueued.isOnMain);
+    assertTrue(listed.isOnMain);
+    assertEquals(1, FakeDownloadManager.getRowCount());
+
+    PluginHarness.Reply cancelled = call("cancelDownload", idArgs(downloadId));
+    assertFalse(cancelled.isReplied);
+    mHarness.runWorker(0);
+    assertEquals(true, ((Map<?, ?>) cancelled.value).get("SUCCESS"));
+    assertEquals(0, FakeDownloadManager.getRowCount());
+
+    assertTrue(FakeDownloadManager.getCallCount() > 0);
+    assertEquals(0, FakeDownloadManager.getMainThreadCallCount());
+  }
+
+  @Test
+  public void completionIsHandledOnTheWorker() throws IOException {
+    PluginHarness.Reply created = call("createDownload", PluginHarness.createArgs(URL));
+    mHarness.runWorker(0);
+    call("enqueueDownload", idArgs((String) created.value));
+    mHarness.runWorker(0);
+
+    long id = FakeDownloadManager.findId(URL);
+    FakeDownloadManager.setProgress(id, 512, 1024);
+    mHarness.runWorker(1000);
+    FakeDownloadManager.complete(id, writeFile(1024));
+    FakeDownloadManager.reset();
+
+    Intent intent = new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
+    intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, id);
+    RuntimeEnvironment.application.sendBroadcast(intent);
+    assertEquals(0, FakeDownloadManager.getCallCount());
+    assertEquals(0, mHarness.countEvents("COMPLETE_EVENT"));
+
+    mHarness.runWorker(0);
+    assertEquals(1, mHarness.countEvents("COMPLETE_EVENT"));
+    MethodCall complete = last("COMPLETE_EVENT");
+    assertEquals(true, complete.argument("SUCCESS"));
+    String path = complete.argument("FILE_PATH");
+    assertNotNull(path);
+    assertEquals(1024, new File(path).length());
+
+    assertTrue(FakeDownloadManager.getCallCount() > 0);
+    assertEquals(0, FakeDownloadManager.getMainThreadCallCount());
+    assertEquals(0, mHarness.eventsOnWorker);
+  }
+
+  private PluginHarness.Reply call(String method, Object arguments) {
+    PluginHarness.Reply reply = new PluginHarness.Reply();
+    mHarness.call(method, arguments, reply);
+    return reply;
+  }
+
+  private MethodCall last(String method) {
+    List<MethodCall> matching = new ArrayList<>();
+    for (MethodCall event : mHarness.events) {
+      if ( event.method.equals(method) ) {
+        matching.add(event);
+      }
+    }
+    return matching.get(matching.size() - 1);
+  }
+
+  private static HashMap<String, Object> idArgs(String downloadId) {
+    HashMap<String, Object> args = new HashMap<>();
+    args.put("DOWNLOAD_ID", downloadId);
+    return args;
+  }
+
+  private static File writeFile(int size) throws IOException {
+    File file = new File(RuntimeEnvironment.application.getCacheDir(), "dm-" + System.nanoTime());
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}
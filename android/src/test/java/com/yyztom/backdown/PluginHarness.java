@@ -0,0 +1,213 @@
+package com.yyztom.backdown;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.PluginRegistry;
+import io.flutter.plugin.common.StandardMethodCodec;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Registers the plugin the way flutter does, against a messenger that keeps every
+ * event the plugin sends.
+ *
+ * Under Robolectric nothing posted to the plugin's worker thread runs until
+ * runWorker() is called, and then it runs on the test's thread, which is also the
+ * main looper's. So whatever a test sees happen before runWorker() happened on the
+ * main thread. Anything the worker posts to the main looper runs once the worker
+ * is done, so isOnWorker() tells the two apart.
+ */
+class PluginHarness {
+  private static final String WORKER_THREAD = "backdown-worker";
+
+  final BackdownPlugin plugin;
+  // the events sent to dart, in the order they were sent.
+  final List<MethodCall> events = new ArrayList<>();
+  // how many of them were sent from the worker rather than the main thread.
+  int eventsOnWorker;
+  private final Looper mWorker;
+  private static boolean isOnWorker;
+
+  private PluginHarness(Registrar registrar) {
+    Set<Thread> before = getWorkerThreads();
+    BackdownPlugin.registerWith(registrar.proxy);
+    plugin = registrar.plugin;
+
+    Set<Thread> started = getWorkerThreads();
+    started.removeAll(before);
+    mWorker = ((HandlerThread) started.iterator().next()).getLooper();
+  }
+
+  static PluginHarness register() {
+    PluginHarness[] harness = new PluginHarness[1];
+    Registrar registrar = new Registrar();
+    registrar.harness = harness;
+    harness[0] = new PluginHarness(registrar);
+    // as the dart side does once it's listening.
+    harness[0].call("ready", null, null);
+    harness[0].runWorker(0);
+    return harness[0];
+  }
+
+  /**
+   * Makes a method call from dart, it's handed the plugin on the main thread.
+   */
+  void call(String method, Object arguments, MethodChannel.Result result) {
+    plugin.onMethodCall(new MethodCall(method, arguments), result);
+  }
+
+  /**
+   * Lets delayMs pass, then runs whatever is due on the worker thread.
+   */
+  void runWorker(long delayMs) {
+    // the plugin's delays are measured on the main looper's clock.
+    ShadowLooper.idleMainLooper(delayMs, TimeUnit.MILLISECONDS);
+    ShadowLooper.pauseMainLooper();
+    isOnWorker = true;
+    try {
+      shadowOf(mWorker).getScheduler().advanceTo(SystemClock.uptimeMillis());
+    } finally {
+      isOnWorker = false;
+      // replies and events go out on the main looper.
+      ShadowLooper.unPauseMainLooper();
+    }
+  }
+
+  /**
+   * @return true while runWorker() is running the worker's tasks.
+   */
+  static boolean isOnWorker() {
+    return isOnWorker;
+  }
+
+  /**
+   * @return how many events of the given method were sent.
+   */
+  int countEvents(String method) {
+    int count = 0;
+    for (MethodCall event : events) {
+      if ( event.method.equals(method) ) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  void destroy() {
+    plugin.onViewDestroy(null);
+    runWorker(0);
+  }
+
+  /**
+   * Keeps the reply to a method call, and whether it came on the main thread.
+   */
+  static class Reply implements MethodChannel.Result {
+    Object value;
+    boolean isReplied;
+    boolean isOnMain;
+
+    @Override
+    public void success(Object o) {
+      value = o;
+      isReplied = true;
+      isOnMain = !isOnWorker;
+    }
+
+    @Override
+    public void error(String errorCode, String errorMessage, Object errorDetails) {
+      throw new AssertionError(errorCode + ": " + errorMessage);
+    }
+
+    @Override
+    public void notImplemented() {
+      throw new AssertionError("not implemented");
+    }
+  }
+
+  /**
+   * @return the arguments createDownload is sent for url by the dart side.
+   */
+  static HashMap<String, Object> createArgs(String url) {
+    HashMap<String, Object> args = new HashMap<>();
+    args.put("DOWNLOAD_URL", url);
+    args.put("TITLE", "title");
+    args.put("DESCRIPTION", "description");
+    args.put("WIFI_ONLY", false);
+    args.put("REQUIRED_CHARGING", false);
+    args.put("REQUIRES_DEVICE_IDLE", false);
+    args.put("SHOW_NOTIFICATION", false);
+    return args;
+  }
+
+  private static Set<Thread> getWorkerThreads() {
+    HashSet<Thread> threads = new HashSet<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if ( thread instanceof HandlerThread && WORKER_THREAD.equals(thread.getName()) ) {
+        threads.add(thread);
+      }
+    }
+    return threads;
+  }
+
+  /**
+   * Stands in for flutter's registrar and messenger, whichever version of their
+   * interfaces is on the classpath.
+   */
+  private static class Registrar implements InvocationHandler {
+    final PluginRegistry.Registrar proxy;
+    final BinaryMessenger messenger;
+    PluginHarness[] harness;
+    BackdownPlugin plugin;
+
+    Registrar() {
+      proxy = (PluginRegistry.Registrar) Proxy.newProxyInstance(getClass().getClassLoader(),
+              new Class<?>[] { PluginRegistry.Registrar.class }, this);
+      messenger = (BinaryMessenger) Proxy.newProxyInstance(getClass().getClassLoader(),
+              new Class<?>[] { BinaryMessenger.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "context":
+        case "activeContext":
+          return RuntimeEnvironment.application;
+        case "messenger":
+          return messenger;
+        case "addViewDestroyListener":
+          plugin = (BackdownPlugin) args[0];
+          return proxy;
+        case "send":
+          ByteBuffer message = (ByteBuffer) args[1];
+          // the codec leaves the buffer positioned after the message.
+          message.flip();
+          harness[0].events.add(StandardMethodCodec.INSTANCE.decodeMethodCall(message));
+          if ( isOnWorker ) {
+            harness[0].eventsOnWorker++;
+          }
+          return null;
+        default:
+          return method.getReturnType().isInstance(target) ? target : null;
+      }
+    }
+  }
+}
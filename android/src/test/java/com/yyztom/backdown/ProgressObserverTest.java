@@ -0,0 +1,79 @@
+package com.yyztom.backdown;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The observe progress mode only queries the DownloadManager when it says something changed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27, shadows = FakeDownloadManager.class)
+public class ProgressObserverTest {
+  private static final Uri DOWNLOADS = Uri.parse("content://downloads/my_downloads");
+  private static final long TICK_MS = 1000;
+
+  private PluginHarness mHarness;
+
+  @Before
+  public void setUp() {
+    FakeDownloadManager.clear();
+    mHarness = PluginHarness.register();
+    // starting up looks at whatever was already running, once.
+    mHarness.runWorker(0);
+    mHarness.runWorker(TICK_MS);
+    FakeDownloadManager.reset();
+  }
+
+  @After
+  public void tearDown() {
+    mHarness.destroy();
+  }
+
+  @Test
+  public void noQueriesWhileIdle() {
+    for (int i = 0; i < 60; i++) {
+      mHarness.runWorker(TICK_MS);
+    }
+    assertEquals(0, FakeDownloadManager.getQueryCount());
+    assertEquals(0, mHarness.countEvents("PROGRESS_EVENT"));
+  }
+
+  @Test
+  public void changesInOneTickAreReadInOneQuery() {
+    notifyChanged(1);
+    notifyChanged(2);
+    notifyChanged(1);
+    mHarness.runWorker(0);
+    assertEquals(0, FakeDownloadManager.getQueryCount());
+
+    mHarness.runWorker(TICK_MS);
+    assertEquals(1, FakeDownloadManager.getQueryCount());
+
+    // and nothing more until the next change.
+    for (int i = 0; i < 10; i++) {
+      mHarness.runWorker(TICK_MS);
+    }
+    assertEquals(1, FakeDownloadManager.getQueryCount());
+  }
+
+  @Test
+  public void unknownChangeIsOneFullScan() {
+    RuntimeEnvironment.application.getContentResolver().notifyChange(DOWNLOADS, null);
+    mHarness.runWorker(TICK_MS);
+    mHarness.runWorker(TICK_MS);
+    assertEquals(1, FakeDownloadManager.getQueryCount());
+  }
+
+  private static void notifyChanged(long managerId) {
+    RuntimeEnvironment.application.getContentResolver().notifyChange(Uri.withAppendedPath(DOWNLOADS, String.valueOf(managerId)), null);
+  }
+}
@@ -0,0 +1,103 @@
+package com.yyztom.backdown;
+
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which progress updates are worth sending to flutter.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class ProgressThrottleTest {
+  private static final String ID = "id";
+  private static final long TOTAL = 1000;
+
+  private ProgressThrottle mThrottle;
+  private DownloadRequest mRequest;
+
+  @Before
+  public void setUp() {
+    mThrottle = new ProgressThrottle();
+    mRequest = new DownloadRequest(ID, Uri.parse("https://example.com/file"), null, null, false, false, false, false);
+  }
+
+  @Test
+  public void withoutAPolicyEveryChangeIsSent() {
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 0, TOTAL, false));
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 1, TOTAL, false));
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 2, TOTAL, false));
+  }
+
+  @Test
+  public void nothingNewIsNeverSentTwice() {
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 10, TOTAL, false));
+    assertFalse(mThrottle.shouldSend(mRequest, ID, 10, TOTAL, false));
+    assertFalse(mThrottle.shouldSend(mRequest, ID, 10, TOTAL, false));
+  }
+
+  @Test
+  public void intervalHoldsUpdatesBack() {
+    mRequest.progressIntervalMs = 500;
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 0, TOTAL, false));
+    assertFalse(mThrottle.shouldSend(mRequest, ID, 100, TOTAL, false));
+    advance(499);
+    assertFalse(mThrottle.shouldSend(mRequest, ID, 200, TOTAL, false));
+    advance(1);
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 300, TOTAL, false));
+  }
+
+  @Test
+  public void bytesAndPercentHoldUpdatesBack() {
+    mRequest.progressMinBytes = 50;
+    mRequest.progressMinPercent = 10;
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 0, TOTAL, false));
+    // enough bytes, not enough percent.
+    assertFalse(mThrottle.shouldSend(mRequest, ID, 60, TOTAL, false));
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 100, TOTAL, false));
+    // measured from what was sent, not what was dropped.
+    assertFalse(mThrottle.shouldSend(mRequest, ID, 150, TOTAL, false));
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 200, TOTAL, false));
+  }
+
+  @Test
+  public void finishingAndNewTotalsAlwaysGoThrough() {
+    mRequest.progressIntervalMs = 10000;
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 0, -1, false));
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 10, TOTAL, false));
+    assertFalse(mThrottle.shouldSend(mRequest, ID, 20, TOTAL, false));
+    assertTrue(mThrottle.shouldSend(mRequest, ID, TOTAL, TOTAL, false));
+  }
+
+  @Test
+  public void pendingOnlyIfAskedFor() {
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 0, TOTAL, true));
+    mRequest.reportPending = false;
+    mThrottle.forget(ID);
+    assertFalse(mThrottle.shouldSend(mRequest, ID, 0, TOTAL, true));
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 0, TOTAL, false));
+  }
+
+  @Test
+  public void forgottenDownloadStartsOver() {
+    mRequest.progressIntervalMs = 10000;
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 10, TOTAL, false));
+    mThrottle.forget(ID);
+    assertTrue(mThrottle.shouldSend(mRequest, ID, 10, TOTAL, false));
+  }
+
+  private static void advance(long ms) {
+    // the main looper's clock is the one SystemClock reads.
+    ShadowLooper.idleMainLooper(ms, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,206 @@
+package com.yyztom.backdown;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves files over http on 127.0.0.1 for the transfer engines to download, with
+ * range requests and keep-alive connections the way most CDNs do. Only GET, HEAD
+ * and single ranges are understood.
+ *
+ * Counts what it was asked for, so tests can tell how a file was fetched.
+ */
+class RangeServer {
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final String ETAG = "\"v1\"";
+
+  private final ServerSocket mServerSocket;
+  private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+  private final ConcurrentHashMap<String, byte[]> mFiles = new ConcurrentHashMap<>();
+  // the Range header of every request, or null where there wasn't one.
+  private final List<String> mRanges = new CopyOnWriteArrayList<>();
+  private final AtomicInteger mConnections = new AtomicInteger();
+  private final AtomicLong mBytesServed = new AtomicLong();
+  private volatile boolean isRangeSupported = true;
+
+  RangeServer() throws IOException {
+    mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        acceptAll();
+      }
+    });
+  }
+
+  /**
+   * @return where body can be downloaded from.
+   */
+  URL put(String path, byte[] body) {
+    mFiles.put(path, body);
+    try {
+      return new URL("http://127.0.0.1:" + mServerSocket.getLocalPort() + path);
+    } catch (MalformedURLException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * @param supported - false to answer every request with the whole file.
+   */
+  void setRangeSupported(boolean supported) {
+    isRangeSupported = supported;
+  }
+
+  List<String> getRanges() {
+    return mRanges;
+  }
+
+  int getConnectionCount() {
+    return mConnections.get();
+  }
+
+  /**
+   * @return how many body bytes were sent.
+   */
+  long getBytesServed() {
+    return mBytesServed.get();
+  }
+
+  void stop() {
+    try {
+      mServerSocket.close();
+    } catch (IOException e) {
+      // nothing more we can do.
+    }
+    mExecutor.shutdownNow();
+  }
+
+  private void acceptAll() {
+    while (!mServerSocket.isClosed()) {
+      try {
+        final Socket socket = mServerSocket.accept();
+        mConnections.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            serveAll(socket);
+          }
+        });
+      } catch (IOException e) {
+        // closed by stop().
+        return;
+      }
+    }
+  }
+
+  private void serveAll(Socket socket) {
+    try {
+      // otherwise the end of each response waits on the client's delayed ack.
+      socket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+      String[] request;
+      while ((request = readRequest(in)) != null) {
+        if ( !serve(request, out) ) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      // the client went away.
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing more we can do.
+      }
+    }
+  }
+
+  /**
+   * @return false if the connection should be closed.
+   */
+  private boolean serve(String[] request, OutputStream out) throws IOException {
+    mRanges.add(request[1]);
+    byte[] body = mFiles.get(request[0]);
+    if ( body == null ) {
+      out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes(ASCII));
+      out.flush();
+      return true;
+    }
+
+    int start = 0;
+    int end = body.length - 1;
+    boolean partial = isRangeSupported && request[1] != null;
+    if ( partial ) {
+      String[] range = request[1].toLowerCase(Locale.US).substring("bytes=".length()).split("-", -1);
+      start = Integer.parseInt(range[0].trim());
+      if ( !range[1].trim().isEmpty() ) {
+        end = Math.min(end, Integer.parseInt(range[1].trim()));
+      }
+    }
+
+    StringBuilder headers = new StringBuilder();
+    headers.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+    headers.append("Content-Type: application/octet-stream\r\n");
+    headers.append("ETag: ").append(ETAG).append("\r\n");
+    headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+    if ( partial ) {
+      headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(body.length).append("\r\n");
+    }
+    headers.append("\r\n");
+    out.write(headers.toString().getBytes(ASCII));
+    if ( !"HEAD".equals(request[2]) ) {
+      out.write(body, start, end - start + 1);
+      mBytesServed.addAndGet(end - start + 1);
+    }
+    out.flush();
+    return true;
+  }
+
+  /**
+   * @return the path, Range header (or null) and method, or null once the connection is closed.
+   */
+  private static String[] readRequest(InputStream in) throws IOException {
+    StringBuilder head = new StringBuilder();
+    int c;
+    while ((c = in.read()) >= 0) {
+      head.append((char) c);
+      int length = head.length();
+      if ( length >= 4 && head.charAt(length - 1) == '\n' && head.charAt(length - 3) == '\n' ) {
+        break;
+      }
+    }
+    if ( c < 0 ) {
+      return null;
+    }
+
+    String[] lines = head.toString().split("\r\n");
+    String range = null;
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if ( colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Range") ) {
+        range = lines[i].substring(colon + 1).trim();
+      }
+    }
+    String[] requestLine = lines[0].split(" ");
+    return new String[] { requestLine[1], range, requestLine[0] };
+  }
+}
@@ -0,0 +1,109 @@
+package com.yyztom.backdown;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import io.flutter.plugin.common.MethodCall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A chunked download that was running when the view went away carries on
+ * from where it got to once the plugin is registered again.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27, shadows = FakeDownloadManager.class)
+public class ResumeAfterDestroyTest {
+  private static final int SIZE = 384 * 1024;
+  // slow enough that it's still going when the view is destroyed.
+  private static final long BYTES_PER_SECOND = 128 * 1024;
+  private static final long TICK_MS = 50;
+  private static final long TIMEOUT_MS = 20000;
+
+  private RangeServer mServer;
+  private byte[] mBody;
+  private PluginHarness mHarness;
+
+  @Before
+  public void setUp() throws Exception {
+    FakeDownloadManager.clear();
+    mServer = new RangeServer();
+    mBody = new byte[SIZE];
+    new Random(7).nextBytes(mBody);
+  }
+
+  @After
+  public void tearDown() {
+    if ( mHarness != null ) {
+      mHarness.destroy();
+    }
+    mServer.stop();
+  }
+
+  @Test
+  public void resumesWithARangeRequest() throws Exception {
+    mHarness = PluginHarness.register();
+    HashMap<String, Object> args = PluginHarness.createArgs(mServer.put("/file.bin", mBody).toString());
+    args.put("ENGINE", DownloadRequest.ENGINE_CHUNKED);
+    args.put("CONNECTIONS", 1);
+    args.put("MAX_BYTES_PER_SECOND", BYTES_PER_SECOND);
+    PluginHarness.Reply created = call("createDownload", args);
+    mHarness.runWorker(0);
+
+    HashMap<String, Object> enqueueArgs = new HashMap<>();
+    enqueueArgs.put("DOWNLOAD_ID", created.value);
+    call("enqueueDownload", enqueueArgs);
+    // part of it has arrived.
+    runUntil("PROGRESS_EVENT");
+    mHarness.destroy();
+
+    mHarness = PluginHarness.register();
+    MethodCall complete = runUntil("COMPLETE_EVENT");
+
+    assertEquals(true, complete.argument("SUCCESS"));
+    String filePath = complete.argument("FILE_PATH");
+    assertNotNull(filePath);
+    assertArrayEquals(mBody, ChunkedDownloaderTest.readFile(new File(filePath)));
+
+    // the last request picked up after what was already there.
+    String range = mServer.getRanges().get(mServer.getRanges().size() - 1);
+    assertNotNull(range);
+    assertTrue(range, !range.startsWith("bytes=0-"));
+  }
+
+  /**
+   * Keeps the worker and the clock going until the event is sent.
+   */
+  private MethodCall runUntil(String method) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (System.currentTimeMillis() < deadline) {
+      // the limit is measured with SystemClock, which moves with the worker.
+      Thread.sleep(TICK_MS);
+      mHarness.runWorker(TICK_MS);
+      for (MethodCall event : mHarness.events) {
+        if ( event.method.equals(method) ) {
+          return event;
+        }
+      }
+    }
+    throw new AssertionError("no " + method);
+  }
+
+  private PluginHarness.Reply call(String method, Object arguments) {
+    PluginHarness.Reply reply = new PluginHarness.Reply();
+    mHarness.call(method, arguments, reply);
+    return reply;
+  }
+}
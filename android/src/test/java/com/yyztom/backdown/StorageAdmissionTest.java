@@ -0,0 +1,117 @@
+package com.yyztom.backdown;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Admitting downloads against the real free space of the temporary folder's disk,
+ * with sizes far enough either side of it that other writers don't matter.
+ */
+public class StorageAdmissionTest {
+  private static final long MB = 1024 * 1024;
+  private static final long MARGIN = 32 * MB;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private StorageAdmission mAdmission;
+  private File mDir;
+  // what a download could have, once the margin is left free.
+  private long mAvailable;
+
+  @Before
+  public void setUp() {
+    mAdmission = new StorageAdmission();
+    mDir = mFolder.getRoot();
+    mAvailable = mDir.getUsableSpace() - MARGIN;
+    assumeTrue("needs a GB free", mAvailable > 1024 * MB);
+  }
+
+  @Test
+  public void admitsWhatFits() {
+    assertEquals(StorageAdmission.ADMIT, mAdmission.check(mDir, MB));
+  }
+
+  @Test
+  public void rejectsWhatCouldNeverFit() {
+    assertEquals(StorageAdmission.REJECT, mAdmission.check(mDir, mAvailable + 1024 * MB));
+  }
+
+  @Test
+  public void defersWhatFitsOnceOthersFinish() {
+    long half = mAvailable / 2;
+    mAdmission.reserve("running", half + 100 * MB);
+    assertEquals(StorageAdmission.DEFER, mAdmission.check(mDir, half));
+    assertEquals(StorageAdmission.ADMIT, mAdmission.check(mDir, MB));
+  }
+
+  @Test
+  public void writtenBytesAreNoLongerReserved() {
+    long half = mAvailable / 2;
+    mAdmission.reserve("running", half + 100 * MB);
+    // e.g. preallocated, getUsableSpace() counts it now.
+    mAdmission.onWritten("running", half + 100 * MB);
+    assertEquals(0, mAdmission.getReserved());
+    assertEquals(StorageAdmission.ADMIT, mAdmission.check(mDir, half));
+  }
+
+  @Test
+  public void reservedIsWhatsStillToCome() {
+    mAdmission.reserve("a", 100);
+    mAdmission.reserve("b", 50);
+    mAdmission.onWritten("a", 30);
+    // progress after a preallocation doesn't give the space back.
+    mAdmission.onWritten("b", 50);
+    mAdmission.onWritten("b", 10);
+    assertEquals(70, mAdmission.getReserved());
+
+    mAdmission.onWritten("unknown", 1000);
+    assertEquals(70, mAdmission.getReserved());
+  }
+
+  @Test
+  public void finishedDownloadsAreReleased() {
+    DownloadScheduler scheduler = new DownloadScheduler(new DownloadScheduler.Dispatcher() {
+      @Override
+      public boolean dispatch(String downloadId) {
+        return true;
+      }
+    });
+    scheduler.enqueue("running", "a.com", 0);
+    mAdmission.reserve("running", 100);
+    mAdmission.reserve("finished", 50);
+
+    mAdmission.releaseFinished(scheduler);
+    assertEquals(100, mAdmission.getReserved());
+  }
+
+  @Test
+  public void missingDirIsOnItsParentsDisk() {
+    File missing = new File(mDir, "not/yet/made");
+    long space = StorageAdmission.getUsableSpace(missing);
+    assertEquals(mDir.getUsableSpace(), space, 100 * MB);
+  }
+
+  @Test
+  public void preflightAsksForTheSize() throws IOException {
+    RangeServer server = new RangeServer();
+    try {
+      URL url = server.put("/file.bin", new byte[12345]);
+      assertEquals(12345, StorageAdmission.preflight(url));
+      assertEquals(-1, StorageAdmission.preflight(new URL(url, "/missing.bin")));
+      // nothing but the headers.
+      assertEquals(0, server.getBytesServed());
+    } finally {
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.yyztom.backdown;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Serving finished downloads over http, and the ranges players ask for.
+ */
+public class StreamServerTest {
+  private static final int SIZE = 100 * 1024;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private ExecutorService mExecutor;
+  private StreamServer mServer;
+  private byte[] mBody;
+
+  @Before
+  public void setUp() throws IOException {
+    mExecutor = Executors.newCachedThreadPool();
+    mServer = new StreamServer(mExecutor);
+    mServer.start();
+
+    mBody = new byte[SIZE];
+    new Random(3).nextBytes(mBody);
+    File file = mFolder.newFile("video.mp4");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(mBody);
+    } finally {
+      out.close();
+    }
+    mServer.register("id", new StreamServer.FileSource(file));
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop();
+    mExecutor.shutdownNow();
+  }
+
+  @Test
+  public void parsesRanges() {
+    assertArrayEquals(new long[] { 0, 99 }, StreamServer.parseRange("bytes=0-", 100));
+    assertArrayEquals(new long[] { 10, 19 }, StreamServer.parseRange("bytes=10-19", 100));
+    assertArrayEquals(new long[] { 90, 99 }, StreamServer.parseRange("bytes=-10", 100));
+    // clamped to the end of the file.
+    assertArrayEquals(new long[] { 50, 99 }, StreamServer.parseRange("bytes=50-500", 100));
+    assertArrayEquals(new long[] { 0, 99 }, StreamServer.parseRange("bytes=-500", 100));
+    // only the first of several.
+    assertArrayEquals(new long[] { 0, 9 }, StreamServer.parseRange("bytes=0-9, 20-29", 100));
+    assertArrayEquals(new long[] { 5, 5 }, StreamServer.parseRange("Bytes= 5 - 5", 100));
+  }
+
+  @Test
+  public void rejectsRangesItCantServe() {
+    assertNull(StreamServer.parseRange("bytes=100-", 100));
+    assertNull(StreamServer.parseRange("bytes=20-10", 100));
+    assertNull(StreamServer.parseRange("bytes=abc-", 100));
+    assertNull(StreamServer.parseRange("bytes=10", 100));
+    assertNull(StreamServer.parseRange("items=0-10", 100));
+  }
+
+  @Test
+  public void servesTheWholeFile() throws IOException {
+    HttpURLConnection conn = open(mServer.getUrl("id"), null);
+    assertEquals(200, conn.getResponseCode());
+    assertEquals("video/mp4", conn.getContentType());
+    assertArrayEquals(mBody, read(conn));
+  }
+
+  @Test
+  public void servesARange() throws IOException {
+    HttpURLConnection conn = open(mServer.getUrl("id"), "bytes=1000-1999");
+    assertEquals(206, conn.getResponseCode());
+    assertEquals("bytes 1000-1999/" + SIZE, conn.getHeaderField("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(mBody, 1000, 2000), read(conn));
+  }
+
+  @Test
+  public void unsatisfiableRange() throws IOException {
+    HttpURLConnection conn = open(mServer.getUrl("id"), "bytes=" + SIZE + "-");
+    assertEquals(416, conn.getResponseCode());
+    assertEquals("bytes */" + SIZE, conn.getHeaderField("Content-Range"));
+  }
+
+  @Test
+  public void wrongTokenIsNotFound() throws IOException {
+    URL url = new URL(mServer.getUrl("id"));
+    HttpURLConnection conn = open("http://127.0.0.1:" + url.getPort() + "/not-the-token/id", null);
+    assertEquals(404, conn.getResponseCode());
+  }
+
+  private static HttpURLConnection open(String url, String range) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    if ( range != null ) {
+      conn.setRequestProperty("Range", range);
+    }
+    return conn;
+  }
+
+  private static byte[] read(HttpURLConnection conn) throws IOException {
+    InputStream in = conn.getInputStream();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
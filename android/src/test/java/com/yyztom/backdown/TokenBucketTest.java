@@ -0,0 +1,102 @@
+package com.yyztom.backdown;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How fast a TokenBucket lets bytes through.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class TokenBucketTest {
+  @Test
+  public void unlimitedNeverWaits() throws InterruptedIOException {
+    TokenBucket bucket = new TokenBucket(TokenBucket.UNLIMITED);
+    // the clock doesn't move, so this would wait forever if it waited at all.
+    bucket.acquire(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void limitsTheRate() throws Exception {
+    TokenBucket bucket = new TokenBucket(1024 * 1024);
+    WallClock clock = new WallClock();
+    clock.start();
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < 32; i++) {
+        bucket.acquire(16 * 1024);
+      }
+    } finally {
+      clock.stop();
+    }
+    long elapsedMs = (System.nanoTime() - start) / 1000000;
+    // half a megabyte at a megabyte a second, from an empty bucket.
+    assertTrue(elapsedMs + "ms", elapsedMs >= 450 && elapsedMs < 2000);
+  }
+
+  @Test
+  public void bigReadIsPaidBackFirst() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000);
+    advance(1000);
+    // more than the bucket holds, let through as it's full.
+    bucket.acquire(5000);
+
+    Waiter next = new Waiter(bucket, 1);
+    advance(4000);
+    assertFalse(next.isDone(200));
+    advance(1);
+    assertTrue(next.isDone(1000));
+  }
+
+  @Test
+  public void newRateReachesWaitingReaders() throws Exception {
+    TokenBucket bucket = new TokenBucket(1);
+    Waiter waiter = new Waiter(bucket, 1000);
+    assertFalse(waiter.isDone(200));
+    bucket.setRate(TokenBucket.UNLIMITED);
+    assertTrue(waiter.isDone(1000));
+  }
+
+  private static void advance(long ms) {
+    // the main looper's clock is the one SystemClock reads.
+    ShadowLooper.idleMainLooper(ms, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Acquires on a thread of its own.
+   */
+  private static class Waiter extends Thread {
+    private final TokenBucket mBucket;
+    private final long mBytes;
+
+    Waiter(TokenBucket bucket, long bytes) {
+      mBucket = bucket;
+      mBytes = bytes;
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        mBucket.acquire(mBytes);
+      } catch (InterruptedIOException e) {
+        // the test is over.
+      }
+    }
+
+    boolean isDone(long waitMs) throws InterruptedException {
+      join(waitMs);
+      return !isAlive();
+    }
+  }
+}
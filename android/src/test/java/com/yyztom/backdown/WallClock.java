@@ -0,0 +1,40 @@
+package com.yyztom.backdown;
+
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.util.Scheduler;
+
+/**
+ * Under Robolectric SystemClock only moves when a test moves it. While this runs it
+ * keeps up with real time, for code that sleeps on its own threads and then looks
+ * at SystemClock to see how long it was.
+ */
+class WallClock implements Runnable {
+  private static final long TICK_MS = 5;
+
+  private final Scheduler mScheduler = ShadowApplication.getInstance().getForegroundThreadScheduler();
+  private final Thread mThread = new Thread(this, "wall-clock");
+  private volatile boolean isStopped;
+
+  void start() {
+    mThread.start();
+  }
+
+  void stop() throws InterruptedException {
+    isStopped = true;
+    mThread.join();
+  }
+
+  @Override
+  public void run() {
+    long start = System.nanoTime();
+    long from = mScheduler.getCurrentTime();
+    while (!isStopped) {
+      mScheduler.advanceTo(from + (System.nanoTime() - start) / 1000000);
+      try {
+        Thread.sleep(TICK_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+}
@@ -1,4 +1,5 @@
 import 'dart:async';
+import 'dart:io' show Platform;
 import 'dart:ui';
 
 import 'package:flutter/services.dart';
@@ -16,14 +17,66 @@ class Backdown {
   static const String METHOD_ENQUEUE_DOWNLOAD = "enqueueDownload";
   static const String METHOD_SET_DEFAULTS = "setDefaults";
   static const String METHOD_CANCEL_DOWNLOAD = "cancelDownload";
+  static const String METHOD_CREATE_DOWNLOADS = "createDownloads";
+  static const String METHOD_ENQUEUE_DOWNLOADS = "enqueueDownloads";
+  static const String METHOD_SET_PRIORITY = "setPriority";
+  static const String METHOD_GET_METRICS = "getMetrics";
+  static const String METHOD_SET_BANDWIDTH_LIMIT = "setBandwidthLimit";
+  static const String METHOD_SET_NETWORK_POLICY = "setNetworkPolicy";
+  static const String METHOD_ENQUEUE_BULK = "enqueueBulk";
+  static const String METHOD_GET_STREAM_URL = "getStreamUrl";
+  static const String METHOD_GET_DOWNLOADS = "getDownloads";
+  static const String METHOD_GET_DOWNLOAD = "getDownload";
+
+  // Download statuses (Android), see BackdownDownloadState.
+  static const String STATUS_CREATED = "CREATED";
+  static const String STATUS_QUEUED = "QUEUED";
+  static const String STATUS_RUNNING = "RUNNING";
+  static const String STATUS_COMPLETE = "COMPLETE";
+  static const String STATUS_FAILED = "FAILED";
+  static const String STATUS_CANCELLED = "CANCELLED";
+
+  // Progress modes (Android).
+  /// Progress is read only when the DownloadManager reports a change.
+  static const String PROGRESS_MODE_OBSERVE = "observe";
+
+  /// Progress is read every second while downloads are active.
+  static const String PROGRESS_MODE_POLL = "poll";
+
+  // Destinations (Android).
+  /// Finished files are copied into the app's files directory.
+  static const String DESTINATION_INTERNAL = "internal";
+
+  /// Files are downloaded into the app's external files directory and renamed
+  /// into place when they finish, so nothing is copied.
+  static const String DESTINATION_EXTERNAL = "external";
+
+  // Engines (Android).
+  /// Hand the download to the system DownloadManager.
+  static const String ENGINE_DOWNLOAD_MANAGER = "DOWNLOAD_MANAGER";
+
+  /// Fetch byte ranges over several connections in parallel, needs the app to be running.
+  static const String ENGINE_CHUNKED = "CHUNKED";
+
+  // Post processing (Android).
+  /// Extract a .zip into a directory of the same name.
+  static const String POST_PROCESS_UNZIP = "unzip";
+
+  /// Decompress a .gz into a file of the same name.
+  static const String POST_PROCESS_GUNZIP = "gunzip";
 
   // Event Keys
   static const String COMPLETE_EVENT = "COMPLETE_EVENT";
   static const String PROGRESS_EVENT = "PROGRESS_EVENT";
+  static const String PROGRESS_BATCH_EVENT = "PROGRESS_BATCH_EVENT";
+  static const String METRICS_EVENT = "METRICS_EVENT";
+  static const String BULK_COMPLETE_EVENT = "BULK_COMPLETE_EVENT";
   static const String READY_EVENT = "READY_EVENT";
 
   // Keys
   static const String KEY_DOWNLOAD_URL = "DOWNLOAD_URL";
+  static const String KEY_STATUS = "STATUS";
+  static const String KEY_STREAM_URL = "STREAM_URL";
   static const String KEY_ACCENT_COLOR = "ACCENT_COLOR";
   static const String KEY_TITLE = "TITLE";
   static const String KEY_DESCRIPTION = "DESCRIPTION";
@@ -31,22 +84,77 @@ class Backdown {
   static const String KEY_REQUIRES_CHARGING = "REQUIRED_CHARGING";
   static const String KEY_REQUIRES_DEVICE_IDLE = "REQUIRES_DEVICE_IDLE";
   static const String KEY_SHOW_NOTIFICATION = "SHOW_NOTIFICATION";
+  static const String KEY_ENGINE = "ENGINE";
+  static const String KEY_CONNECTIONS = "CONNECTIONS";
+  static const String KEY_PRIORITY = "PRIORITY";
+  static const String KEY_SHA256 = "SHA256";
+  static const String KEY_SIZE = "SIZE";
+  static const String KEY_POST_PROCESS = "POST_PROCESS";
+  static const String KEY_PROGRESS_INTERVAL = "PROGRESS_INTERVAL_MS";
+  static const String KEY_PROGRESS_MIN_BYTES = "PROGRESS_MIN_BYTES";
+  static const String KEY_PROGRESS_MIN_PERCENT = "PROGRESS_MIN_PERCENT";
+  static const String KEY_REPORT_PENDING = "REPORT_PENDING";
+  static const String KEY_MAX_BYTES_PER_SECOND = "MAX_BYTES_PER_SECOND";
+  static const String KEY_MIRRORS = "MIRRORS";
+  static const String KEY_PATCH_URL = "PATCH_URL";
+  static const String KEY_BASE_PATH = "BASE_PATH";
 
   // Progress Event Keys
   static const String KEY_PROGRESS = "PROGRESS";
   static const String KEY_TOTAL = "TOTAL";
+  static const String KEY_BYTES_PER_SECOND = "BYTES_PER_SECOND";
+  static const String KEY_ETA_MS = "ETA_MS";
+  static const String KEY_DOWNLOAD_IDS = "DOWNLOAD_IDS"; // batched progress only.
 
   // Response Keys
   static const String KEY_SUCCESS = "SUCCESS";
   static const String KEY_DOWNLOAD_ID = "DOWNLOAD_ID";
   static const String KEY_FILE_PATH = "FILE_PATH";
   static const String KEY_ERROR_MSG = "ERROR_MSG"; // if Success == false.
+  static const String KEY_REQUESTS = "REQUESTS";
+  static const String KEY_RESULTS = "RESULTS";
+  static const String KEY_FINALIZE_MS = "FINALIZE_MS";
+  static const String KEY_BYTES_COPIED = "BYTES_COPIED";
+  static const String KEY_CACHED = "CACHED";
+
+  // Bulk Keys
+  static const String KEY_BATCH_ID = "BATCH_ID";
+  static const String KEY_FILE_PATHS = "FILE_PATHS";
+  static const String KEY_ERRORS = "ERRORS";
+  static const String KEY_BYTES = "BYTES";
+  static const String KEY_ELAPSED_MS = "ELAPSED_MS";
 
   Backdown._internal();
 
   /// notificationColor needs only be sent at application
   /// startup.
-  factory Backdown({Color notificationColor}) {
+  /// progressMode picks how Android finds out about progress,
+  /// PROGRESS_MODE_POLL is kept as a fallback.
+  /// batchProgress sends all of a tick's progress in one message, the
+  /// stream still gets one DownloadProgressEvent per download.
+  /// destination is where Android puts finished files.
+  /// maxConcurrentDownloads and maxDownloadsPerHost cap how many downloads Android
+  /// runs at once, the rest wait in priority order. 0 is unlimited.
+  /// cache makes Android complete a download straight away if it already has the
+  /// file, cacheMaxBytes evicts the least recently used files past that size. 0 is unlimited.
+  /// groupNotifications shows one "N files, X% overall" notification on Android
+  /// instead of one per download.
+  /// metricsIntervalMs sends a BackdownMetricsEvent that often on Android, 0 is never.
+  /// checkStorage makes Android check there's room for a download before it starts, asking
+  /// the server for its size if the request doesn't give one. Downloads that will fit once
+  /// others finish wait, ones that won't fit at all fail straight away.
+  factory Backdown(
+      {Color notificationColor,
+      String progressMode: PROGRESS_MODE_OBSERVE,
+      bool batchProgress: false,
+      String destination: DESTINATION_INTERNAL,
+      int maxConcurrentDownloads: 0,
+      int maxDownloadsPerHost: 0,
+      bool cache: false,
+      int cacheMaxBytes: 0,
+      bool groupNotifications: false,
+      int metricsIntervalMs: 0,
+      bool checkStorage: false}) {
     if (Backdown._singleton != null) {
       return Backdown._singleton;
     }
@@ -56,7 +164,19 @@ class Backdown {
     var color = notificationColor ?? new Color(0xFF000000);
 
     // set the defaults.
-    _channel.invokeMethod(METHOD_SET_DEFAULTS, <String, Object>{"color": color.value});
+    _channel.invokeMethod(METHOD_SET_DEFAULTS, <String, Object>{
+      "color": color.value,
+      "progressMode": progressMode,
+      "batchProgress": batchProgress,
+      "destination": destination,
+      "maxConcurrentDownloads": maxConcurrentDownloads,
+      "maxDownloadsPerHost": maxDownloadsPerHost,
+      "cache": cache,
+      "cacheMaxBytes": cacheMaxBytes,
+      "groupNotifications": groupNotifications,
+      "metricsIntervalMs": metricsIntervalMs,
+      "checkStorage": checkStorage,
+    });
 
     return _singleton;
   }
@@ -94,10 +214,38 @@ class Backdown {
         }
         break;
 
+      /// Several downloads are progressing, packed as parallel arrays.
+      case PROGRESS_BATCH_EVENT:
+        if (_sc.hasListener) {
+          List<dynamic> ids = arguments[KEY_DOWNLOAD_IDS];
+          List<int> progress = arguments[KEY_PROGRESS];
+          List<int> totals = arguments[KEY_TOTAL];
+          List<int> rates = arguments[KEY_BYTES_PER_SECOND];
+          List<int> etas = arguments[KEY_ETA_MS];
+          for (int i = 0; i < ids.length; i++) {
+            _sc.add(new DownloadProgressEvent(ids[i], progress[i], totals[i],
+                bytesPerSecond: rates == null ? -1 : rates[i], etaMs: etas == null ? -1 : etas[i]));
+          }
+        }
+        break;
+
       case READY_EVENT:
         //print("backdown: READY_EVENT");
         _sc.add(new BackdownReadyEvent());
         break;
+
+      case METRICS_EVENT:
+        if (_sc.hasListener) {
+          _sc.add(new BackdownMetricsEvent(arguments));
+        }
+        break;
+
+      /// A batch of small files has finished.
+      case BULK_COMPLETE_EVENT:
+        if (_sc.hasListener) {
+          _sc.add(new BulkCompleteEvent.from(arguments));
+        }
+        break;
       default:
         break;
     }
@@ -125,6 +273,132 @@ class Backdown {
     return success;
   }
 
+  /// Create several downloads in one go, much cheaper than calling createDownload for each.
+  /// Elsewhere than Android it calls createDownload for each.
+  /// @returns - the downloadIds in the same order as requests, null where one couldn't be created.
+  static Future<List<String>> createDownloads(List<BackdownRequest> requests) async {
+    if (!Platform.isAndroid) {
+      List<String> downloadIds = <String>[];
+      for (BackdownRequest request in requests) {
+        try {
+          downloadIds.add(await createDownload(request));
+        } on PlatformException {
+          downloadIds.add(null);
+        }
+      }
+      return downloadIds;
+    }
+    var result = await _channel.invokeMethod(METHOD_CREATE_DOWNLOADS, <String, dynamic>{
+      KEY_REQUESTS: requests.map((BackdownRequest r) => r.toMap()).toList(),
+    });
+    return (result[KEY_DOWNLOAD_IDS] as List).cast<String>();
+  }
+
+  /// Enqueue several downloads in one go.
+  /// Elsewhere than Android it calls enqueueDownload for each.
+  /// @returns - whether each download was enqueued, in the same order as downloadIds.
+  static Future<List<bool>> enqueueDownloads(List<String> downloadIds) async {
+    if (!Platform.isAndroid) {
+      List<bool> results = <bool>[];
+      for (String downloadId in downloadIds) {
+        try {
+          results.add(downloadId != null && await enqueueDownload(downloadId));
+        } on PlatformException {
+          results.add(false);
+        }
+      }
+      return results;
+    }
+    var result =
+        await _channel.invokeMethod(METHOD_ENQUEUE_DOWNLOADS, <String, dynamic>{KEY_DOWNLOAD_IDS: downloadIds});
+    return (result[KEY_RESULTS] as List).cast<bool>();
+  }
+
+  /// Android only, downloads lots of small files (thumbnails, json..) straight away, over a
+  /// few kept alive connections. Much cheaper per file than createDownloads/enqueueDownloads,
+  /// but there's no progress, notification or resuming, and they don't wait for a slot.
+  /// Only url, sha256 and size are used from each request.
+  /// Each file that fails gets a BackdownErrorEvent, then the batch gets one BulkCompleteEvent.
+  static Future<BackdownBulkBatch> enqueueBulk(List<BackdownRequest> requests,
+      {int connections: 4}) async {
+    var result = await _channel.invokeMethod(METHOD_ENQUEUE_BULK, <String, dynamic>{
+      KEY_REQUESTS: requests.map((BackdownRequest r) => r.toMap()).toList(),
+      KEY_CONNECTIONS: connections,
+    });
+    return new BackdownBulkBatch(result[KEY_BATCH_ID], (result[KEY_DOWNLOAD_IDS] as List).cast<String>());
+  }
+
+  /// Android only, promote (higher) or demote (lower) a download that is waiting for a slot.
+  /// Elsewhere it does nothing and returns false.
+  /// @returns - true for success;
+  static Future<bool> setPriority(String downloadId, int priority) async {
+    if (!Platform.isAndroid) {
+      return false;
+    }
+    var result = await _channel
+        .invokeMethod(METHOD_SET_PRIORITY, <String, dynamic>{KEY_DOWNLOAD_ID: downloadId, KEY_PRIORITY: priority});
+    return result[KEY_SUCCESS];
+  }
+
+  /// Android only, counters and timing histograms for everything backdown has done
+  /// since it started, plus timings for recent downloads keyed by download id.
+  /// Histograms (queueWaitMs, transferMs, finalizeMs, queryMs) are maps of
+  /// count, sum, min, max, p50, p90 and p99.
+  static Future<Map<String, dynamic>> getMetrics() async {
+    var result = await _channel.invokeMethod(METHOD_GET_METRICS);
+    return (result as Map).cast<String, dynamic>();
+  }
+
+  /// Android only, limits the chunked engine to maxBytesPerSecond, 0 for no limit.
+  /// With a downloadId only that download is limited, otherwise all of them together.
+  /// Takes effect straight away, even on downloads that are running.
+  /// @returns - true for success;
+  static Future<bool> setBandwidthLimit(int maxBytesPerSecond, {String downloadId}) async {
+    var result = await _channel.invokeMethod(METHOD_SET_BANDWIDTH_LIMIT,
+        <String, dynamic>{KEY_DOWNLOAD_ID: downloadId, KEY_MAX_BYTES_PER_SECOND: maxBytesPerSecond});
+    return result[KEY_SUCCESS];
+  }
+
+  /// Android only, when adaptive, backdown runs fewer and slower downloads while throughput
+  /// drops (e.g. the app is streaming something) and goes back up once it recovers.
+  /// On a metered network at most meteredMaxConcurrentDownloads run, at no more than
+  /// meteredMaxBytesPerSecond between them. 0 for no limit.
+  static Future<void> setNetworkPolicy(
+      {bool adaptive: false, int meteredMaxBytesPerSecond: 0, int meteredMaxConcurrentDownloads: 0}) async {
+    await _channel.invokeMethod(METHOD_SET_NETWORK_POLICY, <String, dynamic>{
+      "adaptive": adaptive,
+      "meteredMaxBytesPerSecond": meteredMaxBytesPerSecond,
+      "meteredMaxConcurrentDownloads": meteredMaxConcurrentDownloads,
+    });
+  }
+
+  /// Android only, a http://127.0.0.1 url the download can be played or read from while it
+  /// downloads, e.g. by a video player. Reads wait for bytes that haven't arrived, and the
+  /// part of the file being waited on is downloaded first. Range requests are supported.
+  /// Only enqueued downloads on ENGINE_CHUNKED can be streamed.
+  /// @returns - the url, or null if it can't be streamed.
+  static Future<String> getStreamUrl(String downloadId) async {
+    var result = await _channel.invokeMethod(METHOD_GET_STREAM_URL, <String, dynamic>{KEY_DOWNLOAD_ID: downloadId});
+    return result[KEY_SUCCESS] ? result[KEY_STREAM_URL] : null;
+  }
+
+  /// Android only, what every download is doing right now, oldest first. Answered from
+  /// memory without querying the DownloadManager, so it's cheap enough to render a download
+  /// list from straight after a cold start. Only the last few that aren't queued or running are kept.
+  static Future<List<BackdownDownloadState>> getDownloads() async {
+    var result = await _channel.invokeMethod(METHOD_GET_DOWNLOADS);
+    return (result as List)
+        .map((dynamic state) => new BackdownDownloadState.from((state as Map).cast<String, dynamic>()))
+        .toList();
+  }
+
+  /// Android only, what one download is doing right now, see getDownloads().
+  /// @returns - the state, or null if backdown knows nothing about it.
+  static Future<BackdownDownloadState> getDownload(String downloadId) async {
+    var result = await _channel.invokeMethod(METHOD_GET_DOWNLOAD, <String, dynamic>{KEY_DOWNLOAD_ID: downloadId});
+    return result == null ? null : new BackdownDownloadState.from((result as Map).cast<String, dynamic>());
+  }
+
   /// Cancel an enqueued download.
   /// @returns - true for success;
   static Future<bool> cancelDownload(String id) async {
@@ -168,13 +442,74 @@ class BackdownRequest {
   final bool androidRequiresDeviceIdle;
   final bool showNotification;
 
+  /// Android only, one of Backdown.ENGINE_DOWNLOAD_MANAGER or Backdown.ENGINE_CHUNKED.
+  final String engine;
+
+  /// How many connections the chunked engine may open for this download.
+  final int connections;
+
+  /// Android only, higher priority downloads get a slot first when there is a concurrency limit.
+  final int priority;
+
+  /// Android only, the file's expected SHA-256 in hex. The download fails if it doesn't match.
+  final String sha256;
+
+  /// Android only, the file's expected size in bytes, or -1 if it isn't known.
+  final int size;
+
+  /// Android only, Backdown.POST_PROCESS_UNZIP or Backdown.POST_PROCESS_GUNZIP to unpack the
+  /// download natively once it finishes. The complete event's filePath is then the unzipped
+  /// directory or the decompressed file, and progress events carry on while it unpacks.
+  final String postProcess;
+
+  /// Android only, progress events for this download are dropped unless at least
+  /// progressIntervalMs, progressMinBytes and progressMinPercent have passed since the
+  /// last one. Events that haven't changed are never repeated.
+  final int progressIntervalMs;
+  final int progressMinBytes;
+  final int progressMinPercent;
+
+  /// Android only, whether to send progress while the download is queued.
+  final bool reportPending;
+
+  /// Android only, this download's bandwidth limit on the chunked engine, 0 for none.
+  /// Backdown.setBandwidthLimit changes it once it's created.
+  final int maxBytesPerSecond;
+
+  /// Android only, other urls serving the same file, tried in order when url fails.
+  /// The fastest of them all is picked to start with. The download id still comes from url.
+  final List<String> mirrors;
+
+  /// Android only, a patch that turns the file at basePath (e.g. the filePath of an earlier
+  /// download) into this one. Only the patch is downloaded. If the base is gone, or the
+  /// patch fails or doesn't give the expected sha256/size, url is downloaded in full instead.
+  /// Patches are gzipped BDPATCH1 files, the format is described in DeltaPatch.java.
+  final String patchUrl;
+  final String basePath;
+
   /// wifiOnly sets iOS to discretionary, and android forces wait for wifi... on Android, if you're on wifi already
   /// then really this is interactive...
   /// TODO: test this a bit on android.. make sure this condition is ok.
   bool get isInteractiveDownload => !this.wifiOnly;
 
   /// iOS and Android will download this file asap.
-  BackdownRequest.asap(this.url, this.title, {this.description: "", this.showNotification: true})
+  BackdownRequest.asap(this.url, this.title,
+      {this.description: "",
+      this.showNotification: true,
+      this.engine: Backdown.ENGINE_DOWNLOAD_MANAGER,
+      this.connections: 4,
+      this.priority: 0,
+      this.sha256,
+      this.size: -1,
+      this.postProcess,
+      this.progressIntervalMs: 0,
+      this.progressMinBytes: 0,
+      this.progressMinPercent: 0,
+      this.reportPending: true,
+      this.maxBytesPerSecond: 0,
+      this.mirrors: const <String>[],
+      this.patchUrl,
+      this.basePath})
       : this.wifiOnly = false,
         this.androidRequiresCharging = false,
         this.androidRequiresDeviceIdle = false;
@@ -182,7 +517,23 @@ class BackdownRequest {
   /// iOS - Will force iOS to discretionary, allowing the system to schedule the download
   /// at the optimum time.
   /// Android - wifiOnly = true, requiresCharging = requiresDeviceIdle = false;
-  BackdownRequest.discretionaryWithWifi(this.url, this.title, {this.description: "", this.showNotification: true})
+  BackdownRequest.discretionaryWithWifi(this.url, this.title,
+      {this.description: "",
+      this.showNotification: true,
+      this.engine: Backdown.ENGINE_DOWNLOAD_MANAGER,
+      this.connections: 4,
+      this.priority: 0,
+      this.sha256,
+      this.size: -1,
+      this.postProcess,
+      this.progressIntervalMs: 0,
+      this.progressMinBytes: 0,
+      this.progressMinPercent: 0,
+      this.reportPending: true,
+      this.maxBytesPerSecond: 0,
+      this.mirrors: const <String>[],
+      this.patchUrl,
+      this.basePath})
       : this.wifiOnly = true,
         this.androidRequiresCharging = false,
         this.androidRequiresDeviceIdle = false;
@@ -191,7 +542,22 @@ class BackdownRequest {
   /// at the optimum time.
   /// Android - wifiOnly = true, requiresCharging = true, requiresDeviceIdle = false;
   BackdownRequest.discretionaryWithWifiAndPower(this.url, this.title,
-      {this.description: "", this.showNotification: true})
+      {this.description: "",
+      this.showNotification: true,
+      this.engine: Backdown.ENGINE_DOWNLOAD_MANAGER,
+      this.connections: 4,
+      this.priority: 0,
+      this.sha256,
+      this.size: -1,
+      this.postProcess,
+      this.progressIntervalMs: 0,
+      this.progressMinBytes: 0,
+      this.progressMinPercent: 0,
+      this.reportPending: true,
+      this.maxBytesPerSecond: 0,
+      this.mirrors: const <String>[],
+      this.patchUrl,
+      this.basePath})
       : this.wifiOnly = true,
         this.androidRequiresCharging = true,
         this.androidRequiresDeviceIdle = false;
@@ -200,7 +566,22 @@ class BackdownRequest {
   /// at the optimum time.
   /// Android - wifiOnly = true, requiresCharging = true, requiresDeviceIdle = true;
   BackdownRequest.discretionaryWithWifiPowerAndIdle(this.url, this.title,
-      {this.description: "", this.showNotification: true})
+      {this.description: "",
+      this.showNotification: true,
+      this.engine: Backdown.ENGINE_DOWNLOAD_MANAGER,
+      this.connections: 4,
+      this.priority: 0,
+      this.sha256,
+      this.size: -1,
+      this.postProcess,
+      this.progressIntervalMs: 0,
+      this.progressMinBytes: 0,
+      this.progressMinPercent: 0,
+      this.reportPending: true,
+      this.maxBytesPerSecond: 0,
+      this.mirrors: const <String>[],
+      this.patchUrl,
+      this.basePath})
       : this.wifiOnly = true,
         this.androidRequiresCharging = true,
         this.androidRequiresDeviceIdle = true;
@@ -214,6 +595,20 @@ class BackdownRequest {
       Backdown.KEY_REQUIRES_CHARGING: this.androidRequiresCharging,
       Backdown.KEY_REQUIRES_DEVICE_IDLE: this.androidRequiresDeviceIdle,
       Backdown.KEY_SHOW_NOTIFICATION: this.showNotification,
+      Backdown.KEY_ENGINE: this.engine,
+      Backdown.KEY_CONNECTIONS: this.connections,
+      Backdown.KEY_PRIORITY: this.priority,
+      Backdown.KEY_SHA256: this.sha256,
+      Backdown.KEY_SIZE: this.size,
+      Backdown.KEY_POST_PROCESS: this.postProcess,
+      Backdown.KEY_PROGRESS_INTERVAL: this.progressIntervalMs,
+      Backdown.KEY_PROGRESS_MIN_BYTES: this.progressMinBytes,
+      Backdown.KEY_PROGRESS_MIN_PERCENT: this.progressMinPercent,
+      Backdown.KEY_REPORT_PENDING: this.reportPending,
+      Backdown.KEY_MAX_BYTES_PER_SECOND: this.maxBytesPerSecond,
+      Backdown.KEY_MIRRORS: this.mirrors,
+      Backdown.KEY_PATCH_URL: this.patchUrl,
+      Backdown.KEY_BASE_PATH: this.basePath,
     };
   }
 }
@@ -223,11 +618,22 @@ class BackdownRequest {
 class DownloadProgressEvent extends BackdownDownloadInfoEvent {
   final int progress;
   final int expectedBytes;
-  DownloadProgressEvent(String downloadId, this.progress, this.expectedBytes) : super(downloadId);
+
+  /// Android only, averaged over the last few seconds. -1 until it's known.
+  final int bytesPerSecond;
+
+  /// Android only, how long until the download finishes at the current rate. -1 until it's known.
+  final int etaMs;
+
+  DownloadProgressEvent(String downloadId, this.progress, this.expectedBytes,
+      {this.bytesPerSecond: -1, this.etaMs: -1})
+      : super(downloadId);
 
   DownloadProgressEvent.from(Map<String, dynamic> data)
       : this.progress = data[Backdown.KEY_PROGRESS],
         this.expectedBytes = data[Backdown.KEY_TOTAL],
+        this.bytesPerSecond = data[Backdown.KEY_BYTES_PER_SECOND] ?? -1,
+        this.etaMs = data[Backdown.KEY_ETA_MS] ?? -1,
         super(data[Backdown.KEY_DOWNLOAD_ID]);
 }
 
@@ -236,14 +642,88 @@ class DownloadCompleteEvent extends BackdownDownloadInfoEvent {
   final bool success;
   final String filePath;
 
-  DownloadCompleteEvent(String downloadId, this.success, this.filePath) : super(downloadId);
+  /// Android only, how long it took to move the file into place.
+  final int finalizeMs;
+
+  /// Android only, 0 when the file could be renamed into place.
+  final int bytesCopied;
+
+  /// Android only, the file was already there so nothing was downloaded.
+  final bool cached;
+
+  DownloadCompleteEvent(String downloadId, this.success, this.filePath,
+      {this.finalizeMs, this.bytesCopied, this.cached: false})
+      : super(downloadId);
 
   DownloadCompleteEvent.from(Map<String, dynamic> data)
       : this.success = data[Backdown.KEY_SUCCESS],
         this.filePath = data[Backdown.KEY_FILE_PATH],
+        this.finalizeMs = data[Backdown.KEY_FINALIZE_MS],
+        this.bytesCopied = data[Backdown.KEY_BYTES_COPIED],
+        this.cached = data[Backdown.KEY_CACHED] ?? false,
         super(data[Backdown.KEY_DOWNLOAD_ID]);
 }
 
+/// What enqueueBulk started, cancelDownload(batchId) stops what's left of it.
+class BackdownBulkBatch {
+  final String batchId;
+
+  /// In the same order as the requests, null where a url was no good.
+  final List<String> downloadIds;
+
+  BackdownBulkBatch(this.batchId, this.downloadIds);
+}
+
+/// A snapshot of one download, from Backdown.getDownloads().
+class BackdownDownloadState {
+  final String downloadId;
+
+  /// One of the Backdown.STATUS_ constants.
+  final String status;
+  final int progress;
+
+  /// -1 until it's known.
+  final int total;
+  final int bytesPerSecond;
+
+  /// Once it's complete.
+  final String filePath;
+
+  /// Once it has failed.
+  final String errorMsg;
+
+  BackdownDownloadState.from(Map<String, dynamic> data)
+      : this.downloadId = data[Backdown.KEY_DOWNLOAD_ID],
+        this.status = data[Backdown.KEY_STATUS],
+        this.progress = data[Backdown.KEY_PROGRESS],
+        this.total = data[Backdown.KEY_TOTAL],
+        this.bytesPerSecond = data[Backdown.KEY_BYTES_PER_SECOND],
+        this.filePath = data[Backdown.KEY_FILE_PATH],
+        this.errorMsg = data[Backdown.KEY_ERROR_MSG];
+}
+
+/// Broadcast when every file in a bulk batch has finished or failed.
+class BulkCompleteEvent extends BackdownEvent {
+  final String batchId;
+
+  /// Where each file that made it is, by download id.
+  final Map<String, String> filePaths;
+
+  /// Why each file that didn't make it failed, by download id.
+  final Map<String, String> errors;
+  final int bytes;
+  final int elapsedMs;
+
+  bool get success => errors.isEmpty;
+
+  BulkCompleteEvent.from(Map<String, dynamic> data)
+      : this.batchId = data[Backdown.KEY_BATCH_ID],
+        this.filePaths = (data[Backdown.KEY_FILE_PATHS] as Map).cast<String, String>(),
+        this.errors = (data[Backdown.KEY_ERRORS] as Map).cast<String, String>(),
+        this.bytes = data[Backdown.KEY_BYTES],
+        this.elapsedMs = data[Backdown.KEY_ELAPSED_MS];
+}
+
 /// Errors
 class BackdownErrorEvent extends BackdownDownloadInfoEvent {
   final String message;
@@ -252,6 +732,12 @@ class BackdownErrorEvent extends BackdownDownloadInfoEvent {
         super(data[Backdown.KEY_DOWNLOAD_ID]);
 }
 
+/// Sent every metricsIntervalMs, the same as Backdown.getMetrics().
+class BackdownMetricsEvent extends BackdownEvent {
+  final Map<String, dynamic> metrics;
+  BackdownMetricsEvent(this.metrics);
+}
+
 /// When backdown is fully initialised
 class BackdownReadyEvent extends BackdownEvent {
   BackdownReadyEvent();